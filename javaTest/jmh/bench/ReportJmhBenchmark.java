@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import report.ReportGenerator;
+import report.ReportGenerator.InputData;
+import support.Contract;
+import support.CsvReportSink;
+import support.Report;
+
+/**
+ * The stages timed by {@link ReportBenchmark}, as JMH benchmarks over
+ * the same synthetic data.  JMH forks, warms up and measures; the
+ * harness remains for running without JMH.
+ * <p>
+ * Usage: gradle jmh --args='ReportJmhBenchmark -p preset=dense -p compact=true'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReportJmhBenchmark
+{
+    private static final String CUSTOMER = "Benchmark Customer";
+    private static final String DATES = "01/01/2015 - 12/31/2015";
+
+    @Param({"sparse", "dense"})
+    public String preset;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private final ReportGenerator generator = new ReportGenerator();
+    private List<Contract> contracts;
+    private Report report;
+
+    @Setup(Level.Trial)
+    public void generateContracts()
+    {
+        SyntheticData data = "dense".equals(preset) ? SyntheticData.dense() : SyntheticData.sparse();
+        contracts = data.generate();
+        report = generator.generateReport(contracts, compact, CUSTOMER, DATES);
+    }
+
+    /** Input data populated afresh before each call, outside the timing.
+     */
+    @State(Scope.Thread)
+    public static class PreparedInput
+    {
+        InputData inputData;
+
+        @Setup(Level.Invocation)
+        public void prepareInputData(ReportJmhBenchmark benchmark)
+        {
+            inputData = benchmark.generator.createInputData(benchmark.compact, CUSTOMER, DATES);
+            benchmark.generator.prepareInputData(benchmark.contracts, inputData);
+        }
+    }
+
+    @Benchmark
+    public InputData prepareInputData()
+    {
+        InputData data = generator.createInputData(compact, CUSTOMER, DATES);
+        generator.prepareInputData(contracts, data);
+        return data;
+    }
+
+    @Benchmark
+    public Object generateRows(PreparedInput input)
+    {
+        return generator.generateRows(compact, input.inputData);
+    }
+
+    @Benchmark
+    public Report createReportFromInputData(PreparedInput input)
+    {
+        return generator.createReportFromInputData(input.inputData);
+    }
+
+    @Benchmark
+    public CsvReportSink writeCsv()
+        throws IOException
+    {
+        CsvReportSink sink = new CsvReportSink(Writer.nullWriter(), true);
+        report.write(sink);
+        sink.close();
+        return sink;
+    }
+
+    @Benchmark
+    public CsvReportSink writeReportFromInputData(PreparedInput input)
+        throws IOException
+    {
+        CsvReportSink sink = new CsvReportSink(Writer.nullWriter(), true);
+        generator.writeReportFromInputData(input.inputData, sink);
+        sink.close();
+        return sink;
+    }
+}
@@ -0,0 +1,322 @@
+package bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import report.ReportGenerator;
+import report.ReportGenerator.InputData;
+import support.Contract;
+import support.CsvReportSink;
+import support.Report;
+
+/**
+ * Times the stages of report generation separately, in full and compact
+ * mode, over synthetic data, reporting time per operation, throughput
+ * and bytes allocated per operation.
+ * <p>
+ * Usage: java bench.ReportBenchmark [options]
+ * <pre>
+ *   --preset sparse|dense   data shape (default sparse)
+ *   --contracts N           number of contracts
+ *   --products N            number of products
+ *   --distributors N        number of distributors
+ *   --items N               line items per contract
+ *   --threads N             fork-join parallelism, 0 for none (default 0)
+ *   --warmup N              warm-up iterations per stage (default 3)
+ *   --iterations N          measured iterations per stage (default 5)
+ *   --stage NAME            run only the named stage
+ *   --mode full|compact     run only one mode
+ * </pre>
+ * Allocation is measured with com.sun.management.ThreadMXBean over all
+ * live threads; it reads 0 on JVMs without that support.
+ * <p>
+ * The build runs it as "gradle runBenchmark --args='...'".  The same
+ * stages are JMH benchmarks in ReportJmhBenchmark, under javaTest/jmh;
+ * this harness needs no dependencies, so it also runs offline.
+ */
+public class ReportBenchmark
+{
+    private static final String CUSTOMER = "Benchmark Customer";
+    private static final String DATES = "01/01/2015 - 12/31/2015";
+
+    private final List<Contract> contracts;
+    private final ReportGenerator generator;
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Stages                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** A unit of work timed by the benchmark.
+     */
+    private abstract class Stage
+    {
+        final String name;
+        boolean compact;
+
+        Stage(String name)
+        {
+            this.name = name;
+        }
+
+        /** Prepares the inputs of the stage, outside the timing.
+         */
+        void setUp(boolean compact)
+        {
+            this.compact = compact;
+        }
+
+        /** Runs the stage once, returning a result to keep it from being optimized away.
+         */
+        abstract Object run()
+            throws IOException;
+    }
+
+    private class PrepareInputDataStage extends Stage
+    {
+        PrepareInputDataStage()
+        {
+            super("prepareInputData");
+        }
+
+        Object run()
+        {
+            InputData inputData = generator.createInputData(compact, CUSTOMER, DATES);
+            generator.prepareInputData(contracts, inputData);
+            return inputData;
+        }
+    }
+
+    /** A stage working from already-populated input data.
+     */
+    private abstract class InputDataStage extends Stage
+    {
+        InputData inputData;
+
+        InputDataStage(String name)
+        {
+            super(name);
+        }
+
+        void setUp(boolean compact)
+        {
+            super.setUp(compact);
+            inputData = generator.createInputData(compact, CUSTOMER, DATES);
+            generator.prepareInputData(contracts, inputData);
+        }
+    }
+
+    private class GenerateRowsStage extends InputDataStage
+    {
+        GenerateRowsStage()
+        {
+            super("generateRows");
+        }
+
+        Object run()
+        {
+            return generator.generateRows(compact, inputData);
+        }
+    }
+
+    private class CreateReportStage extends InputDataStage
+    {
+        CreateReportStage()
+        {
+            super("createReportFromInputData");
+        }
+
+        Object run()
+        {
+            return generator.createReportFromInputData(inputData);
+        }
+    }
+
+    private class WriteCsvStage extends Stage
+    {
+        Report report;
+
+        WriteCsvStage()
+        {
+            super("Report.writeCsv");
+        }
+
+        void setUp(boolean compact)
+        {
+            super.setUp(compact);
+            report = generator.generateReport(contracts, compact, CUSTOMER, DATES);
+        }
+
+        Object run()
+            throws IOException
+        {
+            CsvReportSink sink = new CsvReportSink(Writer.nullWriter(), true);
+            report.write(sink);
+            sink.close();
+            return sink;
+        }
+    }
+
+    private class StreamCsvStage extends InputDataStage
+    {
+        StreamCsvStage()
+        {
+            super("writeReportFromInputData");
+        }
+
+        Object run()
+            throws IOException
+        {
+            CsvReportSink sink = new CsvReportSink(Writer.nullWriter(), true);
+            generator.writeReportFromInputData(inputData, sink);
+            sink.close();
+            return sink;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                             Measurement                           //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public ReportBenchmark(List<Contract> contracts, ReportGenerator generator)
+    {
+        this.contracts = contracts;
+        this.generator = generator;
+    }
+
+    private List<Stage> createStages()
+    {
+        List<Stage> stages = new ArrayList<Stage>();
+        stages.add(new PrepareInputDataStage());
+        stages.add(new GenerateRowsStage());
+        stages.add(new CreateReportStage());
+        stages.add(new WriteCsvStage());
+        stages.add(new StreamCsvStage());
+        return stages;
+    }
+
+    /** Runs the stages and prints one result line per stage and mode.
+     */
+    public void run(String stageName, String modeName)
+        throws IOException
+    {
+        System.out.printf("%-28s %-8s %10s %10s %10s %14s%n",
+                          "stage", "mode", "avg ms/op", "min ms/op", "ops/s", "alloc MB/op");
+        for (Stage stage : createStages())
+        {
+            if (stageName != null && !stageName.equals(stage.name))
+                continue;
+            for (boolean compact : new boolean[] { false, true })
+            {
+                String mode = compact ? "compact" : "full";
+                if (modeName != null && !modeName.equals(mode))
+                    continue;
+                stage.setUp(compact);
+                for (int i = 0; i < warmupIterations; i++)
+                    stage.run();
+
+                long totalNanos = 0;
+                long minNanos = Long.MAX_VALUE;
+                long totalBytes = 0;
+                for (int i = 0; i < measuredIterations; i++)
+                {
+                    long bytesBefore = allocatedBytes();
+                    long start = System.nanoTime();
+                    stage.run();
+                    long nanos = System.nanoTime() - start;
+                    totalBytes += allocatedBytes() - bytesBefore;
+                    totalNanos += nanos;
+                    minNanos = Math.min(minNanos, nanos);
+                }
+                double avgMillis = totalNanos / 1e6 / measuredIterations;
+                System.out.printf("%-28s %-8s %10.2f %10.2f %10.2f %14.1f%n",
+                                  stage.name, mode, avgMillis, minNanos / 1e6, 1000 / avgMillis,
+                                  totalBytes / 1048576.0 / measuredIterations);
+            }
+        }
+    }
+
+    /** Returns the bytes allocated so far by all live threads.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+        long total = 0;
+        for (long bytes : sunThreadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds()))
+        {
+            if (bytes > 0)
+                total += bytes;
+        }
+        return total;
+    }
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        SyntheticData data = SyntheticData.sparse();
+        int threads = 0;
+        int warmup = 3;
+        int iterations = 5;
+        String stage = null;
+        String mode = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            String option = args[i];
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+            if (option.equals("--preset"))
+            {
+                if (value.equals("dense"))
+                    data = SyntheticData.dense();
+                else if (value.equals("sparse"))
+                    data = SyntheticData.sparse();
+                else
+                    throw new IllegalArgumentException("Unknown preset " + value);
+            }
+            else if (option.equals("--contracts"))
+                data.setContractCount(Integer.parseInt(value));
+            else if (option.equals("--products"))
+                data.setProductCount(Integer.parseInt(value));
+            else if (option.equals("--distributors"))
+                data.setDistributorCount(Integer.parseInt(value));
+            else if (option.equals("--items"))
+                data.setLineItemsPerContract(Integer.parseInt(value));
+            else if (option.equals("--threads"))
+                threads = Integer.parseInt(value);
+            else if (option.equals("--warmup"))
+                warmup = Integer.parseInt(value);
+            else if (option.equals("--iterations"))
+                iterations = Integer.parseInt(value);
+            else if (option.equals("--stage"))
+                stage = value;
+            else if (option.equals("--mode"))
+                mode = value;
+            else
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+
+        System.out.println("Data: " + data + (threads > 0 ? ", " + threads + " threads" : ""));
+        ReportGenerator generator = threads > 0 ? new ReportGenerator(new ForkJoinPool(threads))
+                                                : new ReportGenerator();
+        ReportBenchmark benchmark = new ReportBenchmark(data.generate(), generator);
+        benchmark.warmupIterations = warmup;
+        benchmark.measuredIterations = iterations;
+        benchmark.run(stage, mode);
+    }
+}
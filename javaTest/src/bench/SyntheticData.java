@@ -0,0 +1,179 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import support.Contract;
+import support.ContractLineItem;
+import support.Product;
+
+/**
+ * Generates contracts, products and distributors at a configurable scale,
+ * for benchmarks.  The same parameters and seed always give the same data.
+ */
+public class SyntheticData
+{
+    private int contractCount = 10000;
+    private int productCount = 100000;
+    private int distributorCount = 500;
+    private int manufacturerCount = 2000;
+    private int lineItemsPerContract = 200;
+    private int contractNamesPerDistributor = 4;
+    private long seed = 1;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Presets                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Many products, each priced by few distributors.
+     */
+    public static SyntheticData sparse()
+    {
+        return new SyntheticData();
+    }
+
+    /** Few products, each priced by most distributors.
+     */
+    public static SyntheticData dense()
+    {
+        return new SyntheticData()
+                .setProductCount(2000)
+                .setLineItemsPerContract(1000);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                             Generation                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Generates the contracts.  Each distributor has a few contract names
+     * reused over consecutive two-week periods, and each contract prices
+     * a random sample of the products.
+     * @return the contracts
+     */
+    public List<Contract> generate()
+    {
+        Random random = new Random(seed);
+
+        List<Product> products = new ArrayList<Product>(productCount);
+        for (int i = 0; i < productCount; i++)
+        {
+            String manufacturer = "Manufacturer " + (i % manufacturerCount);
+            products.add(new Product(manufacturer, String.format("%06d-%02d", i, i % 97), "Product " + i));
+        }
+
+        List<Contract> contracts = new ArrayList<Contract>(contractCount);
+        for (int i = 0; i < contractCount; i++)
+        {
+            int distributor = random.nextInt(distributorCount);
+            int period = i / Math.max(1, distributorCount * contractNamesPerDistributor);
+            Contract contract = new Contract(
+                    "Contract " + distributor + "-" + random.nextInt(contractNamesPerDistributor),
+                    getDate(period * 14),
+                    getDate(period * 14 + 13),
+                    "Distributor " + distributor);
+            int lineItems = Math.min(lineItemsPerContract, productCount);
+            for (int j = 0; j < lineItems; j++)
+            {
+                Product product = products.get(random.nextInt(productCount));
+                double price = 1 + random.nextInt(100000) / 100.0;
+                contract.addLineItem(new ContractLineItem(product, price));
+            }
+            contracts.add(contract);
+        }
+        return contracts;
+    }
+
+    private static Date getDate(int dayOffset)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2015, Calendar.JANUARY, 1);
+        calendar.add(Calendar.DAY_OF_MONTH, dayOffset);
+        return calendar.getTime();
+    }
+
+    public String toString()
+    {
+        return contractCount + " contracts, " + productCount + " products, " +
+               distributorCount + " distributors, " + lineItemsPerContract + " line items/contract";
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                         Getters / Setters                         //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public int getContractCount()
+    {
+        return contractCount;
+    }
+
+    public SyntheticData setContractCount(int contractCount)
+    {
+        this.contractCount = contractCount;
+        return this;
+    }
+
+    public int getProductCount()
+    {
+        return productCount;
+    }
+
+    public SyntheticData setProductCount(int productCount)
+    {
+        this.productCount = productCount;
+        return this;
+    }
+
+    public int getDistributorCount()
+    {
+        return distributorCount;
+    }
+
+    public SyntheticData setDistributorCount(int distributorCount)
+    {
+        this.distributorCount = distributorCount;
+        return this;
+    }
+
+    public SyntheticData setManufacturerCount(int manufacturerCount)
+    {
+        this.manufacturerCount = manufacturerCount;
+        return this;
+    }
+
+    public int getLineItemsPerContract()
+    {
+        return lineItemsPerContract;
+    }
+
+    public SyntheticData setLineItemsPerContract(int lineItemsPerContract)
+    {
+        this.lineItemsPerContract = lineItemsPerContract;
+        return this;
+    }
+
+    public SyntheticData setContractNamesPerDistributor(int contractNamesPerDistributor)
+    {
+        this.contractNamesPerDistributor = contractNamesPerDistributor;
+        return this;
+    }
+
+    public SyntheticData setSeed(long seed)
+    {
+        this.seed = seed;
+        return this;
+    }
+}
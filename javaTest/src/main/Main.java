@@ -1,12 +1,15 @@
 package main;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
+import report.ContractIndex;
 import report.ReportGenerator;
+import report.ReportVariant;
 import support.Contract;
 import support.ContractLineItem;
 import support.Product;
@@ -15,20 +18,21 @@ import support.Report;
 public class Main
 {
     public static void main(String[] args)
-        throws FileNotFoundException
+        throws IOException
     {
     	// Create a bunch of contracts.
         List<Contract> contracts = populateContracts();
        
-        // Run old report - with one price per line and a contract column.
-        ReportGenerator reportGenerator1 = new ReportGenerator();
-        Report reportModel1 = reportGenerator1.generateReport(contracts, false, "Ikea USA", "01/26/2015 - 02/08/2015");
-        reportModel1.writeCsv("price_comparison_full.csv");
-        
-        // Run the same report in compact form.
-        ReportGenerator reportGenerator2 = new ReportGenerator();
-        Report reportModel2 = reportGenerator2.generateReport(contracts, true, "Ikea USA", "01/26/2015 - 02/08/2015");
-        reportModel2.writeCsv("price_comparison_compact.csv");
+        // Index the contracts once, and derive both layouts from the index:
+        // the old report - with one price per line and a contract column -
+        // and the same report in compact form.
+        ContractIndex index = ContractIndex.build(contracts);
+        ReportGenerator reportGenerator = new ReportGenerator();
+        List<Report> reportModels = reportGenerator.generateReports(index, Arrays.asList(
+                new ReportVariant(false, "Ikea USA", "01/26/2015 - 02/08/2015"),
+                new ReportVariant(true, "Ikea USA", "01/26/2015 - 02/08/2015")));
+        reportModels.get(0).writeCsv("price_comparison_full.csv");
+        reportModels.get(1).writeCsv("price_comparison_compact.csv");
     }
     
     /**
@@ -0,0 +1,15 @@
+package report;
+
+import support.Contract;
+
+/**
+ *  Selects the contracts that a report variant draws its prices from.
+ */
+public interface ContractFilter
+{
+    /**
+     * @param contract a contract of the index
+     * @return whether the contract's line items belong in the report
+     */
+    boolean accept(Contract contract);
+}
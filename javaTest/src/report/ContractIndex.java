@@ -0,0 +1,270 @@
+package report;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import support.Contract;
+import support.ContractLineItem;
+import support.Product;
+
+/**
+ *  The line items of a contract set, grouped once by product and
+ *  report row, from which any number of report variants are derived
+ *  by {@link ReportGenerator#generateReports}.
+ *  <p>
+ *  Rows are keyed as in a full report, by manufacturer, product code and
+ *  contract name, and rows of the same product are stored together.  Each
+ *  row keeps every line item price with the index of its contract, in
+ *  contract order, so that a variant can select any subset of contracts
+ *  and still see the prices a report of just those contracts would.
+ *  Contract names and distributors are resolved once, when the index is
+ *  built.  An index is immutable and may be shared by threads.
+ */
+public final class ContractIndex
+{
+    private final List<Contract> contracts;
+
+    /** Distributor names, by the ids used in contractDistributors
+     */
+    final String[] distributors;
+    /** Distributor id of each contract
+     */
+    final int[] contractDistributors;
+
+    /** The rows of product p are productRows[p] to productRows[p + 1] - 1
+     */
+    final int[] productRows;
+    final String[] manufacturers;
+    final String[] productCodes;
+    final String[] productNames;
+    final String[] contractNames;
+    /** The entries of row r are rowEntries[r] to rowEntries[r + 1] - 1
+     */
+    final int[] rowEntries;
+    final int[] entryContracts;
+    final double[] entryPrices;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                          Nested Classes                           //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Identifies a row, or a product if contractName is null.
+     */
+    private static class RowKey
+    {
+        final String mfgName;
+        final String productCode;
+        final String contractName;
+
+        RowKey(String mfgName, String productCode, String contractName)
+        {
+            this.mfgName = mfgName;
+            this.productCode = productCode;
+            this.contractName = contractName;
+        }
+
+        public int hashCode()
+        {
+            int hash = mfgName.hashCode();
+            hash = 29 * hash + productCode.hashCode();
+            hash = 29 * hash + (contractName != null ? contractName.hashCode() : 0);
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof RowKey))
+                return false;
+            RowKey other = (RowKey) obj;
+            return mfgName.equals(other.mfgName)
+                    && productCode.equals(other.productCode)
+                    && (contractName == null ? other.contractName == null
+                                             : contractName.equals(other.contractName));
+        }
+    }
+
+    /** A row being collected.
+     */
+    private static class RowBuilder
+    {
+        RowKey key;
+        String productName;
+        int[] contracts = new int[2];
+        double[] prices = new double[2];
+        int size;
+
+        void add(int contract, double price)
+        {
+            if (size == contracts.length)
+            {
+                contracts = Arrays.copyOf(contracts, size * 2);
+                prices = Arrays.copyOf(prices, size * 2);
+            }
+            contracts[size] = contract;
+            prices[size] = price;
+            size++;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private ContractIndex(List<Contract> contracts, List<String> distributors, int[] contractDistributors,
+                          List<List<RowBuilder>> products, int rowCount, int entryCount)
+    {
+        this.contracts = contracts;
+        this.distributors = distributors.toArray(new String[distributors.size()]);
+        this.contractDistributors = contractDistributors;
+        productRows = new int[products.size() + 1];
+        manufacturers = new String[rowCount];
+        productCodes = new String[rowCount];
+        productNames = new String[rowCount];
+        contractNames = new String[rowCount];
+        rowEntries = new int[rowCount + 1];
+        entryContracts = new int[entryCount];
+        entryPrices = new double[entryCount];
+
+        int row = 0;
+        int entry = 0;
+        for (int p = 0; p < products.size(); p++)
+        {
+            productRows[p] = row;
+            for (RowBuilder builder : products.get(p))
+            {
+                manufacturers[row] = builder.key.mfgName;
+                productCodes[row] = builder.key.productCode;
+                productNames[row] = builder.productName;
+                contractNames[row] = builder.key.contractName;
+                rowEntries[row] = entry;
+                System.arraycopy(builder.contracts, 0, entryContracts, entry, builder.size);
+                System.arraycopy(builder.prices, 0, entryPrices, entry, builder.size);
+                entry += builder.size;
+                row++;
+            }
+        }
+        productRows[products.size()] = row;
+        rowEntries[row] = entry;
+    }
+
+    /**
+     * Indexes the line items of a list of contracts.
+     * @param contracts the contracts; the list is kept, and must not change
+     * @return the index
+     */
+    public static ContractIndex build(List<Contract> contracts)
+    {
+        Map<String, Integer> distributorIds = new HashMap<String, Integer>();
+        List<String> distributors = new ArrayList<String>();
+        int[] contractDistributors = new int[contracts.size()];
+        Map<RowKey, RowBuilder> rows = new HashMap<RowKey, RowBuilder>();
+        Map<RowKey, List<RowBuilder>> products = new HashMap<RowKey, List<RowBuilder>>();
+        int entryCount = 0;
+
+        for (int c = 0; c < contracts.size(); c++)
+        {
+            Contract contract = contracts.get(c);
+            Integer distributorId = distributorIds.get(contract.getDistributor());
+            if (distributorId == null)
+            {
+                distributorId = distributors.size();
+                distributors.add(contract.getDistributor());
+                distributorIds.put(contract.getDistributor(), distributorId);
+            }
+            contractDistributors[c] = distributorId;
+            if (contract.getLineItems().isEmpty())
+                continue;
+
+            String contractName = ReportGenerator.contractName(contract);
+            for (ContractLineItem lineItem : contract.getLineItems())
+            {
+                Product product = lineItem.getProduct();
+                RowKey key = new RowKey(product.getManufacturer(), product.productCode(), contractName);
+                RowBuilder row = rows.get(key);
+                if (row == null)
+                {
+                    row = new RowBuilder();
+                    row.key = key;
+                    row.productName = product.getDescription();
+                    rows.put(key, row);
+                    RowKey productKey = new RowKey(key.mfgName, key.productCode, null);
+                    List<RowBuilder> productRows = products.get(productKey);
+                    if (productRows == null)
+                    {
+                        productRows = new ArrayList<RowBuilder>(1);
+                        products.put(productKey, productRows);
+                    }
+                    productRows.add(row);
+                }
+                row.add(c, lineItem.getPrice());
+                entryCount++;
+            }
+        }
+
+        return new ContractIndex(Collections.unmodifiableList(contracts), distributors, contractDistributors,
+                                 new ArrayList<List<RowBuilder>>(products.values()), rows.size(), entryCount);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Queries                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Returns the indexed contracts, in index order.
+     */
+    public List<Contract> getContracts()
+    {
+        return contracts;
+    }
+
+    public int getProductCount()
+    {
+        return productRows.length - 1;
+    }
+
+    public int getRowCount()
+    {
+        return rowEntries.length - 1;
+    }
+
+    /** Returns the number of line items indexed.
+     */
+    public int getEntryCount()
+    {
+        return entryContracts.length;
+    }
+
+    /**
+     * Returns the contracts accepted by a filter.
+     * @param filter the filter, or null to accept all contracts
+     * @return a set of contract indexes
+     */
+    BitSet accept(ContractFilter filter)
+    {
+        BitSet accepted = new BitSet(contracts.size());
+        if (filter == null)
+            accepted.set(0, contracts.size());
+        else
+        {
+            for (int c = 0; c < contracts.size(); c++)
+            {
+                if (filter.accept(contracts.get(c)))
+                    accepted.set(c);
+            }
+        }
+        return accepted;
+    }
+}
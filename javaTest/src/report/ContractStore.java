@@ -0,0 +1,156 @@
+package report;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import support.Contract;
+
+/**
+ *  A contract list indexed by contract dates, so that the contracts in
+ *  effect during a {@link DateRange} are found without scanning the
+ *  whole history.
+ *  <p>
+ *  Contracts are sorted by begin day, and the sorted array is read as
+ *  an implicit balanced search tree: the middle of each range is a node
+ *  whose left and right subtrees are the halves either side of it.  Each
+ *  node records the latest end day in its subtree.  A query skips a
+ *  subtree whose latest end is before the range, and everything right
+ *  of a node that begins after the range, so finding the k overlapping
+ *  contracts takes O(log n + k) steps.  The contracts found are sorted
+ *  back into their original list order, which decides which price wins when
+ *  several contracts price the same row.
+ *  <p>
+ *  A store is immutable and may be shared by threads.
+ */
+public final class ContractStore
+{
+    private final List<Contract> contracts;
+
+    /** Begin and end epoch days, and list position, of the contracts in begin order
+     */
+    private final long[] begins;
+    private final long[] ends;
+    private final int[] positions;
+    /** Latest end day in the subtree whose node is at each sorted position
+     */
+    private final long[] maxEnds;
+
+    /**
+     * Indexes contracts by their dates.
+     * @param contracts the contracts; the list must not change afterwards
+     */
+    public ContractStore(List<Contract> contracts)
+    {
+        this.contracts = contracts;
+        int count = contracts.size();
+        long[] keys = new long[count];
+        long[] contractEnds = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            Contract contract = contracts.get(i);
+            long begin = DateRange.toLocalDate(contract.getBeginDate()).toEpochDay();
+            contractEnds[i] = DateRange.toLocalDate(contract.getEndDate()).toEpochDay();
+            // Epoch days fit in 32 bits, so begin day and position pack into one sortable key.
+            keys[i] = (begin << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        begins = new long[count];
+        ends = new long[count];
+        positions = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            positions[i] = (int) keys[i];
+            begins[i] = keys[i] >> 32;
+            ends[i] = contractEnds[positions[i]];
+        }
+        maxEnds = new long[count];
+        buildMaxEnds(0, count);
+    }
+
+    /** Fills maxEnds for the subtree of a sorted range, returning its latest end.
+     */
+    private long buildMaxEnds(int from, int to)
+    {
+        if (from >= to)
+            return Long.MIN_VALUE;
+        int node = (from + to) >>> 1;
+        long maxEnd = Math.max(ends[node], Math.max(buildMaxEnds(from, node), buildMaxEnds(node + 1, to)));
+        maxEnds[node] = maxEnd;
+        return maxEnd;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Queries                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the contracts in effect on any day of a range.
+     * @param range the days
+     * @return the overlapping contracts, in their original order
+     */
+    public List<Contract> select(DateRange range)
+    {
+        Positions found = new Positions();
+        collect(0, contracts.size(), range.getBegin().toEpochDay(), range.getEnd().toEpochDay(), found);
+        Arrays.sort(found.positions, 0, found.count);
+        List<Contract> selected = new ArrayList<Contract>(found.count);
+        for (int i = 0; i < found.count; i++)
+            selected.add(contracts.get(found.positions[i]));
+        return Collections.unmodifiableList(selected);
+    }
+
+    /** Returns the number of contracts in effect on any day of a range.
+     */
+    public int count(DateRange range)
+    {
+        Positions found = new Positions();
+        collect(0, contracts.size(), range.getBegin().toEpochDay(), range.getEnd().toEpochDay(), found);
+        return found.count;
+    }
+
+    /** Adds the positions of the overlapping contracts in the subtree of a sorted range.
+     */
+    private void collect(int from, int to, long begin, long end, Positions found)
+    {
+        while (from < to)
+        {
+            int node = (from + to) >>> 1;
+            if (maxEnds[node] < begin)
+                return;
+            collect(from, node, begin, end, found);
+            if (begins[node] > end)
+                return;
+            if (ends[node] >= begin)
+                found.add(positions[node]);
+            from = node + 1;
+        }
+    }
+
+    /** Returns all contracts, in their original order.
+     */
+    public List<Contract> getContracts()
+    {
+        return contracts;
+    }
+
+    /** A growable list of contract positions.
+     */
+    private static class Positions
+    {
+        int[] positions = new int[16];
+        int count;
+
+        void add(int position)
+        {
+            if (count == positions.length)
+                positions = Arrays.copyOf(positions, count * 2);
+            positions[count++] = position;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package report;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+import support.Contract;
+
+/**
+ *  An inclusive range of days, such as the window a report covers.
+ *  As a {@link ContractFilter} it accepts the contracts in effect on any
+ *  day of the range.  A range is immutable.
+ */
+public final class DateRange implements ContractFilter
+{
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+    private static final String SEPARATOR = " - ";
+
+    private final LocalDate begin;
+    private final LocalDate end;
+
+    /**
+     * @param begin the first day of the range
+     * @param end the last day of the range
+     */
+    public DateRange(LocalDate begin, LocalDate end)
+    {
+        if (end.isBefore(begin))
+            throw new IllegalArgumentException("Range ends before it begins: " + begin + " to " + end);
+        this.begin = begin;
+        this.end = end;
+    }
+
+    /**
+     * Parses a range as shown in report headers, e.g. "01/26/2015 - 02/08/2015".
+     * @param text the range
+     * @return the range
+     * @throws IllegalArgumentException if the text is not a range
+     */
+    public static DateRange parse(String text)
+    {
+        int separator = text.indexOf(SEPARATOR);
+        if (separator < 0)
+            throw new IllegalArgumentException("Not a date range: " + text);
+        try
+        {
+            return new DateRange(LocalDate.parse(text.substring(0, separator).trim(), DATE_FORMAT),
+                                 LocalDate.parse(text.substring(separator + SEPARATOR.length()).trim(), DATE_FORMAT));
+        }
+        catch (DateTimeParseException e)
+        {
+            throw new IllegalArgumentException("Not a date range: " + text, e);
+        }
+    }
+
+    public LocalDate getBegin()
+    {
+        return begin;
+    }
+
+    public LocalDate getEnd()
+    {
+        return end;
+    }
+
+    /** Returns whether a range of days shares at least one day with this range.
+     */
+    public boolean overlaps(LocalDate otherBegin, LocalDate otherEnd)
+    {
+        return !otherBegin.isAfter(end) && !otherEnd.isBefore(begin);
+    }
+
+    /** Accepts a contract in effect on any day of the range.
+     */
+    public boolean accept(Contract contract)
+    {
+        return overlaps(toLocalDate(contract.getBeginDate()), toLocalDate(contract.getEndDate()));
+    }
+
+    /** Returns the day of a contract date, in the default time zone as contract names show it.
+     */
+    static LocalDate toLocalDate(Date date)
+    {
+        return Instant.ofEpochMilli(date.getTime())
+                .atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    public int hashCode()
+    {
+        return 31 * begin.hashCode() + end.hashCode();
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof DateRange))
+            return false;
+        DateRange other = (DateRange) obj;
+        return begin.equals(other.begin) && end.equals(other.end);
+    }
+
+    /** Returns the range as shown in report headers, e.g. "01/26/2015 - 02/08/2015".
+     */
+    public String toString()
+    {
+        return DATE_FORMAT.format(begin) + SEPARATOR + DATE_FORMAT.format(end);
+    }
+}
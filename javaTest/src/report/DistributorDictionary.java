@@ -0,0 +1,107 @@
+package report;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Assigns dense integer ids to distributor names, in order of first
+ *  appearance, so that prices can refer to distributors by id.  Each id
+ *  also has a rank, its name's position in name order among the names
+ *  seen, so that distributors are ordered by name with an int compare.
+ *  Safe for concurrent use by aggregation threads: ids are assigned
+ *  under a lock, and names and ranks are read without one, from arrays
+ *  replaced whenever a name is added.
+ */
+final class DistributorDictionary
+{
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    /** Name and rank of each id, published before the id is mapped
+     */
+    private volatile String[] names = new String[0];
+    private volatile int[] ranks = new int[0];
+    /** The ids in name order, guarded by the lock
+     */
+    private int[] sortedIds = new int[0];
+    private final Object lock = new Object();
+
+    /**
+     * Returns the id of a distributor, assigning the next id on first sight.
+     * @param name the distributor name
+     * @return the distributor id
+     */
+    int intern(String name)
+    {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        synchronized (lock)
+        {
+            id = ids.get(name);
+            if (id == null)
+            {
+                id = add(name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /** Adds a name under the lock, and publishes its name and rank.
+     */
+    private int add(String name)
+    {
+        String[] oldNames = names;
+        int id = oldNames.length;
+        String[] newNames = Arrays.copyOf(oldNames, id + 1);
+        newNames[id] = name;
+
+        // Insert the id among the sorted ids, and rank them again.
+        int low = 0;
+        int high = id - 1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if (oldNames[sortedIds[middle]].compareTo(name) < 0)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        int[] newSortedIds = new int[id + 1];
+        System.arraycopy(sortedIds, 0, newSortedIds, 0, low);
+        newSortedIds[low] = id;
+        System.arraycopy(sortedIds, low, newSortedIds, low + 1, id - low);
+        int[] newRanks = new int[id + 1];
+        for (int rank = 0; rank <= id; rank++)
+            newRanks[newSortedIds[rank]] = rank;
+
+        sortedIds = newSortedIds;
+        names = newNames;
+        ranks = newRanks;
+        return id;
+    }
+
+    /** Returns the name of a distributor id.
+     */
+    String name(int id)
+    {
+        return names[id];
+    }
+
+    /**
+     * Orders two distributor ids by name, without comparing the names.
+     * Both ranks are read from one version of the ranks, as adding a name
+     * shifts the ranks after it.
+     */
+    int compare(int id1, int id2)
+    {
+        int[] currentRanks = ranks;
+        return Integer.compare(currentRanks[id1], currentRanks[id2]);
+    }
+
+    /** Returns the number of distributors seen.
+     */
+    int size()
+    {
+        return names.length;
+    }
+}
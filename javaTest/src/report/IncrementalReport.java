@@ -0,0 +1,544 @@
+package report;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import support.Contract;
+import support.ContractLineItem;
+import support.Product;
+import support.Report;
+
+/**
+ *  A price comparison report kept up to date as contracts change.
+ *  <p>
+ *  The aggregated prices are kept live, keyed by report row.  Each event
+ *  re-ranks only the products it touches and returns the rows that
+ *  changed.  The report matches what ReportGenerator.generateReport
+ *  produces for the current contracts, in the order they were first added:
+ *  where several contracts give a price for the same row and distributor,
+ *  the earliest added contract wins.
+ *  <p>
+ *  Not thread-safe; events must be applied one at a time.
+ */
+public class IncrementalReport
+{
+    private final boolean compact;
+    private final String title;
+    private final String subtitle;
+    private final String dates;
+
+    private long nextContractSequence;
+    private final Map<Contract, ContractState> contracts = new IdentityHashMap<Contract, ContractState>();
+    private final Map<ContractLineItem, Contribution> contributions =
+                new IdentityHashMap<ContractLineItem, Contribution>();
+    private final Map<RowKey, LiveRow> rows = new HashMap<RowKey, LiveRow>();
+    private final Map<RowKey, LiveGroup> groups = new HashMap<RowKey, LiveGroup>();
+
+    /** Number of line items per distributor; each distributor counted is a report column.
+     */
+    private final SortedMap<String, Integer> distributorCounts = new TreeMap<String, Integer>();
+    private List<String> distributors = new ArrayList<String>();
+    private Map<String, Integer> distributorColumns = new HashMap<String, Integer>();
+
+    /** Changes collected for the event being applied.
+     */
+    private Set<LiveGroup> dirtyGroups = new HashSet<LiveGroup>();
+    private List<ReportRow> removedRows = new ArrayList<ReportRow>();
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                          Nested Classes                           //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** The rows changed by one event.
+     */
+    public static class ReportDelta
+    {
+        private final Report header;
+        private final boolean columnsChanged;
+        private final List<ReportRow> changedRows;
+        private final List<ReportRow> removedRows;
+
+        ReportDelta(Report header, boolean columnsChanged, List<ReportRow> changedRows,
+                    List<ReportRow> removedRows)
+        {
+            this.header = header;
+            this.columnsChanged = columnsChanged;
+            this.changedRows = changedRows;
+            this.removedRows = removedRows;
+        }
+
+        /** Returns a Report with the current title and columns but no rows.
+         */
+        public Report getHeader()
+        {
+            return header;
+        }
+
+        /** Whether the distributor columns changed, in which case every row is in the changed rows.
+         */
+        public boolean isColumnsChanged()
+        {
+            return columnsChanged;
+        }
+
+        /** Returns the new or updated rows, in report order.  They replace
+         * any earlier rows with the same manufacturer, product and contract.
+         */
+        public List<ReportRow> getChangedRows()
+        {
+            return changedRows;
+        }
+
+        /** Returns the rows, as previously returned, that are no longer in the report.
+         */
+        public List<ReportRow> getRemovedRows()
+        {
+            return removedRows;
+        }
+    }
+
+    private static class ContractState
+    {
+        long sequence;
+        int nextLine;
+        String contractName;
+        String distributor;
+        List<ContractLineItem> lineItems = new ArrayList<ContractLineItem>();
+    }
+
+    /** A line item's price, ordered by contract and position in the contract.
+     */
+    private static class Contribution
+    {
+        /** The contract that added the line item
+         */
+        ContractState state;
+        long order;
+        LiveRow row;
+        String distributor;
+        double price;
+        String productName;
+    }
+
+    /** Identifies a report row, or a product if contractName is null.
+     */
+    private static class RowKey
+    {
+        final String mfgName;
+        final String productCode;
+        final String contractName;
+
+        RowKey(String mfgName, String productCode, String contractName)
+        {
+            this.mfgName = mfgName;
+            this.productCode = productCode;
+            this.contractName = contractName;
+        }
+
+        public int hashCode()
+        {
+            int hash = mfgName.hashCode();
+            hash = 29 * hash + productCode.hashCode();
+            hash = 29 * hash + (contractName != null ? contractName.hashCode() : 0);
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof RowKey))
+                return false;
+            RowKey other = (RowKey) obj;
+            return mfgName.equals(other.mfgName)
+                    && productCode.equals(other.productCode)
+                    && (contractName == null ? other.contractName == null
+                                             : contractName.equals(other.contractName));
+        }
+    }
+
+    private static class LiveRow
+    {
+        RowKey key;
+        LiveGroup group;
+        TreeMap<Long, Contribution> contributions = new TreeMap<Long, Contribution>();
+        ReportRow reportRow;
+    }
+
+    /** The rows of one product, by contract name ("" in compact mode).
+     */
+    private static class LiveGroup implements Comparable<LiveGroup>
+    {
+        RowKey key;
+        String productName;
+        TreeMap<String, LiveRow> rows = new TreeMap<String, LiveRow>();
+
+        /** Compare by MFG/product name/product code, as report rows are ordered.
+         */
+        public int compareTo(LiveGroup other)
+        {
+            int i = key.mfgName.compareTo(other.key.mfgName);
+            if (i == 0)
+            {
+                i = productName.compareTo(other.productName);
+                if (i == 0)
+                    i = key.productCode.compareTo(other.key.productCode);
+            }
+            return i;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructs an empty report.
+     * @param compact whether to show multiple prices on each report row
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     */
+    public IncrementalReport(boolean compact, String customer, String dates)
+    {
+        this.compact = compact;
+        this.title = customer;
+        this.subtitle = ReportGenerator.subtitle(compact);
+        this.dates = dates;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Events                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds all contracts of a list, in order.
+     * @return the changes, which for a new report are all rows
+     */
+    public ReportDelta addContracts(List<Contract> contractList)
+    {
+        for (Contract contract : contractList)
+            applyContract(contract);
+        return finish();
+    }
+
+    /**
+     * Adds a contract with its line items.  A contract already added is updated.
+     */
+    public ReportDelta addContract(Contract contract)
+    {
+        applyContract(contract);
+        return finish();
+    }
+
+    /**
+     * Re-reads a contract and all its line items, e.g. after its dates changed
+     * or line items were added or removed.  A contract not yet added is added.
+     */
+    public ReportDelta updateContract(Contract contract)
+    {
+        applyContract(contract);
+        return finish();
+    }
+
+    /**
+     * Removes a contract and its prices.
+     */
+    public ReportDelta removeContract(Contract contract)
+    {
+        ContractState state = contracts.remove(contract);
+        if (state != null)
+        {
+            for (ContractLineItem lineItem : state.lineItems)
+                removeContribution(contributions.remove(lineItem));
+        }
+        return finish();
+    }
+
+    /**
+     * Adds a line item appended to a contract with Contract.addLineItem.
+     */
+    public ReportDelta addLineItem(ContractLineItem lineItem)
+    {
+        Contract contract = lineItem.getContractOwner();
+        ContractState state = contracts.get(contract);
+        if (state == null)
+            applyContract(contract);
+        else if (!contributions.containsKey(lineItem))
+        {
+            state.lineItems.add(lineItem);
+            addContribution(state, lineItem, order(state, state.nextLine++));
+        }
+        return finish();
+    }
+
+    /**
+     * Re-reads a line item, e.g. after its price changed.
+     */
+    public ReportDelta updateLineItem(ContractLineItem lineItem)
+    {
+        Contribution contribution = contributions.get(lineItem);
+        if (contribution == null)
+            return addLineItem(lineItem);
+        ContractState state = contracts.get(lineItem.getContractOwner());
+        removeContribution(contribution);
+        if (state != null)
+            addContribution(state, lineItem, contribution.order);
+        else
+            contributions.remove(lineItem);
+        return finish();
+    }
+
+    /**
+     * Removes a line item, which may already have been removed from the contract.
+     * The line item is removed from the contract that added it, which is
+     * looked up rather than taken from the caller.
+     * @param contract the contract the line item belonged to
+     * @param lineItem the line item
+     */
+    public ReportDelta removeLineItem(Contract contract, ContractLineItem lineItem)
+    {
+        Contribution contribution = contributions.remove(lineItem);
+        if (contribution != null)
+        {
+            contribution.state.lineItems.remove(lineItem);
+            removeContribution(contribution);
+        }
+        return finish();
+    }
+
+    /**
+     * Returns the whole report as it stands.
+     */
+    public Report toReport()
+    {
+        Report reportModel = createHeader();
+        List<LiveGroup> sortedGroups = new ArrayList<LiveGroup>(groups.values());
+        Collections.sort(sortedGroups);
+        for (LiveGroup group : sortedGroups)
+        {
+            for (LiveRow row : group.rows.values())
+                reportModel.addRow(row.reportRow);
+        }
+        return reportModel;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Aggregation                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Adds or re-reads a contract, keeping its place in the contract order.
+     */
+    private void applyContract(Contract contract)
+    {
+        ContractState state = contracts.get(contract);
+        if (state == null)
+        {
+            state = new ContractState();
+            state.sequence = nextContractSequence++;
+            contracts.put(contract, state);
+        }
+        else
+        {
+            for (ContractLineItem lineItem : state.lineItems)
+                removeContribution(contributions.remove(lineItem));
+            state.lineItems.clear();
+            state.nextLine = 0;
+        }
+        state.contractName = ReportGenerator.contractName(contract);
+        state.distributor = contract.getDistributor();
+        for (ContractLineItem lineItem : contract.getLineItems())
+        {
+            state.lineItems.add(lineItem);
+            addContribution(state, lineItem, order(state, state.nextLine++));
+        }
+    }
+
+    private static long order(ContractState state, int line)
+    {
+        return (state.sequence << 32) | line;
+    }
+
+    private void addContribution(ContractState state, ContractLineItem lineItem, long order)
+    {
+        Product product = lineItem.getProduct();
+        RowKey key = new RowKey(product.getManufacturer(), product.productCode(),
+                                compact ? null : state.contractName);
+        LiveRow row = rows.get(key);
+        if (row == null)
+        {
+            row = new LiveRow();
+            row.key = key;
+            RowKey productKey = new RowKey(key.mfgName, key.productCode, null);
+            LiveGroup group = groups.get(productKey);
+            if (group == null)
+            {
+                group = new LiveGroup();
+                group.key = productKey;
+                group.productName = product.getDescription();
+                groups.put(productKey, group);
+            }
+            row.group = group;
+            group.rows.put(key.contractName == null ? "" : key.contractName, row);
+            rows.put(key, row);
+        }
+
+        Contribution contribution = new Contribution();
+        contribution.state = state;
+        contribution.order = order;
+        contribution.row = row;
+        contribution.distributor = state.distributor;
+        contribution.price = lineItem.getPrice();
+        contribution.productName = product.getDescription();
+        row.contributions.put(order, contribution);
+        contributions.put(lineItem, contribution);
+
+        Integer count = distributorCounts.get(state.distributor);
+        distributorCounts.put(state.distributor, count == null ? 1 : count + 1);
+        dirtyGroups.add(row.group);
+    }
+
+    private void removeContribution(Contribution contribution)
+    {
+        if (contribution == null)
+            return;
+        LiveRow row = contribution.row;
+        row.contributions.remove(contribution.order);
+
+        int count = distributorCounts.get(contribution.distributor);
+        if (count == 1)
+            distributorCounts.remove(contribution.distributor);
+        else
+            distributorCounts.put(contribution.distributor, count - 1);
+
+        LiveGroup group = row.group;
+        dirtyGroups.add(group);
+        if (row.contributions.isEmpty())
+        {
+            rows.remove(row.key);
+            group.rows.remove(row.key.contractName == null ? "" : row.key.contractName);
+            if (row.reportRow != null)
+                removedRows.add(row.reportRow);
+            if (group.rows.isEmpty())
+                groups.remove(group.key);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Ranking                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Re-ranks the products changed by an event and collects the delta.
+     */
+    private ReportDelta finish()
+    {
+        boolean columnsChanged = !distributors.equals(new ArrayList<String>(distributorCounts.keySet()));
+        Set<LiveGroup> changed = dirtyGroups;
+        if (columnsChanged)
+        {
+            distributors = new ArrayList<String>(distributorCounts.keySet());
+            distributorColumns = new HashMap<String, Integer>();
+            for (int i = 0; i < distributors.size(); i++)
+                distributorColumns.put(distributors.get(i), i);
+            changed = new HashSet<LiveGroup>(groups.values());
+        }
+
+        List<LiveGroup> sortedGroups = new ArrayList<LiveGroup>(changed.size());
+        for (LiveGroup group : changed)
+        {
+            // Skip groups emptied by the event.
+            if (groups.get(group.key) == group)
+            {
+                rankGroup(group);
+                sortedGroups.add(group);
+            }
+        }
+        Collections.sort(sortedGroups);
+        List<ReportRow> changedRows = new ArrayList<ReportRow>();
+        for (LiveGroup group : sortedGroups)
+        {
+            for (LiveRow row : group.rows.values())
+                changedRows.add(row.reportRow);
+        }
+
+        ReportDelta delta = new ReportDelta(createHeader(), columnsChanged, changedRows, removedRows);
+        dirtyGroups = new HashSet<LiveGroup>();
+        removedRows = new ArrayList<ReportRow>();
+        return delta;
+    }
+
+    /**
+     * Rebuilds the report rows of a product and ranks its prices, as
+     * ReportGenerator does: rows in contract name order, each row's
+     * prices in contract order with the first price per distributor kept.
+     */
+    private void rankGroup(LiveGroup group)
+    {
+        int asize = distributors.size();
+        int priceCount = 0;
+        for (LiveRow row : group.rows.values())
+            priceCount += row.contributions.size();
+        double[] prices = new double[priceCount];
+        int[] columns = new int[priceCount];
+        ReportRow[] priceRows = new ReportRow[priceCount];
+        int n = 0;
+
+        group.productName = null;
+        Set<String> rowDistributors = new HashSet<String>();
+        for (LiveRow row : group.rows.values())
+        {
+            Contribution first = row.contributions.firstEntry().getValue();
+            if (group.productName == null)
+                group.productName = first.productName;
+            ReportRow reportRow = new ReportRow(asize);
+            reportRow.setManufacturerName(row.key.mfgName);
+            reportRow.setProductCode(row.key.productCode);
+            reportRow.setProductName(first.productName);
+            reportRow.setContractName(row.key.contractName);
+
+            rowDistributors.clear();
+            for (Contribution contribution : row.contributions.values())
+            {
+                if (!rowDistributors.add(contribution.distributor))
+                    continue;
+                int idx = distributorColumns.get(contribution.distributor);
+                reportRow.setDistributorPrice(idx, contribution.price);
+                prices[n] = contribution.price;
+                columns[n] = idx;
+                priceRows[n] = reportRow;
+                n++;
+            }
+            row.reportRow = reportRow;
+        }
+
+        int[] ordinals = new int[n];
+        PriceRanking.rank(prices, n, ordinals);
+        for (int i = 0; i < n; i++)
+            priceRows[i].setOrdinal(columns[i], ordinals[i]);
+    }
+
+    private Report createHeader()
+    {
+        return ReportGenerator.createReportHeader(compact, title, subtitle, dates, distributors);
+    }
+}
@@ -0,0 +1,412 @@
+package report;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import support.ReportMetrics;
+import support.ReportStage;
+
+/**
+ *  Streams contract line items from a CSV file straight into the
+ *  InputData of a report, without building Contract objects.
+ *  <p>
+ *  Each record holds one line item:
+ *  <pre>
+ *  distributor,contract,begin date,end date,manufacturer,product code,product name,price
+ *  </pre>
+ *  Dates are ISO (yyyy-MM-dd); fields may be quoted, with "" escaping a
+ *  quote.  Records are aggregated in file order, so where several lines
+ *  give a price for the same row and distributor, the first line wins,
+ *  as the first contract of a list does.
+ *  <p>
+ *  The file is read through a reusable buffer, and each field is
+ *  parsed in place: repeated text (distributors, manufacturers, product
+ *  codes, names and dates) is interned straight from its bytes, so only
+ *  the first occurrence of a value allocates a String.  An importer is
+ *  not thread-safe.
+ */
+public class LineItemCsvImporter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FIELD_COUNT = 8;
+
+    private static final int DISTRIBUTOR = 0;
+    private static final int CONTRACT = 1;
+    private static final int BEGIN_DATE = 2;
+    private static final int END_DATE = 3;
+    private static final int MANUFACTURER = 4;
+    private static final int PRODUCT_CODE = 5;
+    private static final int PRODUCT_NAME = 6;
+    private static final int PRICE = 7;
+
+    /** Powers of ten that are exact doubles.
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static
+    {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final ReportGenerator generator;
+    private final boolean header;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final StringTable strings = new StringTable();
+    private final Map<String, String> contractNames = new HashMap<String, String>();
+
+    /** The unescaped bytes of the current record, and the end of each field.
+     */
+    private byte[] record = new byte[256];
+    private int recordLength;
+    private final int[] fieldEnds = new int[FIELD_COUNT];
+    private int fieldCount;
+
+    /** The contract of the previous record, whose lines usually follow each other.
+     */
+    private String lastDistributor;
+    private int lastDistributorId;
+    private String lastContract;
+    private String lastBeginDate;
+    private String lastEndDate;
+    private String lastContractName;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param generator the generator whose InputData receive the line items
+     * @param header whether the first line of a file is a header to skip
+     */
+    public LineItemCsvImporter(ReportGenerator generator, boolean header)
+    {
+        this.generator = generator;
+        this.header = header;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Import                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds the line items of a file to the InputData.
+     * @param file the CSV file
+     * @param inputData the input data to populate
+     * @return the number of line items read
+     */
+    public long importFile(Path file, ReportGenerator.InputData inputData)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            return importChannel(channel, inputData, file.toString());
+        }
+    }
+
+    /**
+     * Adds the line items read from a channel to the InputData.
+     * @param channel the channel to read to its end; it is not closed
+     * @param inputData the input data to populate
+     * @param source the name of the input, for error messages
+     * @return the number of line items read
+     */
+    public long importChannel(ReadableByteChannel channel, ReportGenerator.InputData inputData, String source)
+        throws IOException
+    {
+        ReportMetrics.StageTimer timer = ReportGenerator.startStage(inputData, ReportStage.INGESTION, false);
+        long lineNumber = 1;
+        long lineItemCount = 0;
+        boolean skip = header;
+        boolean quoted = false;
+        boolean quotePending = false;
+        recordLength = 0;
+        fieldCount = 0;
+        // Distributor ids belong to an InputData, so the previous import's cannot be reused.
+        lastDistributor = null;
+        lastContract = null;
+        lastBeginDate = null;
+        lastEndDate = null;
+        lastContractName = null;
+
+        buffer.clear();
+        while (channel.read(buffer) >= 0)
+        {
+            buffer.flip();
+            byte[] bytes = buffer.array();
+            int end = buffer.limit();
+            for (int i = buffer.position(); i < end; i++)
+            {
+                byte b = bytes[i];
+                if (quotePending)
+                {
+                    // A quote inside a quoted field either escapes
+                    // another quote or ends the quoting.
+                    quotePending = false;
+                    if (b == '"')
+                    {
+                        append(b);
+                        continue;
+                    }
+                    quoted = false;
+                }
+                if (quoted)
+                {
+                    if (b == '"')
+                        quotePending = true;
+                    else
+                        append(b);
+                    continue;
+                }
+                switch (b)
+                {
+                case '"':
+                    quoted = true;
+                    break;
+                case ',':
+                    endField(source, lineNumber);
+                    break;
+                case '\r':
+                    break;
+                case '\n':
+                    if (skip)
+                        skip = false;
+                    else if (endRecord(inputData, source, lineNumber))
+                        lineItemCount++;
+                    recordLength = 0;
+                    fieldCount = 0;
+                    lineNumber++;
+                    break;
+                default:
+                    append(b);
+                }
+            }
+            buffer.clear();
+        }
+        if (quoted && !quotePending)
+            throw new IOException(source + ":" + lineNumber + ": unterminated quoted field");
+        if (!skip && endRecord(inputData, source, lineNumber))
+            lineItemCount++;
+        if (timer != null)
+            generator.finishIngestion(inputData, timer, 0, lineItemCount);
+        return lineItemCount;
+    }
+
+    private void append(byte b)
+    {
+        if (recordLength == record.length)
+            record = Arrays.copyOf(record, record.length * 2);
+        record[recordLength++] = b;
+    }
+
+    private void endField(String source, long lineNumber)
+        throws IOException
+    {
+        if (fieldCount == FIELD_COUNT - 1)
+            throw new IOException(source + ":" + lineNumber + ": more than " + FIELD_COUNT + " fields");
+        fieldEnds[fieldCount++] = recordLength;
+    }
+
+    /**
+     * Aggregates the current record.
+     * @return false for a blank line, which is skipped
+     */
+    private boolean endRecord(ReportGenerator.InputData inputData, String source, long lineNumber)
+        throws IOException
+    {
+        if (fieldCount == 0 && recordLength == 0)
+            return false;
+        fieldEnds[fieldCount++] = recordLength;
+        if (fieldCount != FIELD_COUNT)
+            throw new IOException(source + ":" + lineNumber + ": expected " + FIELD_COUNT +
+                                  " fields, found " + fieldCount);
+
+        String distributor = field(DISTRIBUTOR);
+        if (distributor != lastDistributor)
+        {
+            lastDistributorId = generator.distributorId(inputData, distributor);
+            lastDistributor = distributor;
+        }
+        String contractName = null;
+        if (!inputData.compact)
+            contractName = contractName(source, lineNumber);
+        double price = parsePrice(source, lineNumber);
+        generator.addLineItem(inputData, lastDistributorId, contractName, field(MANUFACTURER),
+                              field(PRODUCT_CODE), field(PRODUCT_NAME), price);
+        return true;
+    }
+
+    /** Returns the interned text of a field of the current record.
+     */
+    private String field(int field)
+    {
+        int start = field == 0 ? 0 : fieldEnds[field - 1];
+        return strings.intern(record, start, fieldEnds[field]);
+    }
+
+    /** Returns the contract name of the current record, reusing the previous record's if it is the same.
+     */
+    private String contractName(String source, long lineNumber)
+        throws IOException
+    {
+        String contract = field(CONTRACT);
+        String beginDate = field(BEGIN_DATE);
+        String endDate = field(END_DATE);
+        if (contract != lastContract || beginDate != lastBeginDate || endDate != lastEndDate)
+        {
+            String name;
+            try
+            {
+                name = ReportGenerator.contractName(contract, LocalDate.parse(beginDate),
+                                                    LocalDate.parse(endDate));
+            }
+            catch (DateTimeParseException e)
+            {
+                throw new IOException(source + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+            String shared = contractNames.get(name);
+            if (shared == null)
+            {
+                shared = name;
+                contractNames.put(name, name);
+            }
+            lastContract = contract;
+            lastBeginDate = beginDate;
+            lastEndDate = endDate;
+            lastContractName = shared;
+        }
+        return lastContractName;
+    }
+
+    /**
+     * Parses the price of the current record.  Plain decimals of up to
+     * 15 digits are converted exactly, by one correctly rounded division
+     * of exact doubles; anything else goes through Double.parseDouble.
+     */
+    private double parsePrice(String source, long lineNumber)
+        throws IOException
+    {
+        int start = fieldEnds[PRICE - 1];
+        int end = fieldEnds[PRICE];
+        int i = start;
+        boolean negative = i < end && record[i] == '-';
+        if (negative)
+            i++;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++)
+        {
+            byte b = record[i];
+            if (b >= '0' && b <= '9')
+            {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0)
+                    fractionDigits++;
+            }
+            else if (b == '.' && fractionDigits < 0)
+                fractionDigits = 0;
+            else
+                break;
+        }
+        if (i == end && digits > 0 && digits <= 15)
+        {
+            double price = mantissa;
+            if (fractionDigits > 0)
+                price /= POWERS_OF_TEN[fractionDigits];
+            return negative ? -price : price;
+        }
+
+        String text = new String(record, start, end - start, StandardCharsets.UTF_8);
+        try
+        {
+            return Double.parseDouble(text);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException(source + ":" + lineNumber + ": bad price \"" + text + "\"", e);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            String Table                           //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * An open-addressing table of strings keyed by their UTF-8 bytes,
+     * so that a repeated value is found without decoding it.
+     */
+    private static class StringTable
+    {
+        private byte[][] keys = new byte[1024][];
+        private String[] values = new String[1024];
+        private int[] hashes = new int[1024];
+        private int size;
+
+        String intern(byte[] bytes, int from, int to)
+        {
+            int hash = 1;
+            for (int i = from; i < to; i++)
+                hash = 31 * hash + bytes[i];
+            int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != null)
+            {
+                if (hashes[slot] == hash && Arrays.equals(keys[slot], 0, keys[slot].length, bytes, from, to))
+                    return values[slot];
+                slot = (slot + 1) & mask;
+            }
+
+            String value = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+            keys[slot] = Arrays.copyOfRange(bytes, from, to);
+            values[slot] = value;
+            hashes[slot] = hash;
+            if (++size * 2 > keys.length)
+                grow();
+            return value;
+        }
+
+        private void grow()
+        {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            int[] oldHashes = hashes;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+            hashes = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldKeys[i] == null)
+                    continue;
+                int hash = oldHashes[i];
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (keys[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                hashes[slot] = hash;
+            }
+        }
+    }
+}
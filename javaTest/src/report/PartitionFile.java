@@ -0,0 +1,231 @@
+package report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rows of one partition of a report, as a worker process writes
+ * them for {@link PartitionedReportGenerator} to merge.
+ * <p>
+ * Layout, big-endian: magic, the distributor names of the partition's
+ * price columns, sorted; then each product group in report order as a
+ * presence flag, manufacturer, the product name the group sorts by,
+ * product code and row count, followed by its rows: product name,
+ * contract name (flag and text, absent in a compact report) and price
+ * count, with the column, price and ordinal of each price.  A flag of
+ * false ends the file.  Strings are modified UTF-8.
+ */
+class PartitionFile
+{
+    static final int MAGIC = 0x50435054;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Writer                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    static class Writer implements ReportGenerator.GroupSink, Closeable
+    {
+        private final DataOutputStream out;
+
+        Writer(Path file)
+            throws IOException
+        {
+            this(file, BUFFER_SIZE);
+        }
+
+        /**
+         * @param file the file to write
+         * @param bufferSize the size of the output buffer
+         */
+        Writer(Path file, int bufferSize)
+            throws IOException
+        {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), bufferSize));
+        }
+
+        /** Starts the file with the partition's distributors, sorted.
+         */
+        public void begin(List<String> distributors)
+            throws IOException
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(distributors.size());
+            for (String distributor : distributors)
+                out.writeUTF(distributor);
+        }
+
+        /** Writes the ranked rows of one product group.
+         */
+        public void group(String manufacturer, String productName, String productCode, List<ReportRow> rows)
+            throws IOException
+        {
+            out.writeBoolean(true);
+            out.writeUTF(manufacturer);
+            out.writeUTF(productName);
+            out.writeUTF(productCode);
+            out.writeInt(rows.size());
+            for (ReportRow row : rows)
+            {
+                out.writeUTF(row.getProductName());
+                out.writeBoolean(row.getContractName() != null);
+                if (row.getContractName() != null)
+                    out.writeUTF(row.getContractName());
+                out.writeInt(row.priceCount());
+                for (int i = 0; i < row.priceCount(); i++)
+                {
+                    int column = row.priceColumn(i);
+                    out.writeInt(column);
+                    out.writeDouble(row.getPrice(column));
+                    out.writeInt(row.getOrdinal(column));
+                }
+            }
+        }
+
+        public void end()
+            throws IOException
+        {
+            out.writeBoolean(false);
+        }
+
+        public void close()
+            throws IOException
+        {
+            out.close();
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Reader                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads a partition file one product group at a time.  The group
+     * read last is described by the reader's fields until the next call
+     * to {@link #nextGroup()}.
+     */
+    static class Reader implements Closeable
+    {
+        private final DataInputStream in;
+        private final List<String> distributors;
+        /** Report column of each of the partition's columns
+         */
+        private int[] columns;
+        private int columnCount;
+
+        String manufacturer;
+        String productName;
+        String productCode;
+        private int rowCount;
+
+        /**
+         * @param file the file to read
+         * @param bufferSize the size of the input buffer
+         */
+        Reader(Path file, int bufferSize)
+            throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), bufferSize));
+            try
+            {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a report partition file: " + file);
+                int count = in.readInt();
+                distributors = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++)
+                    distributors.add(in.readUTF());
+            }
+            catch (IOException e)
+            {
+                in.close();
+                throw e;
+            }
+        }
+
+        List<String> getDistributors()
+        {
+            return distributors;
+        }
+
+        /**
+         * Sets the report columns the partition's columns are read into.
+         * @param columns the report column of each of the partition's distributors
+         * @param columnCount the number of report price columns
+         */
+        void setColumns(int[] columns, int columnCount)
+        {
+            this.columns = columns;
+            this.columnCount = columnCount;
+        }
+
+        /**
+         * Reads the header of the next product group, skipping the rows
+         * of the current one if they were not read.
+         * @return false at the end of the file
+         */
+        boolean nextGroup()
+            throws IOException
+        {
+            while (rowCount > 0)
+                readRow();
+            if (!in.readBoolean())
+                return false;
+            manufacturer = in.readUTF();
+            productName = in.readUTF();
+            productCode = in.readUTF();
+            rowCount = in.readInt();
+            return true;
+        }
+
+        /** Reads the rows of the current product group.
+         */
+        List<ReportRow> readRows()
+            throws IOException
+        {
+            List<ReportRow> rows = new ArrayList<ReportRow>(rowCount);
+            while (rowCount > 0)
+                rows.add(readRow());
+            return rows;
+        }
+
+        private ReportRow readRow()
+            throws IOException
+        {
+            ReportRow row = new ReportRow(columnCount);
+            row.setManufacturerName(manufacturer);
+            row.setProductCode(productCode);
+            row.setProductName(in.readUTF());
+            if (in.readBoolean())
+                row.setContractName(in.readUTF());
+            int priceCount = in.readInt();
+            for (int i = 0; i < priceCount; i++)
+            {
+                int column = columns[in.readInt()];
+                row.setDistributorPrice(column, in.readDouble());
+                row.setOrdinal(column, in.readInt());
+            }
+            rowCount--;
+            return row;
+        }
+
+        public void close()
+            throws IOException
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package report;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import support.ContractSnapshot;
+
+/**
+ *  The worker process of a {@link PartitionedReportGenerator}: reads a
+ *  partition's contracts from a contract snapshot, generates the
+ *  partition's rows and writes them to a {@link PartitionFile}.
+ *  <p>
+ *  Arguments: compact (true/false), the number of lowest prices kept
+ *  per product or 0 for all, the contract snapshot and the partition
+ *  file to write.  Exits with status 1 if the partition fails.
+ */
+public final class PartitionWorker
+{
+    private PartitionWorker()
+    {
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length != 4)
+        {
+            System.err.println("Usage: PartitionWorker compact maxPrices contractSnapshot partitionFile");
+            System.exit(2);
+        }
+        try
+        {
+            run(Boolean.parseBoolean(args[0]), Integer.parseInt(args[1]), Paths.get(args[2]), Paths.get(args[3]));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    static void run(boolean compact, int maxPrices, Path contractFile, Path partitionFile)
+        throws IOException
+    {
+        ReportGenerator generator = new ReportGenerator();
+        ReportGenerator.InputData inputData = generator.createInputData(compact, maxPrices, null, null);
+        ContractSnapshot snapshot = ContractSnapshot.open(contractFile);
+        try
+        {
+            generator.prepareInputData(snapshot, inputData);
+        }
+        finally
+        {
+            snapshot.close();
+        }
+
+        PartitionFile.Writer out = new PartitionFile.Writer(partitionFile);
+        try
+        {
+            generator.writeGroups(inputData, out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package report;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import support.Contract;
+import support.ContractLineItem;
+import support.ContractSnapshot;
+import support.Product;
+import support.Report;
+import support.ReportSink;
+
+/**
+ *  Generates a report in several worker processes, so that no one JVM
+ *  holds all the staged rows.
+ *  <p>
+ *  Line items are partitioned by a hash of manufacturer and product code,
+ *  the unit prices are ranked within, so each product group is produced
+ *  whole by one partition.  Each partition's contracts, in their original
+ *  order, are written to a {@link ContractSnapshot} file, and a
+ *  {@link PartitionWorker} JVM is started for each.  The workers write
+ *  their rows in report order to {@link PartitionFile}s; these are merged
+ *  group by group on manufacturer, product name and product code, and
+ *  their price columns are mapped onto the union of their distributors.
+ *  The result is the same report ReportGenerator produces in one process.
+ *  <p>
+ *  The files live in a work directory and are deleted when the report is
+ *  done.  Workers run with the class path of this JVM plus any JVM
+ *  options given, e.g. a heap limit.
+ */
+public class PartitionedReportGenerator
+{
+    private final int partitions;
+    private final Path workDirectory;
+    private final List<String> jvmOptions;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param partitions the number of worker processes
+     * @param workDirectory the directory for partition files
+     */
+    public PartitionedReportGenerator(int partitions, Path workDirectory)
+    {
+        this(partitions, workDirectory, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param partitions the number of worker processes
+     * @param workDirectory the directory for partition files
+     * @param jvmOptions options for the worker JVMs, e.g. "-Xmx2g"
+     */
+    public PartitionedReportGenerator(int partitions, Path workDirectory, List<String> jvmOptions)
+    {
+        if (partitions < 1)
+            throw new IllegalArgumentException("partitions < 1: " + partitions);
+        this.partitions = partitions;
+        this.workDirectory = workDirectory;
+        this.jvmOptions = new ArrayList<String>(jvmOptions);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                         Report Generation                         //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Generates a Report given a list of contracts.
+     * @param contracts the contracts to search for distributor prices
+     * @param compact whether to show multiple prices on each report row
+     * @param maxPrices the number of lowest prices to show per product, or 0 for all
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @return a Report object
+     */
+    public Report generateReport(List<Contract> contracts, boolean compact, int maxPrices, String customer,
+                                 String dates)
+        throws IOException
+    {
+        ReportCollector collector = new ReportCollector();
+        generateReport(contracts, compact, maxPrices, customer, dates, collector);
+        return collector.report;
+    }
+
+    /**
+     * Generates a report given a list of contracts, writing the merged
+     * rows to a sink one product group at a time.
+     * @param contracts the contracts to search for distributor prices
+     * @param compact whether to show multiple prices on each report row
+     * @param maxPrices the number of lowest prices to show per product, or 0 for all
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @param sink the destination of the report; it is not closed
+     */
+    public void generateReport(List<Contract> contracts, boolean compact, int maxPrices, String customer,
+                               String dates, ReportSink sink)
+        throws IOException
+    {
+        if (maxPrices < 0)
+            throw new IllegalArgumentException("maxPrices < 0: " + maxPrices);
+        Files.createDirectories(workDirectory);
+        List<Path> files = new ArrayList<Path>();
+        try
+        {
+            Path[] partitionFiles = new Path[partitions];
+            for (int i = 0; i < partitions; i++)
+            {
+                files.add(Files.createTempFile(workDirectory, "partition" + i + ".", ".contracts"));
+                partitionFiles[i] = Files.createTempFile(workDirectory, "partition" + i + ".", ".rows");
+                files.add(partitionFiles[i]);
+            }
+            writeContracts(contracts, files);
+            runWorkers(compact, maxPrices, files);
+            merge(partitionFiles, PartitionFile.BUFFER_SIZE, compact, maxPrices, customer, dates, sink);
+        }
+        finally
+        {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    /** Returns the partition of a product.
+     */
+    int partition(Product product)
+    {
+        int hash = 31 * product.getManufacturer().hashCode() + product.productCode().hashCode();
+        return Math.floorMod(hash, partitions);
+    }
+
+    /**
+     * Splits contracts by the partitions of their line items' products.
+     * Each partition gets a copy of every contract with line items in it,
+     * holding just those line items, in the original order.
+     */
+    List<List<Contract>> split(List<Contract> contracts)
+    {
+        List<List<Contract>> split = new ArrayList<List<Contract>>(partitions);
+        for (int i = 0; i < partitions; i++)
+            split.add(new ArrayList<Contract>());
+        Contract[] copies = new Contract[partitions];
+        for (Contract contract : contracts)
+        {
+            for (ContractLineItem lineItem : contract.getLineItems())
+            {
+                int partition = partition(lineItem.getProduct());
+                if (copies[partition] == null)
+                {
+                    copies[partition] = new Contract(contract.getDescription(), contract.getBeginDate(),
+                                                     contract.getEndDate(), contract.getDistributor());
+                    split.get(partition).add(copies[partition]);
+                }
+                copies[partition].addLineItem(new ContractLineItem(lineItem.getProduct(), lineItem.getPrice()));
+            }
+            for (int i = 0; i < partitions; i++)
+                copies[i] = null;
+        }
+        return split;
+    }
+
+    /**
+     * Writes the contracts of each partition to its contract file.
+     * @param files the contract file and partition file of each partition, in turn
+     */
+    private void writeContracts(List<Contract> contracts, List<Path> files)
+        throws IOException
+    {
+        List<List<Contract>> split = split(contracts);
+        for (int i = 0; i < partitions; i++)
+            ContractSnapshot.write(split.get(i), files.get(2 * i));
+    }
+
+    /**
+     * Runs a worker for each partition and waits for all of them.
+     * @param files the contract file and partition file of each partition, in turn
+     */
+    private void runWorkers(boolean compact, int maxPrices, List<Path> files)
+        throws IOException
+    {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> workers = new ArrayList<Process>(partitions);
+        try
+        {
+            for (int i = 0; i < partitions; i++)
+            {
+                List<String> command = new ArrayList<String>();
+                command.add(java);
+                command.addAll(jvmOptions);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(PartitionWorker.class.getName());
+                command.add(Boolean.toString(compact));
+                command.add(Integer.toString(maxPrices));
+                command.add(files.get(2 * i).toString());
+                command.add(files.get(2 * i + 1).toString());
+                workers.add(new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                                        .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+            }
+            for (int i = 0; i < partitions; i++)
+            {
+                int status = workers.get(i).waitFor();
+                if (status != 0)
+                    throw new IOException("Partition worker " + i + " failed with exit status " + status);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for partition workers");
+        }
+        finally
+        {
+            for (Process worker : workers)
+                worker.destroy();
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Merging                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Merges partition files into one report, writing it to a sink.
+     * Each file holds groups in report order, and a product's group is
+     * in one file only.
+     * @param bufferSize the size of each file's input buffer
+     */
+    static void merge(Path[] partitionFiles, int bufferSize, final boolean compact, final int maxPrices,
+                      final String customer, final String dates, final ReportSink sink)
+        throws IOException
+    {
+        merge(partitionFiles, bufferSize, new ReportGenerator.GroupSink()
+        {
+            public void begin(List<String> distributors)
+                throws IOException
+            {
+                sink.begin(ReportGenerator.createReportHeader(compact, customer,
+                                                              ReportGenerator.subtitle(compact, maxPrices),
+                                                              dates, distributors));
+            }
+
+            public void group(String manufacturer, String productName, String productCode, List<ReportRow> rows)
+                throws IOException
+            {
+                for (ReportRow row : rows)
+                    sink.row(row);
+            }
+
+            public void end()
+                throws IOException
+            {
+                sink.end();
+            }
+        });
+    }
+
+    /**
+     * Merges partition files group by group, with their price columns
+     * mapped onto the union of their distributors.
+     * @param bufferSize the size of each file's input buffer
+     * @param out receives the groups in report order
+     */
+    static void merge(Path[] partitionFiles, int bufferSize, ReportGenerator.GroupSink out)
+        throws IOException
+    {
+        List<PartitionFile.Reader> readers = new ArrayList<PartitionFile.Reader>(partitionFiles.length);
+        try
+        {
+            SortedSet<String> distributorSet = new TreeSet<String>();
+            for (Path file : partitionFiles)
+            {
+                PartitionFile.Reader reader = new PartitionFile.Reader(file, bufferSize);
+                readers.add(reader);
+                distributorSet.addAll(reader.getDistributors());
+            }
+            List<String> distributors = new ArrayList<String>(distributorSet);
+            for (PartitionFile.Reader reader : readers)
+            {
+                List<String> partitionDistributors = reader.getDistributors();
+                int[] columns = new int[partitionDistributors.size()];
+                for (int i = 0; i < columns.length; i++)
+                    columns[i] = Collections.binarySearch(distributors, partitionDistributors.get(i));
+                reader.setColumns(columns, distributors.size());
+            }
+
+            // A product belongs to one partition, so groups never tie.
+            PriorityQueue<PartitionFile.Reader> heads = new PriorityQueue<PartitionFile.Reader>(
+                    Math.max(1, readers.size()), new Comparator<PartitionFile.Reader>()
+            {
+                public int compare(PartitionFile.Reader r1, PartitionFile.Reader r2)
+                {
+                    int i = r1.manufacturer.compareTo(r2.manufacturer);
+                    if (i == 0)
+                    {
+                        i = r1.productName.compareTo(r2.productName);
+                        if (i == 0)
+                            i = r1.productCode.compareTo(r2.productCode);
+                    }
+                    return i;
+                }
+            });
+            for (PartitionFile.Reader reader : readers)
+            {
+                if (reader.nextGroup())
+                    heads.add(reader);
+            }
+
+            out.begin(distributors);
+            while (!heads.isEmpty())
+            {
+                PartitionFile.Reader reader = heads.poll();
+                out.group(reader.manufacturer, reader.productName, reader.productCode, reader.readRows());
+                if (reader.nextGroup())
+                    heads.add(reader);
+            }
+            out.end();
+        }
+        finally
+        {
+            for (PartitionFile.Reader reader : readers)
+                reader.close();
+        }
+    }
+
+    /** Collects the rows written to it into a Report.
+     */
+    static class ReportCollector implements ReportSink
+    {
+        Report report;
+
+        public void begin(Report report)
+        {
+            this.report = report;
+        }
+
+        public void row(Object row)
+        {
+            report.addRow(row);
+        }
+
+        public void end()
+        {
+        }
+
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,768 @@
+package report;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import support.Contract;
+import support.ContractLineItem;
+import support.PriceFormatter;
+import support.Product;
+import support.Report;
+
+/**
+ *  An append-only file of the prices each distributor has charged for
+ *  each product, one point per contract line item: the contract's days
+ *  and the price.
+ *  <p>
+ *  Points are kept per series, a product and distributor, and sealed in
+ *  blocks of up to {@link #BLOCK_POINTS}.  Within a block a point is the
+ *  zigzag varint difference of its begin day from the previous point's,
+ *  the varint number of days to its end, and its price.  A price of
+ *  whole cents is the zigzag varlong difference of its cents from the
+ *  previous such price's, shifted left over a clear flag bit, so a
+ *  price within 32 cents of the previous one takes a byte and one
+ *  within $40 two; any other price is a set flag byte and the eight
+ *  bytes of the double.  The block is then deflated.  Each block record
+ *  carries its earliest begin, latest end and lowest and highest price,
+ *  and only these summaries are read when a file is opened.  A query
+ *  skips blocks outside its days, answers lowest and highest prices
+ *  from the summary of a block wholly inside its days, and inflates only
+ *  the blocks it cannot answer otherwise.
+ *  <p>
+ *  Layout, big-endian: magic and version, then records.  A series record
+ *  is a tag and the manufacturer, product code and distributor in
+ *  modified UTF-8; series are numbered in file order.  A block record is
+ *  a tag, series number, point count, earliest begin and latest end
+ *  epoch days, lowest and highest price, raw and compressed lengths and
+ *  the deflated points.  A record cut short by a crash is dropped when
+ *  the file is opened.
+ *  <p>
+ *  Points not yet sealed are held in memory, queried with the rest, and
+ *  written by {@link #flush()} and {@link #close()}.  All methods are
+ *  synchronized.
+ */
+public final class PriceHistory implements Closeable
+{
+    static final int MAGIC = 0x50435048;
+    static final int VERSION = 2;
+    static final int BLOCK_POINTS = 128;
+
+    private static final int SERIES_RECORD = 1;
+    private static final int BLOCK_RECORD = 2;
+    private static final int BLOCK_HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 + 8 + 4 + 4;
+    /** Bound on the cents of a price encoded as a difference, so that
+     * a difference and its flag bit fit a long
+     */
+    private static final long MAX_CENTS = 1L << 52;
+    /** Flag of a price stored as the bits of its double
+     */
+    private static final int DOUBLE_PRICE = 1;
+
+    private final RandomAccessFile file;
+    private final List<Series> series = new ArrayList<Series>();
+    /** Series by product, then distributor
+     */
+    private final Map<ProductKey, SortedMap<String, Series>> products =
+                new HashMap<ProductKey, SortedMap<String, Series>>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[4 * 1024];
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                          Nested Classes                           //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private static class ProductKey
+    {
+        final String mfgName;
+        final String productCode;
+
+        ProductKey(String mfgName, String productCode)
+        {
+            this.mfgName = mfgName;
+            this.productCode = productCode;
+        }
+
+        public int hashCode()
+        {
+            return 29 * mfgName.hashCode() + productCode.hashCode();
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ProductKey))
+                return false;
+            ProductKey other = (ProductKey) obj;
+            return mfgName.equals(other.mfgName) && productCode.equals(other.productCode);
+        }
+    }
+
+    /** A sealed block: its summary and where its points are in the file.
+     */
+    private static class Block
+    {
+        int count;
+        int firstDay;
+        int lastDay;
+        double minPrice;
+        double maxPrice;
+        long position;
+        int rawLength;
+        int compressedLength;
+    }
+
+    /** The points of one product and distributor, sealed and pending.
+     */
+    private static class Series
+    {
+        final int id;
+        final String distributor;
+        final List<Block> blocks = new ArrayList<Block>();
+        final Points pending = new Points(BLOCK_POINTS);
+
+        Series(int id, String distributor)
+        {
+            this.id = id;
+            this.distributor = distributor;
+        }
+    }
+
+    /** Points as parallel arrays of begin day, end day and price.
+     */
+    private static class Points
+    {
+        int[] begins;
+        int[] ends;
+        double[] prices;
+        int count;
+
+        Points(int capacity)
+        {
+            begins = new int[capacity];
+            ends = new int[capacity];
+            prices = new double[capacity];
+        }
+
+        void add(int begin, int end, double price)
+        {
+            if (count == begins.length)
+            {
+                begins = Arrays.copyOf(begins, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                prices = Arrays.copyOf(prices, count * 2);
+            }
+            begins[count] = begin;
+            ends[count] = end;
+            prices[count] = price;
+            count++;
+        }
+    }
+
+    /**
+     *  A price a distributor charged for a product over a contract's days.
+     */
+    public static final class PricePoint
+    {
+        private final String distributor;
+        private final DateRange period;
+        private final double price;
+
+        PricePoint(String distributor, DateRange period, double price)
+        {
+            this.distributor = distributor;
+            this.period = period;
+            this.price = price;
+        }
+
+        public String getDistributor()
+        {
+            return distributor;
+        }
+
+        public DateRange getPeriod()
+        {
+            return period;
+        }
+
+        public double getPrice()
+        {
+            return price;
+        }
+
+        public String getFormattedPrice()
+        {
+            return PriceFormatter.formatPrice(price);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private PriceHistory(RandomAccessFile file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Opens a history file, creating it if it does not exist.  Only the
+     * series and block summaries are read.
+     * @param path the file
+     * @return the history
+     */
+    public static PriceHistory open(Path path)
+        throws IOException
+    {
+        boolean exists = Files.exists(path) && Files.size(path) > 0;
+        PriceHistory history = new PriceHistory(new RandomAccessFile(path.toFile(), "rw"));
+        try
+        {
+            if (exists)
+                history.load(path);
+            else
+            {
+                history.file.writeInt(MAGIC);
+                history.file.writeInt(VERSION);
+            }
+        }
+        catch (IOException e)
+        {
+            history.file.close();
+            throw e;
+        }
+        return history;
+    }
+
+    /** Reads the records of an existing file, truncating a record cut short.
+     */
+    private void load(Path path)
+        throws IOException
+    {
+        long length = file.length();
+        long position = 8;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+        try
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a price history file: " + path);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported price history version " + version + ": " + path);
+            while (position < length)
+            {
+                try
+                {
+                    position = readRecord(in, position, length);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (position != length)
+            file.setLength(position);
+        file.seek(position);
+    }
+
+    /**
+     * Reads the record at a position, skipping block points.
+     * @return the position after the record
+     * @throws EOFException if the record is cut short
+     */
+    private long readRecord(DataInputStream in, long position, long length)
+        throws IOException
+    {
+        int tag = in.readUnsignedByte();
+        if (tag == SERIES_RECORD)
+        {
+            String manufacturer = in.readUTF();
+            String productCode = in.readUTF();
+            String distributor = in.readUTF();
+            addSeries(manufacturer, productCode, distributor);
+            return position + 1 + 2 + utfLength(manufacturer) + 2 + utfLength(productCode)
+                    + 2 + utfLength(distributor);
+        }
+        if (tag != BLOCK_RECORD)
+            throw new IOException("Malformed price history record at " + position);
+        int seriesId = in.readInt();
+        if (seriesId < 0 || seriesId >= series.size())
+            throw new IOException("Malformed price history record at " + position);
+        Block block = new Block();
+        block.count = in.readInt();
+        block.firstDay = in.readInt();
+        block.lastDay = in.readInt();
+        block.minPrice = in.readDouble();
+        block.maxPrice = in.readDouble();
+        block.rawLength = in.readInt();
+        block.compressedLength = in.readInt();
+        block.position = position + 1 + BLOCK_HEADER_LENGTH;
+        long end = block.position + block.compressedLength;
+        if (end > length)
+            throw new EOFException();
+        in.skipNBytes(block.compressedLength);
+        series.get(seriesId).blocks.add(block);
+        return end;
+    }
+
+    private static int utfLength(String value)
+    {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            length += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    private Series addSeries(String manufacturer, String productCode, String distributor)
+    {
+        Series added = new Series(series.size(), distributor);
+        series.add(added);
+        ProductKey key = new ProductKey(manufacturer, productCode);
+        SortedMap<String, Series> distributors = products.get(key);
+        if (distributors == null)
+        {
+            distributors = new TreeMap<String, Series>();
+            products.put(key, distributors);
+        }
+        distributors.put(distributor, added);
+        return added;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Appending                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Appends a point for each line item of a contract.
+     */
+    public synchronized void append(Contract contract)
+        throws IOException
+    {
+        int begin = (int) DateRange.toLocalDate(contract.getBeginDate()).toEpochDay();
+        int end = (int) DateRange.toLocalDate(contract.getEndDate()).toEpochDay();
+        for (ContractLineItem lineItem : contract.getLineItems())
+        {
+            Product product = lineItem.getProduct();
+            append(product.getManufacturer(), product.productCode(), contract.getDistributor(),
+                   begin, end, lineItem.getPrice());
+        }
+    }
+
+    /** Appends the points of several contracts.
+     */
+    public synchronized void appendAll(List<Contract> contracts)
+        throws IOException
+    {
+        for (Contract contract : contracts)
+            append(contract);
+    }
+
+    private void append(String manufacturer, String productCode, String distributor, int begin, int end,
+                        double price)
+        throws IOException
+    {
+        Series target = null;
+        SortedMap<String, Series> distributors = products.get(new ProductKey(manufacturer, productCode));
+        if (distributors != null)
+            target = distributors.get(distributor);
+        if (target == null)
+        {
+            target = addSeries(manufacturer, productCode, distributor);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(SERIES_RECORD);
+            record.writeUTF(manufacturer);
+            record.writeUTF(productCode);
+            record.writeUTF(distributor);
+            file.write(bytes.toByteArray());
+        }
+        target.pending.add(begin, end, price);
+        if (target.pending.count == BLOCK_POINTS)
+            seal(target);
+    }
+
+    /** Writes the pending points of a series as a block.
+     */
+    private void seal(Series target)
+        throws IOException
+    {
+        Points points = target.pending;
+        Block block = new Block();
+        block.count = points.count;
+        block.firstDay = Integer.MAX_VALUE;
+        block.lastDay = Integer.MIN_VALUE;
+        block.minPrice = Double.POSITIVE_INFINITY;
+        block.maxPrice = Double.NEGATIVE_INFINITY;
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(points.count * 4);
+        int previousBegin = 0;
+        long previousCents = 0;
+        for (int i = 0; i < points.count; i++)
+        {
+            writeVarlong(raw, zigzag(points.begins[i] - previousBegin));
+            writeVarlong(raw, points.ends[i] - points.begins[i]);
+            double price = points.prices[i];
+            long cents = Math.round(price * 100);
+            if (Math.abs(cents) < MAX_CENTS
+                && Double.doubleToLongBits(cents / 100.0) == Double.doubleToLongBits(price))
+            {
+                writeVarlong(raw, zigzag(cents - previousCents) << 1);
+                previousCents = cents;
+            }
+            else
+            {
+                raw.write(DOUBLE_PRICE);
+                long bits = Double.doubleToLongBits(price);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    raw.write((int) (bits >>> shift));
+            }
+            previousBegin = points.begins[i];
+
+            block.firstDay = Math.min(block.firstDay, points.begins[i]);
+            block.lastDay = Math.max(block.lastDay, points.ends[i]);
+            block.minPrice = Math.min(block.minPrice, points.prices[i]);
+            block.maxPrice = Math.max(block.maxPrice, points.prices[i]);
+        }
+        byte[] rawBytes = raw.toByteArray();
+        block.rawLength = rawBytes.length;
+        deflater.reset();
+        deflater.setInput(rawBytes);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(rawBytes.length / 2 + 64);
+        while (!deflater.finished())
+        {
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+        block.compressedLength = compressed.size();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 + BLOCK_HEADER_LENGTH + block.compressedLength);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(BLOCK_RECORD);
+        record.writeInt(target.id);
+        record.writeInt(block.count);
+        record.writeInt(block.firstDay);
+        record.writeInt(block.lastDay);
+        record.writeDouble(block.minPrice);
+        record.writeDouble(block.maxPrice);
+        record.writeInt(block.rawLength);
+        record.writeInt(block.compressedLength);
+        compressed.writeTo(record);
+        block.position = file.getFilePointer() + 1 + BLOCK_HEADER_LENGTH;
+        file.write(bytes.toByteArray());
+
+        target.blocks.add(block);
+        points.count = 0;
+    }
+
+    /** Seals the pending points of every series, so that the file holds them all.
+     */
+    public synchronized void flush()
+        throws IOException
+    {
+        for (Series pendingSeries : series)
+        {
+            if (pendingSeries.pending.count > 0)
+                seal(pendingSeries);
+        }
+    }
+
+    public synchronized void close()
+        throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            file.close();
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarlong(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Queries                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the lowest price each distributor charged for a product
+     * under contracts in effect on any day of a range.
+     * @return the prices by distributor, for distributors with prices in the range
+     */
+    public synchronized SortedMap<String, Double> getLowestPrices(String manufacturer, String productCode,
+                                                                  DateRange range)
+        throws IOException
+    {
+        return getExtremePrices(manufacturer, productCode, range, true);
+    }
+
+    /**
+     * Returns the highest price each distributor charged for a product
+     * under contracts in effect on any day of a range.
+     * @return the prices by distributor, for distributors with prices in the range
+     */
+    public synchronized SortedMap<String, Double> getHighestPrices(String manufacturer, String productCode,
+                                                                   DateRange range)
+        throws IOException
+    {
+        return getExtremePrices(manufacturer, productCode, range, false);
+    }
+
+    private SortedMap<String, Double> getExtremePrices(String manufacturer, String productCode, DateRange range,
+                                                       boolean lowest)
+        throws IOException
+    {
+        int first = (int) range.getBegin().toEpochDay();
+        int last = (int) range.getEnd().toEpochDay();
+        SortedMap<String, Double> extremes = new TreeMap<String, Double>();
+        SortedMap<String, Series> distributors = products.get(new ProductKey(manufacturer, productCode));
+        if (distributors == null)
+            return extremes;
+        for (Series found : distributors.values())
+        {
+            double extreme = Double.NaN;
+            for (Block block : found.blocks)
+            {
+                if (block.lastDay < first || block.firstDay > last)
+                    continue;
+                double blockExtreme = lowest ? block.minPrice : block.maxPrice;
+                if (!Double.isNaN(extreme) && !isBetter(blockExtreme, extreme, lowest))
+                    continue;
+                // A block wholly inside the range is answered by its summary.
+                if (block.firstDay >= first && block.lastDay <= last)
+                    extreme = blockExtreme;
+                else
+                    extreme = scanExtreme(read(block), first, last, lowest, extreme);
+            }
+            extreme = scanExtreme(found.pending, first, last, lowest, extreme);
+            if (!Double.isNaN(extreme))
+                extremes.put(found.distributor, extreme);
+        }
+        return extremes;
+    }
+
+    private static boolean isBetter(double price, double than, boolean lowest)
+    {
+        return lowest ? price < than : price > than;
+    }
+
+    /** Returns the extreme of a running extreme and the prices of points in effect during [first, last].
+     */
+    private static double scanExtreme(Points points, int first, int last, boolean lowest, double extreme)
+    {
+        for (int i = 0; i < points.count; i++)
+        {
+            if (points.ends[i] >= first && points.begins[i] <= last
+                    && (Double.isNaN(extreme) || isBetter(points.prices[i], extreme, lowest)))
+                extreme = points.prices[i];
+        }
+        return extreme;
+    }
+
+    /**
+     * Returns the prices one distributor charged for a product under
+     * contracts in effect on any day of a range.
+     * @return the points, by begin day, then in the order appended
+     */
+    public synchronized List<PricePoint> getHistory(String manufacturer, String productCode, String distributor,
+                                                    DateRange range)
+        throws IOException
+    {
+        List<PricePoint> history = new ArrayList<PricePoint>();
+        SortedMap<String, Series> distributors = products.get(new ProductKey(manufacturer, productCode));
+        Series found = distributors != null ? distributors.get(distributor) : null;
+        if (found != null)
+            collect(found, range, history);
+        return history;
+    }
+
+    /**
+     * Creates a report of the prices every distributor charged for a
+     * product under contracts in effect on any day of a range.  Rows are
+     * ordered by distributor, then contract begin day.
+     */
+    public synchronized Report createTrendReport(String manufacturer, String productCode, DateRange range)
+        throws IOException
+    {
+        Report report = new Report();
+        report.setTitle("Price History");
+        report.setSubtitle(manufacturer + " " + productCode);
+        report.setDates(range.toString());
+        report.addColumn("Distributor", "distributor");
+        report.addColumn("Contract Dates", "period");
+        report.addColumn("Price", "formattedPrice");
+        SortedMap<String, Series> distributors = products.get(new ProductKey(manufacturer, productCode));
+        if (distributors == null)
+            return report;
+        List<PricePoint> history = new ArrayList<PricePoint>();
+        for (Series found : distributors.values())
+        {
+            history.clear();
+            collect(found, range, history);
+            for (PricePoint point : history)
+                report.addRow(point);
+        }
+        return report;
+    }
+
+    /** Adds the points of a series in effect during a range, sorted by begin day.
+     */
+    private void collect(Series found, DateRange range, List<PricePoint> history)
+        throws IOException
+    {
+        int first = (int) range.getBegin().toEpochDay();
+        int last = (int) range.getEnd().toEpochDay();
+        int start = history.size();
+        for (Block block : found.blocks)
+        {
+            if (block.lastDay >= first && block.firstDay <= last)
+                collect(found.distributor, read(block), first, last, history);
+        }
+        collect(found.distributor, found.pending, first, last, history);
+        Collections.sort(history.subList(start, history.size()), new Comparator<PricePoint>()
+        {
+            public int compare(PricePoint p1, PricePoint p2)
+            {
+                return p1.getPeriod().getBegin().compareTo(p2.getPeriod().getBegin());
+            }
+        });
+    }
+
+    private static void collect(String distributor, Points points, int first, int last, List<PricePoint> history)
+    {
+        for (int i = 0; i < points.count; i++)
+        {
+            if (points.ends[i] >= first && points.begins[i] <= last)
+                history.add(new PricePoint(distributor,
+                                           new DateRange(LocalDate.ofEpochDay(points.begins[i]),
+                                                         LocalDate.ofEpochDay(points.ends[i])),
+                                           points.prices[i]));
+        }
+    }
+
+    /** Reads and decodes the points of a block.
+     */
+    private Points read(Block block)
+        throws IOException
+    {
+        byte[] compressed = new byte[block.compressedLength];
+        file.seek(block.position);
+        file.readFully(compressed);
+        file.seek(file.length());
+        byte[] raw = new byte[block.rawLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try
+        {
+            if (inflater.inflate(raw) != block.rawLength)
+                throw new IOException("Malformed price history block at " + block.position);
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Malformed price history block at " + block.position, e);
+        }
+
+        Points points = new Points(block.count);
+        int[] offset = new int[1];
+        int begin = 0;
+        long cents = 0;
+        for (int i = 0; i < block.count; i++)
+        {
+            begin += (int) unzigzag(readVarlong(raw, offset));
+            int end = begin + (int) readVarlong(raw, offset);
+            long price = readVarlong(raw, offset);
+            if ((price & DOUBLE_PRICE) == 0)
+            {
+                cents += unzigzag(price >>> 1);
+                points.add(begin, end, cents / 100.0);
+            }
+            else
+            {
+                if (offset[0] + 8 > raw.length)
+                    throw new IOException("Malformed price in price history block at " + block.position);
+                long bits = 0;
+                for (int b = 0; b < 8; b++)
+                    bits = (bits << 8) | (raw[offset[0]++] & 0xFF);
+                points.add(begin, end, Double.longBitsToDouble(bits));
+            }
+        }
+        return points;
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarlong(byte[] bytes, int[] offset)
+        throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            if (offset[0] >= bytes.length)
+                break;
+            byte b = bytes[offset[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("Malformed varint in price history block");
+    }
+}
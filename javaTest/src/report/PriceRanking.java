@@ -0,0 +1,77 @@
+package report;
+
+/**
+ *  Ranks prices from lowest to highest with a stable sort on
+ *  primitive arrays, so equal prices keep their original order.
+ */
+final class PriceRanking
+{
+    /** Ranges up to this size are insertion sorted.
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private PriceRanking()
+    {
+    }
+
+    /**
+     * Assigns price ordinals.
+     * @param prices the prices to rank
+     * @param count the number of prices in use
+     * @param ordinals receives the ordinal of each price, 1 being the lowest
+     */
+    static void rank(double[] prices, int count, int[] ordinals)
+    {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        if (count > INSERTION_SORT_THRESHOLD)
+            mergeSort(prices, order, new int[count], 0, count);
+        else
+            insertionSort(prices, order, 0, count);
+        for (int i = 0; i < count; i++)
+            ordinals[order[i]] = i + 1;
+    }
+
+    private static void insertionSort(double[] prices, int[] order, int from, int to)
+    {
+        for (int i = from + 1; i < to; i++)
+        {
+            int idx = order[i];
+            double price = prices[idx];
+            int j = i - 1;
+            while (j >= from && prices[order[j]] > price)
+            {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = idx;
+        }
+    }
+
+    private static void mergeSort(double[] prices, int[] order, int[] work, int from, int to)
+    {
+        if (to - from <= INSERTION_SORT_THRESHOLD)
+        {
+            insertionSort(prices, order, from, to);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(prices, order, work, from, middle);
+        mergeSort(prices, order, work, middle, to);
+        if (prices[order[middle - 1]] <= prices[order[middle]])
+            return;
+
+        System.arraycopy(order, from, work, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++)
+        {
+            // Take from the right only if strictly lower, to keep the sort stable.
+            if (right < to && (left >= middle || prices[work[right]] < prices[work[left]]))
+                order[i] = work[right++];
+            else
+                order[i] = work[left++];
+        }
+    }
+}
@@ -1,28 +1,92 @@
 package report;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import support.Contract;
 import support.ContractLineItem;
+import support.ContractSnapshot;
 import support.Product;
 import support.Report;
+import support.ReportListener;
+import support.ReportMetrics;
+import support.ReportSink;
+import support.ReportStage;
 
 /**
  *  A report generator to create a report comparing
  *  contract prices from different distributors.
+ *  A generator holds no per-report state and may be shared by threads.
  */
 public class ReportGenerator
 {
-    private DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+    /** Smallest number of contracts aggregated by one fork-join task.
+     */
+    private static final int MIN_CONTRACTS_PER_TASK = 64;
+    /** Smallest number of product groups ranked by one fork-join task.
+     */
+    private static final int MIN_GROUPS_PER_TASK = 256;
+    /** Number of tasks per pool thread, for load balancing.
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    /** Format of the contract dates in contract names.
+     */
+    private static final DateTimeFormatter CONTRACT_DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+    
+    /** Pool for parallel input aggregation and ranking, or null to work on the calling thread.
+     */
+    private final ForkJoinPool pool;
+    
+    /** Receives the measurements of each report, or null to not measure reports.
+     */
+    private final ReportListener listener;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Constructs a generator that works on the calling thread.
+     */
+    public ReportGenerator()
+    {
+        this(null, null);
+    }
+
+    /** Constructs a generator that aggregates input and ranks prices in parallel.
+     * @param pool the fork-join pool to work on, or null for none
+     */
+    public ReportGenerator(ForkJoinPool pool)
+    {
+        this(pool, null);
+    }
+
+    /** Constructs a generator that measures each report it generates.
+     * The reports carry their {@link ReportMetrics}, so that writing
+     * them is measured too.
+     * @param pool the fork-join pool to work on, or null for none
+     * @param listener the listener to receive the measurements, or null
+     */
+    public ReportGenerator(ForkJoinPool pool, ReportListener listener)
+    {
+        this.pool = pool;
+        this.listener = listener;
+    }
 
 
     ///////////////////////////////////////////////////////////////////////
@@ -36,6 +100,9 @@ public class ReportGenerator
     public static class InputData
     {
         boolean compact;
+        /** Number of lowest prices kept per product, or 0 for all
+         */
+        int maxPrices;
         String title;
         String subtitle;
         String dates;
@@ -44,96 +111,74 @@ public class ReportGenerator
          */
         private List<String> distributors = new ArrayList<String>();
         
+        /** Ids of the distributor names seen while staging rows
+         */
+        private DistributorDictionary distributorIds = new DistributorDictionary();
+        
+        /** Report column of each distributor id, indexing distributors
+         */
+        private int[] distributorColumns = new int[0];
+        
         /** Staged rows
          */
-        private Map<InputRowKey, InputRow> inputRowMap =
-                    new HashMap<InputRowKey, InputRow>();
-    }
+        private RowTable rows = new RowTable();
+        
+        /** Measurements of the report, or null
+         */
+        ReportMetrics metrics;
 
-    /** Contains the distributor name and a single price.
-     */
-    private class DistributorPrice
-    {
-        String distributorName;
-        double price;
+        /** Returns the measurements of the report, or null if it is not measured.
+         */
+        public ReportMetrics getMetrics()
+        {
+            return metrics;
+        }
 
-        DistributorPrice(String distributorName, double price)
+        RowTable getRows()
         {
-            this.price = price;
-            this.distributorName = distributorName;
+            return rows;
         }
     }
 
-    /** A list of prices for a single product.
+    /**
+     * Receives the ranked rows of a report product group by group, in
+     * report order; see {@link #writeGroups(InputData, GroupSink)}.
      */
-    private class InputRow
+    interface GroupSink
     {
-        String productName;
-        List<DistributorPrice> prices = new ArrayList<DistributorPrice>();
-    }
+        /**
+         * Starts the groups.
+         * @param distributors the distributors of the rows' price columns, sorted
+         */
+        void begin(List<String> distributors)
+            throws IOException;
 
-    /** A key to match identical products or identical contract lines (if contractName is not null).
-     */
-    private class InputRowKey
-    {
-        private String mfgName;
-        private String productCode;
-        private String contractName;
+        /**
+         * Receives the rows of one product group.
+         * @param productName the product name the group is sorted by
+         */
+        void group(String manufacturer, String productName, String productCode, List<ReportRow> rows)
+            throws IOException;
 
-        public InputRowKey(String mfgName, String productCode, String contractName)
-        {
-            this.mfgName = mfgName;
-            this.productCode = productCode;
-            this.contractName = contractName;
-        }
-        
-        public InputRowKey clone()
-        {
-            return new InputRowKey(mfgName, productCode, contractName);
-        }
-        
-        public int hashCode()
-        {
-            int hash = mfgName.hashCode();
-            hash = 29 * hash + productCode.hashCode();
-            hash = 29 * hash + (contractName != null ? contractName.hashCode() : 0);
-            return hash;
-        }
-
-        public boolean equals(Object obj)
-        {
-            if (obj == null || !(obj instanceof InputRowKey))
-                return false;
-            InputRowKey other = (InputRowKey) obj;
-            if (!mfgName.equals(other.mfgName))
-                return false;
-            if (!productCode.equals(other.productCode))
-                return false;
-            if (contractName == null && other.contractName != null)
-                return false;
-            if (contractName != null && other.contractName == null)
-                return false;
-            if (contractName == null && other.contractName == null)
-                return true;
-            if (!contractName.equals(other.contractName))
-                return false;
-            return true;
-        }
+        void end()
+            throws IOException;
     }
-    
-    /** Utility class to obtain price orders
+
+    /** The staged rows of one product, in report order.
      */
-    private class RowPriceIndex
+    private class ProductGroup
     {
-        ReportRow row;
-        double price;
-        int idx;
+        String manufacturer;
+        String productCode;
+        String productName;
+        int[] rows;
+        int rowCount;
 
-        RowPriceIndex(int idx, ReportRow row, double price)
+        ProductGroup(String manufacturer, String productCode, String productName)
         {
-            this.row = row;
-            this.price = price;
-            this.idx = idx;
+            this.manufacturer = manufacturer;
+            this.productCode = productCode;
+            this.productName = productName;
         }
     }
 
@@ -154,62 +199,479 @@ public class ReportGenerator
      */
     public Report generateReport(List<Contract> contracts, boolean compact, String customer, String dates)
     {
+        InputData inputData = createInputData(compact, customer, dates);
+        prepareInputData(contracts, inputData);
+        return createReportFromInputData(inputData);
+    }
+
+    /**
+     * Generates a Report of the contracts in effect during a date range.
+     * Only the contracts the store finds overlapping the range are
+     * aggregated, so the cost grows with the window, not the history.
+     * @param store the contracts, indexed by date
+     * @param compact whether to show multiple prices on each report row
+     * @param customer the customer name for the report
+     * @param dates the date range for the report, also shown in its header
+     * @return a Report object
+     */
+    public Report generateReport(ContractStore store, boolean compact, String customer, DateRange dates)
+    {
+        return generateReport(store.select(dates), compact, customer, dates.toString());
+    }
+
+    /**
+     * Creates an empty InputData with the report parameters.
+     * @param compact whether to show multiple prices on each report row
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @return the InputData, ready to be populated
+     */
+    public InputData createInputData(boolean compact, String customer, String dates)
+    {
+        return createInputData(compact, 0, customer, dates);
+    }
+
+    /**
+     * Creates an empty InputData for a report that shows only the lowest
+     * prices of each product.  Each distributor is represented by its
+     * lowest price.  Equal prices rank by contract name, then distributor
+     * name.  Only distributors with a price shown get a column.
+     * <p>
+     * The bound is applied while aggregating only in a compact report,
+     * whose rows are keyed by product: each keeps the maxPrices lowest
+     * prices, so memory and ranking cost grow with maxPrices rather than
+     * with the number of distributors.  A full report keys rows by
+     * contract as well, so every row of a product is still staged and the
+     * product is trimmed to its maxPrices lowest prices only when the
+     * groups are sorted; its memory grows with the contracts, as without
+     * maxPrices.
+     * @param compact whether to show multiple prices on each report row
+     * @param maxPrices the number of lowest prices to show per product, or 0 for all
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @return the InputData, ready to be populated
+     */
+    public InputData createInputData(boolean compact, int maxPrices, String customer, String dates)
+    {
+        if (maxPrices < 0)
+            throw new IllegalArgumentException("maxPrices < 0: " + maxPrices);
         InputData inputData = new InputData();
         inputData.compact = compact;
+        inputData.maxPrices = maxPrices;
         inputData.title = customer;
+        inputData.subtitle = subtitle(compact, maxPrices);
+        inputData.dates = dates;
+        if (listener != null)
+            inputData.metrics = new ReportMetrics(listener, customer);
+        return inputData;
+    }
+
+    /** Returns the report subtitle for a mode.
+     */
+    static String subtitle(boolean compact)
+    {
         if (compact)
-            inputData.subtitle = "Price Comparison - compact";
+            return "Price Comparison - compact";
         else
-            inputData.subtitle = "Price Comparison";
-        inputData.dates = dates;
-        prepareInputData(contracts, inputData);
-        return createReportFromInputData(inputData);
+            return "Price Comparison";
+    }
+
+    /** Returns the report subtitle for a mode showing only the lowest prices.
+     */
+    static String subtitle(boolean compact, int maxPrices)
+    {
+        if (maxPrices == 0)
+            return subtitle(compact);
+        return subtitle(compact) + " - " + maxPrices + " lowest";
+    }
+
+    /**
+     * Creates an empty InputData for a part of a report's rows: it has the
+     * parameters of the whole and shares its distributor ids, but no
+     * measurements.
+     */
+    InputData createPartInputData(InputData whole)
+    {
+        InputData part = new InputData();
+        part.compact = whole.compact;
+        part.maxPrices = whole.maxPrices;
+        part.title = whole.title;
+        part.subtitle = whole.subtitle;
+        part.dates = whole.dates;
+        part.distributorIds = whole.distributorIds;
+        return part;
     }
 
     /**
      * Populate the InputData object from a list of contracts.
+     * Uses the generator's fork-join pool, if it has one.
      */
     public void prepareInputData(List<Contract> contracts, InputData inputData)
     {
+        if (pool != null)
+        {
+            prepareInputData(contracts, inputData, pool);
+            return;
+        }
+        ReportMetrics.StageTimer timer = startStage(inputData, ReportStage.INGESTION, false);
+        aggregate(contracts, 0, contracts.size(), inputData, inputData.rows);
+        if (timer != null)
+            finishIngestion(inputData, timer, contracts.size(), countLineItems(contracts));
+    }
+
+    /**
+     * Populate the InputData object from a list of contracts, splitting the
+     * contracts across a fork-join pool.  The result is the same as that of
+     * a sequential pass: where several contracts give a price for the same
+     * row and distributor, the first contract in the list wins.
+     * @param contracts the contracts to search for distributor prices
+     * @param inputData the input data to populate
+     * @param pool the pool to run on
+     */
+    public void prepareInputData(List<Contract> contracts, InputData inputData, ForkJoinPool pool)
+    {
+        ReportMetrics.StageTimer timer = startStage(inputData, ReportStage.INGESTION, true);
+        int chunkSize = Math.max(MIN_CONTRACTS_PER_TASK,
+                                 contracts.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+        RowTable rows = pool.invoke(new AggregateTask(contracts, 0, contracts.size(), inputData, chunkSize, timer));
+        inputData.rows.addAll(rows, inputData.maxPrices, inputData.distributorIds);
+        if (timer != null)
+            finishIngestion(inputData, timer, contracts.size(), countLineItems(contracts));
+    }
+
+    /**
+     * Populate the InputData object from a contract snapshot, reading its
+     * mapped columns directly rather than building Contract and Product
+     * objects.  The result is the same as that of preparing
+     * {@link ContractSnapshot#toContracts()}.
+     * @param snapshot the contracts to search for distributor prices
+     * @param inputData the input data to populate
+     */
+    public void prepareInputData(ContractSnapshot snapshot, InputData inputData)
+    {
+        ReportMetrics.StageTimer timer = startStage(inputData, ReportStage.INGESTION, false);
+        for (int contract = 0; contract < snapshot.getContractCount(); contract++)
+        {
+            // Distributors without prices get no id, and so no report column.
+            int lineItemCount = snapshot.getLineItemCount(contract);
+            if (lineItemCount == 0)
+                continue;
+            int distributorId = inputData.distributorIds.intern(snapshot.getDistributor(contract));
+            String contractName = inputData.compact ? null
+                    : contractName(snapshot.getDescription(contract),
+                                   DateRange.toLocalDate(snapshot.getBeginDate(contract)),
+                                   DateRange.toLocalDate(snapshot.getEndDate(contract)));
+            long first = snapshot.getFirstLineItem(contract);
+            for (long lineItem = first; lineItem < first + lineItemCount; lineItem++)
+            {
+                int product = snapshot.getLineItemProduct(lineItem);
+                addLineItem(inputData, inputData.rows, distributorId, contractName,
+                            snapshot.getProductManufacturer(product), snapshot.getProductCode(product),
+                            snapshot.getProductDescription(product), snapshot.getLineItemPrice(lineItem));
+            }
+        }
+        if (timer != null)
+            finishIngestion(inputData, timer, snapshot.getContractCount(), snapshot.getLineItemCount());
+    }
+
+    /**
+     * Starts measuring a stage of a report.
+     * @return the timer, or null if the report is not measured
+     */
+    static ReportMetrics.StageTimer startStage(InputData inputData, ReportStage stage, boolean allThreads)
+    {
+        return inputData.metrics != null ? inputData.metrics.start(stage, allThreads) : null;
+    }
+
+    /**
+     * Records the counts of an ingestion, and finishes its measurement.
+     */
+    void finishIngestion(InputData inputData, ReportMetrics.StageTimer timer, long contracts, long lineItems)
+    {
+        inputData.metrics.addContracts(contracts);
+        inputData.metrics.addLineItems(lineItems);
+        inputData.metrics.setUniqueKeys(inputData.rows.size());
+        timer.stop();
+    }
+
+    private static long countLineItems(List<Contract> contracts)
+    {
+        long count = 0;
         for (Contract contract : contracts)
+            count += contract.getLineItems().size();
+        return count;
+    }
+
+    /**
+     * Adds the line items of contracts[from, to) to a row table.
+     */
+    private void aggregate(List<Contract> contracts, int from, int to, InputData inputData, RowTable rows)
+    {
+        for (Contract contract : contracts.subList(from, to))
         {
+            // Distributors without prices get no id, and so no report column.
+            if (contract.getLineItems().isEmpty())
+                continue;
+            int distributorId = inputData.distributorIds.intern(contract.getDistributor());
+            String contractName = inputData.compact ? null : contractName(contract);
             for (ContractLineItem lineItem : contract.getLineItems())
             {
                 Product product = lineItem.getProduct();
-                String manufacturer = product.getManufacturer();
-                String productCode = product.productCode();
-                String productName = product.getDescription();
-                
-                // Get all that is necessary to build report data.
-                double price = lineItem.getPrice();
-                String contractName = null;
-                if (!inputData.compact)
-                {
-                    contractName = contract.getDescription() + " - " +
-                            dateFormat.format(contract.getBeginDate()) + "-" +
-                            dateFormat.format(contract.getEndDate());
-                }
-                String distributor = contract.getDistributor();
-                InputRowKey key = new InputRowKey(
-                        manufacturer, productCode, contractName);
-                // Look up by key
-                InputRow inputRow = inputData.inputRowMap.get(key);
-                if (inputRow == null) 
+                addLineItem(inputData, rows, distributorId, contractName, product.getManufacturer(),
+                            product.productCode(), product.getDescription(), lineItem.getPrice());
+            }
+        }
+    }
+
+    /**
+     * Adds the price of one line item to a row table, unless the row
+     * already has a price from the distributor, or offers it to the
+     * row's lowest prices.
+     */
+    private void addLineItem(InputData inputData, RowTable rows, int distributorId, String contractName,
+                             String manufacturer, String productCode, String productName, double price)
+    {
+        int row = rows.row(manufacturer, productCode, contractName, productName);
+        if (inputData.maxPrices > 0)
+            rows.offerPrice(row, distributorId, price, inputData.maxPrices, inputData.distributorIds);
+        else if (!rows.hasPrice(row, distributorId))
+            rows.addPrice(row, distributorId, price);
+    }
+
+    /**
+     * Returns the id of a distributor in the InputData, for
+     * {@link #addLineItem(InputData, int, String, String, String, String, double)}.
+     */
+    int distributorId(InputData inputData, String distributor)
+    {
+        return inputData.distributorIds.intern(distributor);
+    }
+
+    /**
+     * Adds the price of one line item to the InputData, as aggregating
+     * a contract would; used by importers that do not build contracts.
+     * @param distributorId the id returned by {@link #distributorId}
+     * @param contractName the name of the contract, ignored for a compact report
+     */
+    void addLineItem(InputData inputData, int distributorId, String contractName,
+                     String manufacturer, String productCode, String productName, double price)
+    {
+        addLineItem(inputData, inputData.rows, distributorId, inputData.compact ? null : contractName,
+                    manufacturer, productCode, productName, price);
+    }
+
+    /**
+     * Returns the name of a contract's rows in a full report,
+     * e.g. "Davidson - 01/26/2015-02/08/2015".
+     */
+    static String contractName(Contract contract)
+    {
+        return contractName(contract.getDescription(), DateRange.toLocalDate(contract.getBeginDate()),
+                            DateRange.toLocalDate(contract.getEndDate()));
+    }
+
+    /**
+     * Returns the name of a contract's rows in a full report, from
+     * its description and dates.
+     */
+    static String contractName(String description, LocalDate beginDate, LocalDate endDate)
+    {
+        return description + " - " +
+                CONTRACT_DATE_FORMAT.format(beginDate) + "-" +
+                CONTRACT_DATE_FORMAT.format(endDate);
+    }
+
+    /** Aggregates a range of contracts, forking for ranges larger than the chunk size.
+     */
+    private class AggregateTask extends RecursiveTask<RowTable>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Contract> contracts;
+        private final int from;
+        private final int to;
+        private final InputData inputData;
+        private final int chunkSize;
+        /** Measures the stage's allocation on the threads running it, or null
+         */
+        private final ReportMetrics.StageTimer timer;
+
+        AggregateTask(List<Contract> contracts, int from, int to, InputData inputData, int chunkSize,
+                      ReportMetrics.StageTimer timer)
+        {
+            this.contracts = contracts;
+            this.from = from;
+            this.to = to;
+            this.inputData = inputData;
+            this.chunkSize = chunkSize;
+            this.timer = timer;
+        }
+
+        protected RowTable compute()
+        {
+            if (timer != null)
+                timer.addCurrentThread();
+            if (to - from <= chunkSize)
+            {
+                RowTable rows = new RowTable();
+                aggregate(contracts, from, to, inputData, rows);
+                return rows;
+            }
+            int middle = (from + to) >>> 1;
+            AggregateTask left = new AggregateTask(contracts, from, middle, inputData, chunkSize, timer);
+            AggregateTask right = new AggregateTask(contracts, middle, to, inputData, chunkSize, timer);
+            right.fork();
+            RowTable earlier = left.compute();
+            earlier.addAll(right.join(), inputData.maxPrices, inputData.distributorIds);
+            return earlier;
+        }
+    }
+
+    /**
+     * Creates and populates the InputData of a report variant from a
+     * contract index, without walking the contracts again.  The result is
+     * the same as that of preparing the variant's contracts, in index order.
+     * @param index the indexed contracts
+     * @param variant the report parameters and contract filter
+     * @return the InputData, ready for createReportFromInputData or writeReportFromInputData
+     */
+    public InputData createInputData(ContractIndex index, ReportVariant variant)
+    {
+        InputData inputData = createInputData(variant.isCompact(), variant.getMaxPrices(),
+                                              variant.getCustomer(), variant.getDates());
+        ReportMetrics.StageTimer timer = startStage(inputData, ReportStage.INGESTION, false);
+        long lineItems = 0;
+        BitSet accepted = index.accept(variant.getFilter());
+        int[] distributorIds = new int[index.distributors.length];
+        Arrays.fill(distributorIds, -1);
+        long[] order = new long[16];
+        for (int p = 0; p < index.getProductCount(); p++)
+        {
+            int firstRow = index.productRows[p];
+            int endRow = index.productRows[p + 1];
+            if (!inputData.compact)
+            {
+                for (int row = firstRow; row < endRow; row++)
                 {
-                    inputRow = new InputRow();
-                    inputRow.productName = productName;
-                    inputData.inputRowMap.put(key, inputRow);
+                    for (int entry = index.rowEntries[row]; entry < index.rowEntries[row + 1]; entry++)
+                    {
+                        if (accepted.get(index.entryContracts[entry]))
+                        {
+                            addEntry(index, entry, row, distributorIds, inputData);
+                            lineItems++;
+                        }
+                    }
                 }
-                DistributorPrice newDistributorPrice = new DistributorPrice(distributor, price);
-                boolean priceExists = false;
-                for (DistributorPrice distributorPrice : inputRow.prices)
+                continue;
+            }
+            
+            // A compact row takes the prices of all the product's rows;
+            // replay them in contract order so the first contract wins.
+            int n = 0;
+            for (int entry = index.rowEntries[firstRow]; entry < index.rowEntries[endRow]; entry++)
+            {
+                int contract = index.entryContracts[entry];
+                if (!accepted.get(contract))
+                    continue;
+                if (n == order.length)
+                    order = Arrays.copyOf(order, n * 2);
+                order[n++] = ((long) contract << 32) | entry;
+            }
+            if (n == 0)
+                continue;
+            Arrays.sort(order, 0, n);
+            int row = firstRow;
+            while (index.rowEntries[row + 1] <= (int) order[0])
+                row++;
+            for (int i = 0; i < n; i++)
+                addEntry(index, (int) order[i], row, distributorIds, inputData);
+            lineItems += n;
+        }
+        if (timer != null)
+            finishIngestion(inputData, timer, accepted.cardinality(), lineItems);
+        return inputData;
+    }
+
+    /**
+     * Adds an index entry to the InputData as the line item of a row.
+     * @param distributorIds the InputData's ids of the index's distributor ids, or -1 if not yet known
+     */
+    private void addEntry(ContractIndex index, int entry, int row, int[] distributorIds, InputData inputData)
+    {
+        int indexDistributorId = index.contractDistributors[index.entryContracts[entry]];
+        int distributorId = distributorIds[indexDistributorId];
+        if (distributorId < 0)
+        {
+            distributorId = inputData.distributorIds.intern(index.distributors[indexDistributorId]);
+            distributorIds[indexDistributorId] = distributorId;
+        }
+        addLineItem(inputData, inputData.rows, distributorId,
+                    inputData.compact ? null : index.contractNames[row], index.manufacturers[row],
+                    index.productCodes[row], index.productNames[row], index.entryPrices[entry]);
+    }
+
+    /**
+     * Generates several reports from one contract index.  The contracts
+     * are read and grouped only once, when the index is built; each
+     * variant then replays the index's entries.  With a fork-join pool,
+     * the variants are generated in parallel.
+     * @param index the indexed contracts
+     * @param variants the reports to generate
+     * @return the reports, in the order of the variants
+     */
+    public List<Report> generateReports(ContractIndex index, List<ReportVariant> variants)
+    {
+        Report[] reports = new Report[variants.size()];
+        if (pool == null)
+        {
+            for (int i = 0; i < reports.length; i++)
+                reports[i] = createReportFromInputData(createInputData(index, variants.get(i)));
+        }
+        else
+            pool.invoke(new VariantsTask(index, variants, listener, reports, 0, reports.length));
+        return Arrays.asList(reports);
+    }
+
+    /** Generates the reports of a range of variants, one task per variant.
+     * Each variant is generated on its task's thread.
+     */
+    private static class VariantsTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ContractIndex index;
+        private final List<ReportVariant> variants;
+        private final ReportListener listener;
+        private final Report[] reports;
+        private final int from;
+        private final int to;
+
+        VariantsTask(ContractIndex index, List<ReportVariant> variants, ReportListener listener,
+                     Report[] reports, int from, int to)
+        {
+            this.index = index;
+            this.variants = variants;
+            this.listener = listener;
+            this.reports = reports;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from <= 1)
+            {
+                ReportGenerator generator = new ReportGenerator(null, listener);
+                for (int i = from; i < to; i++)
                 {
-                    if (distributorPrice.distributorName.equals(newDistributorPrice.distributorName))
-                        priceExists = true;
+                    reports[i] = generator.createReportFromInputData(
+                            generator.createInputData(index, variants.get(i)));
                 }
-                if (!priceExists)
-                    inputRow.prices.add(newDistributorPrice);
+                return;
             }
+            int middle = (from + to) >>> 1;
+            invokeAll(new VariantsTask(index, variants, listener, reports, from, middle),
+                      new VariantsTask(index, variants, listener, reports, middle, to));
         }
     }
 
@@ -221,24 +683,139 @@ public class ReportGenerator
     public Report createReportFromInputData(InputData inputData)
     {
         List<ReportRow> rows = generateRows(inputData.compact, inputData);
+        Report reportModel = createReportHeader(inputData);
+        for (ReportRow row : rows)
+            reportModel.addRow(row);
+        reportModel.setMetrics(inputData.metrics);
+        return reportModel;
+    }
+
+    /**
+     * Generates a report given a list of contracts, writing rows to a sink
+     * as they are produced instead of collecting them in a Report.
+     * Only the rows of one product are held in memory at a time.
+     * @param contracts the contracts to search for distributor prices
+     * @param compact whether to show multiple prices on each report row
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @param sink the destination of the report; it is not closed
+     */
+    public void generateReport(List<Contract> contracts, boolean compact, String customer, String dates,
+                               ReportSink sink)
+        throws IOException
+    {
+        InputData inputData = createInputData(compact, customer, dates);
+        prepareInputData(contracts, inputData);
+        writeReportFromInputData(inputData, sink);
+    }
+
+    /**
+     * Writes a report from the InputData to a sink, in final row order,
+     * one product at a time.
+     * @param inputData an InputData containing report parameters and data.
+     * @param sink the destination of the report; it is not closed
+     */
+    public void writeReportFromInputData(InputData inputData, ReportSink sink)
+        throws IOException
+    {
+        List<ProductGroup> groups = prepareGroups(inputData);
+        ReportMetrics metrics = inputData.metrics;
+        if (metrics == null)
+        {
+            sink.begin(createReportHeader(inputData));
+            for (ProductGroup group : groups)
+            {
+                for (ReportRow row : generateGroupRows(inputData, group))
+                    sink.row(row);
+            }
+            sink.end();
+            return;
+        }
         
+        // Building and writing alternate product by product; time each
+        // part, and attribute allocation to the two together.
+        ReportMetrics.StageTimer timer = metrics.start(ReportStage.ROW_BUILD, false);
+        long bytesBefore = sink.getBytesWritten();
+        long writeNanos = 0;
+        long rowCount = 0;
+        long start = System.nanoTime();
+        sink.begin(createReportHeader(inputData));
+        writeNanos += System.nanoTime() - start;
+        for (ProductGroup group : groups)
+        {
+            List<ReportRow> rows = generateGroupRows(inputData, group);
+            start = System.nanoTime();
+            for (ReportRow row : rows)
+                sink.row(row);
+            writeNanos += System.nanoTime() - start;
+            rowCount += rows.size();
+        }
+        start = System.nanoTime();
+        sink.end();
+        writeNanos += System.nanoTime() - start;
+        
+        metrics.setRows(rowCount);
+        if (bytesBefore >= 0)
+            metrics.addBytesWritten(sink.getBytesWritten() - bytesBefore);
+        metrics.add(ReportStage.ROW_BUILD, -writeNanos, 0);
+        metrics.finish(ReportStage.RANKING);
+        timer.stop();
+        metrics.add(ReportStage.WRITING, writeNanos, -1);
+        metrics.finish(ReportStage.WRITING);
+    }
+
+    /**
+     * Passes the rows of the InputData to a GroupSink, one product group
+     * at a time and with the product name each group is sorted by, so
+     * that the groups of several InputData can be merged into final row
+     * order, as {@link PartitionedReportGenerator} and
+     * {@link SpillingReportGenerator} do.
+     */
+    void writeGroups(InputData inputData, GroupSink out)
+        throws IOException
+    {
+        List<ProductGroup> groups = prepareGroups(inputData);
+        out.begin(inputData.distributors);
+        for (ProductGroup group : groups)
+        {
+            out.group(group.manufacturer, group.productName, group.productCode,
+                      generateGroupRows(inputData, group));
+        }
+        out.end();
+    }
+
+    /**
+     * Creates a Report with the title and columns of the InputData but no rows.
+     * The distributors must already be collected.
+     */
+    private Report createReportHeader(InputData inputData)
+    {
+        return createReportHeader(inputData.compact, inputData.title, inputData.subtitle,
+                                  inputData.dates, inputData.distributors);
+    }
+
+    /**
+     * Creates a Report with a title and columns but no rows.
+     * @param distributors the distributor names, sorted
+     */
+    static Report createReportHeader(boolean compact, String title, String subtitle, String dates,
+                                     List<String> distributors)
+    {
         Report reportModel = new Report();
-        reportModel.setTitle(inputData.title);
-        reportModel.setSubtitle(inputData.subtitle);
-        reportModel.setDates(inputData.dates);
+        reportModel.setTitle(title);
+        reportModel.setSubtitle(subtitle);
+        reportModel.setDates(dates);
         
         reportModel.addColumn("Manufacturer", "manufacturerName");
         reportModel.addColumn("Product Name/Code", "productNameAndCode");
-        if (!inputData.compact)
+        if (!compact)
             reportModel.addColumn("Contract", "contractName");
         
-        int asize = inputData.distributors.size();
+        int asize = distributors.size();
         for (int i = 0; i < asize; i++)
         {
-            reportModel.addColumn(inputData.distributors.get(i), "formattedPrices[" + i + "]");
+            reportModel.addColumn(distributors.get(i), "formattedPrices[" + i + "]");
         }
-        for (ReportRow row : rows)
-            reportModel.addRow(row);
         return reportModel;
     }
 
@@ -249,84 +826,340 @@ public class ReportGenerator
      */
     public List<ReportRow> generateRows(boolean compact, InputData inputData)
     {
-        // Get a list of all possible distributors in the mix.
-        SortedSet<String> distributors = new TreeSet<String>();
-        for (InputRow prices : inputData.inputRowMap.values())
+        List<ProductGroup> groups = prepareGroups(inputData);
+        ReportMetrics.StageTimer timer = startStage(inputData, ReportStage.ROW_BUILD, pool != null);
+        List<ReportRow> outputRows = new ArrayList<ReportRow>(inputData.rows.size());
+        if (pool == null)
         {
-            for (DistributorPrice v : prices.prices)
-                distributors.add(v.distributorName);
+            for (ProductGroup group : groups)
+                outputRows.addAll(generateGroupRows(inputData, group));
         }
-        inputData.distributors.addAll(distributors);
-        int asize = inputData.distributors.size();
+        else
+        {
+            // Product groups rank independently; rank them in parallel
+            // and then concatenate the rows in group order.
+            List<List<ReportRow>> groupRows = new ArrayList<List<ReportRow>>(
+                    Collections.<List<ReportRow>>nCopies(groups.size(), null));
+            int chunkSize = Math.max(MIN_GROUPS_PER_TASK,
+                                     groups.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+            pool.invoke(new GroupRowsTask(inputData, groups, groupRows, 0, groups.size(), chunkSize, timer));
+            for (List<ReportRow> rows : groupRows)
+                outputRows.addAll(rows);
+        }
+        if (timer != null)
+        {
+            inputData.metrics.setRows(outputRows.size());
+            inputData.metrics.finish(ReportStage.RANKING);
+            timer.stop();
+        }
+        return outputRows;
+    }
+
+    /**
+     * Sorts the staged rows into product groups, keeps only the lowest
+     * prices of each product if the report asks for them, and collects
+     * the distributors of the report's columns.
+     */
+    private List<ProductGroup> prepareGroups(InputData inputData)
+    {
+        ReportMetrics.StageTimer timer = startStage(inputData, ReportStage.SORTING, false);
+        List<ProductGroup> groups = sortProductGroups(inputData);
+        BitSet shownIds = null;
+        if (inputData.maxPrices > 0)
+        {
+            shownIds = new BitSet();
+            for (ProductGroup group : groups)
+                keepLowestPrices(inputData, group, shownIds);
+        }
+        if (timer != null)
+            timer.stop();
         
-        // A map based on the same InputRowKey to determine price order.
-        Map<InputRowKey,List<RowPriceIndex>> productPriceIndexMap = 
-                new HashMap<InputRowKey,List<RowPriceIndex>>();
+        timer = startStage(inputData, ReportStage.DISTRIBUTORS, false);
+        collectDistributors(inputData, shownIds);
+        if (timer != null)
+        {
+            inputData.metrics.setDistributors(inputData.distributors.size());
+            timer.stop();
+        }
+        return groups;
+    }
+
+    /**
+     * Trims the rows of a product to the product's lowest prices.  Each
+     * row already holds no more than maxPrices prices; the rows' prices
+     * are put in distributor name order, ranked in row order, and those
+     * ranked beyond maxPrices are dropped, along with rows left empty.
+     * @param shownIds receives the ids of the distributors with prices kept
+     */
+    private void keepLowestPrices(InputData inputData, ProductGroup group, BitSet shownIds)
+    {
+        RowTable rows = inputData.rows;
+        int priceCount = 0;
+        for (int i = 0; i < group.rowCount; i++)
+            priceCount += rows.priceCount(group.rows[i]);
         
-        // Build the row grid.
-        List<ReportRow> outputRows = new ArrayList<ReportRow>();
-        for (InputRowKey key : inputData.inputRowMap.keySet())
+        int[] entries = new int[priceCount];
+        int[] rowEnds = new int[group.rowCount];
+        int n = 0;
+        for (int i = 0; i < group.rowCount; i++)
         {
-            // Create and populate an output row.
-            InputRow inputRow = inputData.inputRowMap.get(key);
-            ReportRow reportRow = new ReportRow(asize);
-            reportRow.setManufacturerName(key.mfgName);
-            reportRow.setProductCode(key.productCode);
-            reportRow.setProductName(inputRow.productName);
-            reportRow.setContractName(key.contractName);
-            
-            // Get the RowPriceIndex list for this product.
-            InputRowKey valueKey = key.clone();
-            // Have to eliminate contract name to match all same-products.
-            valueKey.contractName = null;
-            List<RowPriceIndex> productPriceIndexList = productPriceIndexMap.get(valueKey);
-            if (productPriceIndexList == null)
+            int start = n;
+            for (int entry = rows.firstPrice(group.rows[i]); entry >= 0; entry = rows.nextPrice(entry))
+                entries[n++] = entry;
+            sortByDistributorName(inputData, entries, start, n);
+            rows.setPrices(group.rows[i], entries, start, n);
+            rowEnds[i] = n;
+        }
+        
+        if (priceCount > inputData.maxPrices)
+        {
+            double[] prices = new double[priceCount];
+            for (int i = 0; i < priceCount; i++)
+                prices[i] = rows.price(entries[i]);
+            int[] ordinals = new int[priceCount];
+            PriceRanking.rank(prices, priceCount, ordinals);
+            int keptRows = 0;
+            int start = 0;
+            for (int i = 0; i < group.rowCount; i++)
             {
-                productPriceIndexList = new ArrayList<RowPriceIndex>();
-                productPriceIndexMap.put(valueKey, productPriceIndexList);
+                int row = group.rows[i];
+                int kept = start;
+                for (int j = start; j < rowEnds[i]; j++)
+                {
+                    if (ordinals[j] <= inputData.maxPrices)
+                        entries[kept++] = entries[j];
+                }
+                if (kept == start)
+                    rows.remove(row);
+                else
+                {
+                    rows.setPrices(row, entries, start, kept);
+                    group.rows[keptRows++] = row;
+                }
+                start = rowEnds[i];
             }
-            
-            // Store the distributor's price in the proper place in the ReportRow,
-            // and add a record to this product's RowPriceIndex list.
-            for (DistributorPrice distributorPrice : inputRow.prices)
+            group.rowCount = keptRows;
+        }
+        
+        for (int i = 0; i < group.rowCount; i++)
+        {
+            for (int entry = rows.firstPrice(group.rows[i]); entry >= 0; entry = rows.nextPrice(entry))
+                shownIds.set(rows.distributor(entry));
+        }
+    }
+
+    /** Sorts price entries by distributor name; a row has at most maxPrices of them.
+     */
+    private static void sortByDistributorName(InputData inputData, int[] entries, int from, int to)
+    {
+        RowTable rows = inputData.rows;
+        DistributorDictionary distributorIds = inputData.distributorIds;
+        for (int i = from + 1; i < to; i++)
+        {
+            int entry = entries[i];
+            int distributorId = rows.distributor(entry);
+            int j = i;
+            for (; j > from && distributorIds.compare(rows.distributor(entries[j - 1]), distributorId) > 0; j--)
+                entries[j] = entries[j - 1];
+            entries[j] = entry;
+        }
+    }
+
+    /** Fills InputData.distributors with the distributor names in the mix, sorted,
+     * and maps each distributor id to its column.
+     * @param shownIds the ids of the distributors to show, or null for all
+     */
+    private void collectDistributors(InputData inputData, BitSet shownIds)
+    {
+        DistributorDictionary distributorIds = inputData.distributorIds;
+        int asize = distributorIds.size();
+        SortedMap<String, Integer> distributors = new TreeMap<String, Integer>();
+        for (int id = 0; id < asize; id++)
+        {
+            if (shownIds == null || shownIds.get(id))
+                distributors.put(distributorIds.name(id), id);
+        }
+        
+        inputData.distributors.clear();
+        inputData.distributorColumns = new int[asize];
+        for (Map.Entry<String, Integer> entry : distributors.entrySet())
+        {
+            inputData.distributorColumns[entry.getValue()] = inputData.distributors.size();
+            inputData.distributors.add(entry.getKey());
+        }
+    }
+
+    /**
+     * Groups the staged rows by product, and sorts the groups by
+     * manufacturer/product name/product code and the rows of each
+     * group by contract name, which is the final report order.
+     * The strings are ranked once as sort keys; rows and groups are
+     * then ordered by counting sorts on the ranks.
+     */
+    private List<ProductGroup> sortProductGroups(InputData inputData)
+    {
+        RowTable rows = inputData.rows;
+        int[] liveRows = new int[rows.size()];
+        int rowCount = 0;
+        for (int row = 0; row < rows.rowCount(); row++)
+        {
+            if (!rows.isRemoved(row))
+                liveRows[rowCount++] = row;
+        }
+        
+        // Each product with rows is a group, named after its first row.
+        ProductGroup[] productGroups = new ProductGroup[rows.productCount()];
+        List<ProductGroup> groups = new ArrayList<ProductGroup>();
+        String[] contractNames = new String[rowCount];
+        for (int i = 0; i < rowCount; i++)
+        {
+            int row = liveRows[i];
+            ProductGroup group = productGroups[rows.product(row)];
+            if (group == null)
             {
-                int idx = inputData.distributors.indexOf(distributorPrice.distributorName);
-                reportRow.setDistributorPrice(idx, distributorPrice.price);
-                productPriceIndexList.add(new RowPriceIndex(idx, reportRow, distributorPrice.price));
+                group = new ProductGroup(rows.manufacturer(row), rows.productCode(row), rows.productName(row));
+                productGroups[rows.product(row)] = group;
+                groups.add(group);
             }
-            outputRows.add(reportRow);
+            group.rowCount++;
+            contractNames[i] = rows.contractName(row);
+        }
+        for (ProductGroup group : groups)
+        {
+            group.rows = new int[group.rowCount];
+            group.rowCount = 0;
         }
         
-        // For each product, as determined by the valueKey,
-        // sort the prices and put the ordinal "(1), (2), etc"
-        // into the related report rows.
-        for (List<RowPriceIndex> rowPriceIndexList : productPriceIndexMap.values())
+        // Adding the rows in contract name order leaves each group's rows in order.
+        int[] ranks = new int[rowCount];
+        int rankCount = SortRanks.rank(contractNames, ranks);
+        for (int i : SortRanks.sort(SortRanks.sequence(rowCount), ranks, rankCount))
         {
-            // Sort to obtain value order.
-            Collections.sort(rowPriceIndexList, new Comparator<RowPriceIndex>()
-                {
-                    public int compare(RowPriceIndex rpi1, RowPriceIndex rpi2)
-                    {
-                        if (rpi1.price == rpi2.price)
-                            return 0;
-                        else if (rpi1.price > rpi2.price)
-                            return 1;
-                        else
-                            return -1;
-                    }
-                });
+            ProductGroup group = productGroups[rows.product(liveRows[i])];
+            group.rows[group.rowCount++] = liveRows[i];
+        }
+        
+        // Sort the groups by product code, then product name, then
+        // manufacturer; each sort is stable, so the earlier keys break ties.
+        int groupCount = groups.size();
+        String[] manufacturers = new String[groupCount];
+        String[] productNames = new String[groupCount];
+        String[] productCodes = new String[groupCount];
+        for (int g = 0; g < groupCount; g++)
+        {
+            ProductGroup group = groups.get(g);
+            manufacturers[g] = group.manufacturer;
+            productNames[g] = group.productName;
+            productCodes[g] = group.productCode;
+        }
+        int[] order = SortRanks.sequence(groupCount);
+        ranks = new int[groupCount];
+        order = SortRanks.sort(order, ranks, SortRanks.rank(productCodes, ranks));
+        order = SortRanks.sort(order, ranks, SortRanks.rank(productNames, ranks));
+        order = SortRanks.sort(order, ranks, SortRanks.rank(manufacturers, ranks));
+        
+        List<ProductGroup> sortedGroups = new ArrayList<ProductGroup>(groupCount);
+        for (int g : order)
+            sortedGroups.add(groups.get(g));
+        return sortedGroups;
+    }
+
+    /**
+     * Creates the report rows of a single product, and ranks
+     * the product's prices across those rows.
+     */
+    private List<ReportRow> generateGroupRows(InputData inputData, ProductGroup group)
+    {
+        RowTable rows = inputData.rows;
+        int asize = inputData.distributors.size();
+        int priceCount = 0;
+        for (int i = 0; i < group.rowCount; i++)
+            priceCount += rows.priceCount(group.rows[i]);
+        
+        // The product's prices, with the row and column each belongs to.
+        double[] prices = new double[priceCount];
+        int[] columns = new int[priceCount];
+        ReportRow[] priceRows = new ReportRow[priceCount];
+        int n = 0;
+        
+        List<ReportRow> groupRows = new ArrayList<ReportRow>(group.rowCount);
+        for (int i = 0; i < group.rowCount; i++)
+        {
+            // Create and populate an output row.
+            int row = group.rows[i];
+            ReportRow reportRow = new ReportRow(asize);
+            reportRow.setManufacturerName(group.manufacturer);
+            reportRow.setProductCode(group.productCode);
+            reportRow.setProductName(rows.productName(row));
+            reportRow.setContractName(rows.contractName(row));
             
-            // Assign ordinals to the distributor prices in the report row.
-            int i = 1;
-            for (RowPriceIndex rpi : rowPriceIndexList)
+            // Record the row's prices for ranking, then store them in the ReportRow
+            // at once; they come in the order they were added, not column order.
+            int first = n;
+            for (int entry = rows.firstPrice(row); entry >= 0; entry = rows.nextPrice(entry))
             {
-                rpi.row.setOrdinal(rpi.idx, i);
-                i++;
+                prices[n] = rows.price(entry);
+                columns[n] = inputData.distributorColumns[rows.distributor(entry)];
+                priceRows[n] = reportRow;
+                n++;
             }
+            reportRow.setDistributorPrices(columns, prices, first, n);
+            groupRows.add(reportRow);
         }
         
-        // Sort by manufacturer/product/contract name/value. 
-        Collections.sort(outputRows);
-        return outputRows;
+        // Rank the prices and put the ordinal "(1), (2), etc"
+        // into the related report rows.  Equal prices are ranked in row order.
+        long start = inputData.metrics != null ? System.nanoTime() : 0;
+        int[] ordinals = new int[n];
+        PriceRanking.rank(prices, n, ordinals);
+        for (int i = 0; i < n; i++)
+            priceRows[i].setOrdinal(columns[i], ordinals[i]);
+        if (inputData.metrics != null)
+            inputData.metrics.add(ReportStage.RANKING, System.nanoTime() - start, -1);
+        return groupRows;
+    }
+
+    /** Generates the rows of a range of product groups, forking for large ranges.
+     */
+    private class GroupRowsTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final InputData inputData;
+        private final List<ProductGroup> groups;
+        private final List<List<ReportRow>> groupRows;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        /** Measures the stage's allocation on the threads running it, or null
+         */
+        private final ReportMetrics.StageTimer timer;
+
+        GroupRowsTask(InputData inputData, List<ProductGroup> groups, List<List<ReportRow>> groupRows,
+                      int from, int to, int chunkSize, ReportMetrics.StageTimer timer)
+        {
+            this.inputData = inputData;
+            this.groups = groups;
+            this.groupRows = groupRows;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.timer = timer;
+        }
+
+        protected void compute()
+        {
+            if (timer != null)
+                timer.addCurrentThread();
+            if (to - from <= chunkSize)
+            {
+                for (int i = from; i < to; i++)
+                    groupRows.set(i, generateGroupRows(inputData, groups.get(i)));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new GroupRowsTask(inputData, groups, groupRows, from, middle, chunkSize, timer),
+                      new GroupRowsTask(inputData, groups, groupRows, middle, to, chunkSize, timer));
+        }
     }
 }
@@ -1,21 +1,36 @@
 package report;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
+import java.util.Arrays;
+
+import support.PriceFormatter;
+import support.PricedRow;
 
 /**
  *  A transient bean representing a row of product prices
  *  from multiple distributors.
  */
-public class ReportRow implements Comparable<ReportRow>
+public class ReportRow implements Comparable<ReportRow>, PricedRow
 {
-	private static NumberFormat numberFormat = new DecimalFormat("0.00");
+    private static final int [] EMPTY = new int[0];
+    private static final double [] EMPTY_PRICES = new double[0];
+    
     private String manufacturerName;
     private String productName;
     private String productCode;
     private String contractName;
-    private Double [] distributorPrices;
-    private String [] formattedPrices; 
+    
+    /** Number of distributors, i.e. of price columns.
+     */
+    private int distributorCount;
+    
+    /** The row's prices, stored sparsely: priceColumns holds the distributor
+     * index of each price in ascending order, and prices and ordinals the
+     * price and its order (0 until ranked) at the same position.
+     */
+    private int priceCount;
+    private int [] priceColumns;
+    private double [] prices;
+    private int [] ordinals;
     
     
     ///////////////////////////////////////////////////////////////////////
@@ -29,8 +44,10 @@ public class ReportRow implements Comparable<ReportRow>
      */
     public ReportRow(int arraySize)
     {
-        distributorPrices = new Double[arraySize];
-        formattedPrices = new String[arraySize];
+        distributorCount = arraySize;
+        priceColumns = EMPTY;
+        prices = EMPTY_PRICES;
+        ordinals = EMPTY;
     }
     
     
@@ -42,28 +59,174 @@ public class ReportRow implements Comparable<ReportRow>
 
     public void setDistributorPrice(int index, double price)
     {
-    	distributorPrices[index] = price;
+        if (index < 0 || index >= distributorCount)
+            throw new ArrayIndexOutOfBoundsException(index);
+        int position = find(index);
+        if (position < 0)
+            position = insert(-position - 1, index);
+        prices[position] = price;
+        ordinals[position] = 0;
+    }
+
+    /**
+     * Sets the row's prices at once, replacing any it has, in
+     * O(k log k) for k prices whatever their order.  A distributor index
+     * given more than once gets its last price, as with
+     * {@link #setDistributorPrice(int, double)}.
+     * @param indexes the distributor indexes, in any order
+     * @param prices the prices, at the same positions
+     * @param from the position of the first price
+     * @param to the position after the last price
+     */
+    void setDistributorPrices(int[] indexes, double[] prices, int from, int to)
+    {
+        // Sort positions by distributor index, then by position.
+        long[] order = new long[to - from];
+        for (int i = from; i < to; i++)
+        {
+            if (indexes[i] < 0 || indexes[i] >= distributorCount)
+                throw new ArrayIndexOutOfBoundsException(indexes[i]);
+            order[i - from] = (long) indexes[i] << 32 | i;
+        }
+        Arrays.sort(order);
+        
+        priceCount = 0;
+        priceColumns = new int[order.length];
+        this.prices = new double[order.length];
+        ordinals = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            int index = (int) (order[i] >>> 32);
+            if (priceCount > 0 && priceColumns[priceCount - 1] == index)
+                priceCount--;
+            priceColumns[priceCount] = index;
+            this.prices[priceCount] = prices[(int) order[i]];
+            priceCount++;
+        }
     }
 
     /**
-     * Sets the order for a particular price value, and
-     * generates a formatted value for reporting.
+     * Sets the order for a particular price value.
+     * The price is formatted for reporting when it is read.
      * @param index the distributor index
      * @param ordinal the price order (1 is lowest price)
      */
     public void setOrdinal(int index, int ordinal)
     {
-        Double v = distributorPrices[index];
-        if (v != null)
-        {
-           formattedPrices[index] = "(" + ordinal + ") " +
-                      numberFormat.format(v);
-        }
+        int position = find(index);
+        if (position >= 0)
+            ordinals[position] = ordinal;
+    }
+
+    /** Whether the row has a price for a distributor.
+     * @param index the distributor index
+     */
+    public boolean hasPrice(int index)
+    {
+        return find(index) >= 0;
+    }
+
+    /** Returns a distributor's price, or NaN if the row has none.
+     * @param index the distributor index
+     */
+    public double getPrice(int index)
+    {
+        int position = find(index);
+        return position >= 0 ? prices[position] : Double.NaN;
+    }
+
+    /** Returns the order of a distributor's price, or 0 if it has none or is not ranked.
+     * @param index the distributor index
+     */
+    public int getOrdinal(int index)
+    {
+        int position = find(index);
+        return position >= 0 ? ordinals[position] : 0;
+    }
+
+    /** Returns the number of distributors, i.e. of price columns.
+     */
+    public int getDistributorCount()
+    {
+        return distributorCount;
+    }
+
+    /**
+     * Returns the formatted price of a distributor, e.g. "(1) 24.00",
+     * or null if the row has no ranked price for it.
+     * @param index the distributor index
+     */
+    public String getFormattedPrices(int index)
+    {
+        int position = find(index);
+        if (position < 0 || ordinals[position] == 0)
+            return null;
+        return PriceFormatter.formatOrdinalPrice(ordinals[position], prices[position]);
     }
     
+    /** Returns the formatted prices of all distributors, as a new array.
+     */
     public String [] getFormattedPrices()
     {
-       return formattedPrices;
+        String [] formattedPrices = new String[distributorCount];
+        for (int i = 0; i < priceCount; i++)
+            formattedPrices[priceColumns[i]] = getFormattedPrices(priceColumns[i]);
+        return formattedPrices;
+    }
+
+    /** Returns the number of prices the row has.
+     */
+    int priceCount()
+    {
+        return priceCount;
+    }
+
+    /** Returns the distributor index of the row's price at a position, in ascending order.
+     */
+    int priceColumn(int position)
+    {
+        return priceColumns[position];
+    }
+
+    /** Returns the position of a distributor index in priceColumns,
+     * or (-(insertion point) - 1) if the row has no price for it.
+     */
+    private int find(int index)
+    {
+        int low = 0;
+        int high = priceCount - 1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int column = priceColumns[middle];
+            if (column < index)
+                low = middle + 1;
+            else if (column > index)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    /** Opens a price slot for a distributor index at a position.
+     */
+    private int insert(int position, int index)
+    {
+        if (priceCount == priceColumns.length)
+        {
+            int capacity = Math.min(distributorCount, Math.max(1, priceCount * 2));
+            priceColumns = Arrays.copyOf(priceColumns, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            ordinals = Arrays.copyOf(ordinals, capacity);
+        }
+        int tail = priceCount - position;
+        System.arraycopy(priceColumns, position, priceColumns, position + 1, tail);
+        System.arraycopy(prices, position, prices, position + 1, tail);
+        System.arraycopy(ordinals, position, ordinals, position + 1, tail);
+        priceColumns[position] = index;
+        priceCount++;
+        return position;
     }
 
     public String getProductCode()
@@ -111,7 +274,8 @@ public class ReportRow implements Comparable<ReportRow>
        return productName + " / " + productCode;
     }
 
-    /** Compare by MFG/product name/contract name.
+    /** Compare by MFG/product name/product code/contract name, the order
+     * of report rows.  A row without a contract name comes first.
      * @param other other instance 
      */
     public int compareTo(ReportRow other)
@@ -122,8 +286,16 @@ public class ReportRow implements Comparable<ReportRow>
             i = productName.compareTo(other.productName);
             if (i == 0)
             {
-                if (contractName != null)
-                	i = contractName.compareTo(other.contractName);
+                i = productCode.compareTo(other.productCode);
+                if (i == 0 && contractName != other.contractName)
+                {
+                    if (contractName == null)
+                        i = -1;
+                    else if (other.contractName == null)
+                        i = 1;
+                    else
+                        i = contractName.compareTo(other.contractName);
+                }
             }
         }
         return i;
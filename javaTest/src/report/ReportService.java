@@ -0,0 +1,379 @@
+package report;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import support.Contract;
+import support.Report;
+
+/**
+ *  Serves price comparison reports to many threads.
+ *  <p>
+ *  Reports are generated on an executor.  Identical requests that arrive
+ *  while a report is being generated share that one generation, and
+ *  finished reports are kept in a least-recently-used cache bounded by
+ *  their total number of rows.  Requests are answered from the current
+ *  contract set; replacing it with {@link #setContracts(List)} starts a
+ *  new version, and reports of earlier versions are no longer served.
+ *  <p>
+ *  The reports returned are shared by all callers that asked for them,
+ *  and must be treated as read-only.  They may be written by several
+ *  threads at once.
+ */
+public class ReportService implements Closeable
+{
+    private final ReportGenerator generator;
+    private final Executor executor;
+    /** The executor created by the service, shut down on close, or null
+     */
+    private final ExecutorService ownedExecutor;
+    private final long maxCachedRows;
+
+    private volatile ContractSet contractSet;
+    private final ConcurrentHashMap<RequestKey, CompletableFuture<Report>> inFlight =
+                new ConcurrentHashMap<RequestKey, CompletableFuture<Report>>();
+
+    /** Finished reports in access order, and their total weight; guarded by cache
+     */
+    private final LinkedHashMap<RequestKey, Report> cache = new LinkedHashMap<RequestKey, Report>(16, 0.75f, true);
+    private long cachedRows;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                          Nested Classes                           //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** A version of the contracts.
+     */
+    private static class ContractSet
+    {
+        final long version;
+        final List<Contract> contracts;
+
+        ContractSet(long version, List<Contract> contracts)
+        {
+            this.version = version;
+            this.contracts = contracts;
+        }
+    }
+
+    /** Identifies a report of a contract set version.
+     */
+    private static class RequestKey
+    {
+        final long version;
+        final boolean compact;
+        final String customer;
+        final String dates;
+
+        RequestKey(long version, boolean compact, String customer, String dates)
+        {
+            this.version = version;
+            this.compact = compact;
+            this.customer = customer;
+            this.dates = dates;
+        }
+
+        public int hashCode()
+        {
+            int hash = (int) (version ^ (version >>> 32));
+            hash = 29 * hash + (compact ? 1 : 0);
+            hash = 29 * hash + (customer != null ? customer.hashCode() : 0);
+            hash = 29 * hash + (dates != null ? dates.hashCode() : 0);
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof RequestKey))
+                return false;
+            RequestKey other = (RequestKey) obj;
+            return version == other.version
+                    && compact == other.compact
+                    && (customer == null ? other.customer == null : customer.equals(other.customer))
+                    && (dates == null ? other.dates == null : dates.equals(other.dates));
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructs a service that generates reports on an executor.
+     * @param generator the generator; it must be safe to share between threads
+     * @param executor the executor to generate reports on; it is not shut down by {@link #close()}
+     * @param contracts the initial contracts; the list must not change afterwards
+     * @param maxCachedRows the total number of report rows to keep cached, or 0 for no cache
+     */
+    public ReportService(ReportGenerator generator, Executor executor, List<Contract> contracts,
+                         long maxCachedRows)
+    {
+        this(generator, executor, null, contracts, maxCachedRows);
+    }
+
+    /**
+     * Constructs a service that generates at most a number of reports at a
+     * time, on daemon threads of its own.
+     * @param generator the generator; it must be safe to share between threads
+     * @param threads the number of reports to generate at once
+     * @param contracts the initial contracts; the list must not change afterwards
+     * @param maxCachedRows the total number of report rows to keep cached, or 0 for no cache
+     */
+    public ReportService(ReportGenerator generator, int threads, List<Contract> contracts, long maxCachedRows)
+    {
+        this(generator, null, Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "report-service-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }), contracts, maxCachedRows);
+    }
+
+    private ReportService(ReportGenerator generator, Executor executor, ExecutorService ownedExecutor,
+                          List<Contract> contracts, long maxCachedRows)
+    {
+        this.generator = generator;
+        this.executor = executor != null ? executor : ownedExecutor;
+        this.ownedExecutor = ownedExecutor;
+        this.maxCachedRows = maxCachedRows;
+        this.contractSet = new ContractSet(0, contracts);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Requests                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Requests a report of the current contracts.  The report comes from
+     * the cache, from a generation of the same report already running, or
+     * from a new generation.
+     * @param compact whether to show multiple prices on each report row
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @return a future completed with the report, or with the failure of its generation
+     */
+    public CompletableFuture<Report> requestReport(boolean compact, String customer, String dates)
+    {
+        final ContractSet set = contractSet;
+        final RequestKey key = new RequestKey(set.version, compact, customer, dates);
+        Report report = getCached(key);
+        if (report != null)
+        {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(report);
+        }
+
+        final CompletableFuture<Report> future = new CompletableFuture<Report>();
+        CompletableFuture<Report> running = inFlight.putIfAbsent(key, future);
+        if (running != null)
+        {
+            coalesced.incrementAndGet();
+            return running.copy();
+        }
+        // A generation may have finished since the cache was checked.
+        report = getCached(key);
+        if (report != null)
+        {
+            inFlight.remove(key, future);
+            hits.incrementAndGet();
+            future.complete(report);
+            return future.copy();
+        }
+
+        try
+        {
+            executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            Report generatedReport = generator.generateReport(
+                                    set.contracts, key.compact, key.customer, key.dates);
+                            generated.incrementAndGet();
+                            putCached(key, generatedReport);
+                            future.complete(generatedReport);
+                        }
+                        catch (Throwable t)
+                        {
+                            future.completeExceptionally(t);
+                        }
+                        finally
+                        {
+                            inFlight.remove(key, future);
+                        }
+                    }
+                });
+        }
+        catch (RejectedExecutionException e)
+        {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future.copy();
+    }
+
+    /**
+     * Returns a report of the current contracts, waiting for it if it has
+     * to be generated.
+     * @param compact whether to show multiple prices on each report row
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @return the report
+     * @throws ExecutionException if the report could not be generated
+     */
+    public Report getReport(boolean compact, String customer, String dates)
+        throws InterruptedException, ExecutionException
+    {
+        return requestReport(compact, customer, dates).get();
+    }
+
+    /**
+     * Replaces the contracts reports are generated from.  Cached reports
+     * are dropped; generations already running finish for the requests
+     * waiting on them, but are not cached.
+     * @param contracts the new contracts; the list must not change afterwards
+     */
+    public void setContracts(List<Contract> contracts)
+    {
+        synchronized (cache)
+        {
+            contractSet = new ContractSet(contractSet.version + 1, contracts);
+            cache.clear();
+            cachedRows = 0;
+        }
+    }
+
+    /** Returns the version of the current contracts, incremented by each {@link #setContracts}.
+     */
+    public long getContractVersion()
+    {
+        return contractSet.version;
+    }
+
+    /** Shuts down the service's own executor, if it has one.
+     */
+    public void close()
+    {
+        if (ownedExecutor != null)
+            ownedExecutor.shutdown();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Cache                               //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private Report getCached(RequestKey key)
+    {
+        synchronized (cache)
+        {
+            return cache.get(key);
+        }
+    }
+
+    /**
+     * Caches a report of the current contracts, evicting the least
+     * recently used reports until the cache is within its bound.
+     */
+    private void putCached(RequestKey key, Report report)
+    {
+        long weight = weight(report);
+        synchronized (cache)
+        {
+            if (key.version != contractSet.version || weight > maxCachedRows)
+                return;
+            Report replaced = cache.put(key, report);
+            if (replaced != null)
+                cachedRows -= weight(replaced);
+            cachedRows += weight;
+            for (Iterator<Map.Entry<RequestKey, Report>> i = cache.entrySet().iterator();
+                 cachedRows > maxCachedRows && i.hasNext(); )
+            {
+                cachedRows -= weight(i.next().getValue());
+                i.remove();
+            }
+        }
+    }
+
+    /** Returns the weight of a report in the cache: its rows, plus one for the header.
+     */
+    private static long weight(Report report)
+    {
+        return report.getRows().size() + 1;
+    }
+
+    /** Returns the number of reports in the cache.
+     */
+    public int getCachedReports()
+    {
+        synchronized (cache)
+        {
+            return cache.size();
+        }
+    }
+
+    /** Returns the number of rows of the reports in the cache.
+     */
+    public long getCachedRows()
+    {
+        synchronized (cache)
+        {
+            return cachedRows;
+        }
+    }
+
+    /** Returns the number of requests answered from the cache.
+     */
+    public long getCacheHits()
+    {
+        return hits.get();
+    }
+
+    /** Returns the number of requests that joined a generation already running.
+     */
+    public long getCoalescedRequests()
+    {
+        return coalesced.get();
+    }
+
+    /** Returns the number of reports generated.
+     */
+    public long getGeneratedReports()
+    {
+        return generated.get();
+    }
+}
@@ -0,0 +1,69 @@
+package report;
+
+/**
+ *  The parameters of one report derived from a {@link ContractIndex}:
+ *  the layout, the customer and dates shown in the header, and the
+ *  contracts whose prices it compares.
+ */
+public class ReportVariant
+{
+    private final boolean compact;
+    private final int maxPrices;
+    private final String customer;
+    private final String dates;
+    private final ContractFilter filter;
+
+    /**
+     * @param compact whether to show multiple prices on each report row
+     * @param maxPrices the number of lowest prices to show per product, or 0 for all
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @param filter the contracts to include, or null for all
+     */
+    public ReportVariant(boolean compact, int maxPrices, String customer, String dates, ContractFilter filter)
+    {
+        if (maxPrices < 0)
+            throw new IllegalArgumentException("maxPrices < 0: " + maxPrices);
+        this.compact = compact;
+        this.maxPrices = maxPrices;
+        this.customer = customer;
+        this.dates = dates;
+        this.filter = filter;
+    }
+
+    /**
+     * A variant showing all prices of all contracts.
+     * @param compact whether to show multiple prices on each report row
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     */
+    public ReportVariant(boolean compact, String customer, String dates)
+    {
+        this(compact, 0, customer, dates, null);
+    }
+
+    public boolean isCompact()
+    {
+        return compact;
+    }
+
+    public int getMaxPrices()
+    {
+        return maxPrices;
+    }
+
+    public String getCustomer()
+    {
+        return customer;
+    }
+
+    public String getDates()
+    {
+        return dates;
+    }
+
+    public ContractFilter getFilter()
+    {
+        return filter;
+    }
+}
@@ -0,0 +1,246 @@
+package report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A sorted run of staged rows that {@link SpillingReportGenerator} has
+ * spilled to disk: the rows of a {@link RowTable} ordered by
+ * manufacturer, product code and contract name, or the rows of several
+ * runs merged, ordered by manufacturer and product code.
+ * <p>
+ * Layout, big-endian: magic; then each row as a presence flag,
+ * manufacturer, product code, contract name (flag and text, absent in a
+ * compact report), product name, the number of the run the row was
+ * spilled in and the row's number in its table, and its price count,
+ * with the distributor id and price of each price in the order they
+ * were added.  A flag of false ends the file.  Strings are modified
+ * UTF-8.
+ */
+class RowRunFile
+{
+    static final int MAGIC = 0x50435252;
+
+    /** Orders readers by the product of the row read last.
+     */
+    static final Comparator<Reader> PRODUCT_ORDER = new Comparator<Reader>()
+    {
+        public int compare(Reader r1, Reader r2)
+        {
+            int i = r1.manufacturer.compareTo(r2.manufacturer);
+            if (i == 0)
+                i = r1.productCode.compareTo(r2.productCode);
+            return i;
+        }
+    };
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Writer                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes the rows of a table as a sorted run.
+     * @param rows the table; it has no removed rows
+     * @param run the number of the run, in spilling order
+     * @param file the file to write
+     * @param bufferSize the size of the output buffer
+     */
+    static void write(RowTable rows, int run, Path file, int bufferSize)
+        throws IOException
+    {
+        int rowCount = rows.rowCount();
+        String[] manufacturers = new String[rowCount];
+        String[] productCodes = new String[rowCount];
+        String[] contractNames = new String[rowCount];
+        for (int row = 0; row < rowCount; row++)
+        {
+            manufacturers[row] = rows.manufacturer(row);
+            productCodes[row] = rows.productCode(row);
+            contractNames[row] = rows.contractName(row);
+        }
+        int[] ranks = new int[rowCount];
+        int[] order = SortRanks.sequence(rowCount);
+        order = SortRanks.sort(order, ranks, SortRanks.rank(contractNames, ranks));
+        order = SortRanks.sort(order, ranks, SortRanks.rank(productCodes, ranks));
+        order = SortRanks.sort(order, ranks, SortRanks.rank(manufacturers, ranks));
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), bufferSize));
+        try
+        {
+            out.writeInt(MAGIC);
+            for (int row : order)
+            {
+                writeRow(out, manufacturers[row], productCodes[row], contractNames[row], rows.productName(row),
+                         run, row, rows.priceCount(row));
+                for (int entry = rows.firstPrice(row); entry >= 0; entry = rows.nextPrice(entry))
+                {
+                    out.writeInt(rows.distributor(entry));
+                    out.writeDouble(rows.price(entry));
+                }
+            }
+            out.writeBoolean(false);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Merges runs into one, ordered by manufacturer and product code.
+     * @param runs the runs to merge
+     * @param file the file to write
+     * @param bufferSize the size of each input and output buffer
+     */
+    static void merge(List<Path> runs, Path file, int bufferSize)
+        throws IOException
+    {
+        List<Reader> readers = new ArrayList<Reader>(runs.size());
+        DataOutputStream out = null;
+        try
+        {
+            PriorityQueue<Reader> heads = new PriorityQueue<Reader>(Math.max(1, runs.size()), PRODUCT_ORDER);
+            for (Path run : runs)
+            {
+                Reader reader = new Reader(run, bufferSize);
+                readers.add(reader);
+                if (reader.next())
+                    heads.add(reader);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), bufferSize));
+            out.writeInt(MAGIC);
+            while (!heads.isEmpty())
+            {
+                Reader reader = heads.poll();
+                writeRow(out, reader.manufacturer, reader.productCode, reader.contractName, reader.productName,
+                         reader.run, reader.row, reader.prices.length);
+                for (int i = 0; i < reader.prices.length; i++)
+                {
+                    out.writeInt(reader.distributorIds[i]);
+                    out.writeDouble(reader.prices[i]);
+                }
+                if (reader.next())
+                    heads.add(reader);
+            }
+            out.writeBoolean(false);
+        }
+        finally
+        {
+            if (out != null)
+                out.close();
+            for (Reader reader : readers)
+                reader.close();
+        }
+    }
+
+    /** Writes a row up to its prices.
+     */
+    private static void writeRow(DataOutputStream out, String manufacturer, String productCode, String contractName,
+                                 String productName, int run, int row, int priceCount)
+        throws IOException
+    {
+        out.writeBoolean(true);
+        out.writeUTF(manufacturer);
+        out.writeUTF(productCode);
+        out.writeBoolean(contractName != null);
+        if (contractName != null)
+            out.writeUTF(contractName);
+        out.writeUTF(productName);
+        out.writeInt(run);
+        out.writeInt(row);
+        out.writeInt(priceCount);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Reader                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads a run one row at a time.  The row read last is described by
+     * the reader's fields until the next call to {@link #next()}.
+     */
+    static class Reader implements Closeable
+    {
+        private final DataInputStream in;
+
+        String manufacturer;
+        String productCode;
+        String contractName;
+        String productName;
+        /** The number of the run the row was spilled in, and its number in its table
+         */
+        int run;
+        int row;
+        int[] distributorIds;
+        double[] prices;
+
+        /**
+         * @param file the run
+         * @param bufferSize the size of the input buffer
+         */
+        Reader(Path file, int bufferSize)
+            throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), bufferSize));
+            try
+            {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a row run file: " + file);
+            }
+            catch (IOException e)
+            {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the next row.
+         * @return false at the end of the run
+         */
+        boolean next()
+            throws IOException
+        {
+            if (!in.readBoolean())
+                return false;
+            manufacturer = in.readUTF();
+            productCode = in.readUTF();
+            contractName = in.readBoolean() ? in.readUTF() : null;
+            productName = in.readUTF();
+            run = in.readInt();
+            row = in.readInt();
+            int priceCount = in.readInt();
+            distributorIds = new int[priceCount];
+            prices = new double[priceCount];
+            for (int i = 0; i < priceCount; i++)
+            {
+                distributorIds[i] = in.readInt();
+                prices[i] = in.readDouble();
+            }
+            return true;
+        }
+
+        public void close()
+            throws IOException
+        {
+            in.close();
+        }
+    }
+}
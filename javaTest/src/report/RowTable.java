@@ -0,0 +1,544 @@
+package report;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ *  The staged rows of a report, keyed by manufacturer, product code and
+ *  contract name, with the distributor prices of each row.
+ *  <p>
+ *  The key strings are dictionary encoded to int ids.  Manufacturer and
+ *  product code ids pack into a long product key, and product and
+ *  contract name ids into a long row key, each looked up in an
+ *  open-addressing table of primitive keys, so finding an existing row
+ *  allocates nothing.  Row data is held in parallel arrays indexed by
+ *  row number, and prices in parallel arrays of entries chained per row
+ *  in the order they were added.
+ *  <p>
+ *  Rows are numbered in the order they are first added; a row keeps the
+ *  product name it was added with.  A table is not thread-safe: parallel
+ *  aggregation fills a table per task and merges them with
+ *  {@link #addAll(RowTable, int, DistributorDictionary)}.
+ */
+final class RowTable
+{
+    /** Number of prices in a row above which its distributors are looked up by hash.
+     */
+    private static final int MAX_SCANNED_PRICES = 8;
+
+    /** Estimated heap of a String and its byte array, not counting the chars
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    private final StringIds manufacturerIds = new StringIds();
+    private final StringIds productCodeIds = new StringIds();
+    private final StringIds contractNameIds = new StringIds();
+
+    /** Product id of each manufacturer id and product code id
+     */
+    private final LongIntMap productIds = new LongIntMap();
+    private int productCount;
+    private int[] productManufacturers = new int[16];
+    private int[] productCodes = new int[16];
+
+    /** Row of each product id and contract name id + 1
+     */
+    private final LongIntMap rowIds = new LongIntMap();
+    private int rowCount;
+    private int liveRowCount;
+    private int[] rowProducts = new int[16];
+    /** Contract name id of each row, or -1 for none
+     */
+    private int[] rowContractNames = new int[16];
+    private String[] rowProductNames = new String[16];
+    /** First and last price entries of each row, or -1 for none
+     */
+    private int[] rowFirstPrices = new int[16];
+    private int[] rowLastPrices = new int[16];
+    private int[] rowPriceCounts = new int[16];
+    private final BitSet removedRows = new BitSet();
+
+    private int entryCount;
+    private int[] entryDistributors = new int[16];
+    private double[] entryPrices = new double[16];
+    /** Next entry of the same row, or -1
+     */
+    private int[] entryNext = new int[16];
+    /** Entry of each row and distributor id, for rows with too many prices to scan
+     */
+    private final LongIntMap rowDistributorEntries = new LongIntMap();
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                                Rows                               //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the row of a key, adding an empty row if there is none.
+     * @param contractName the contract name, or null for a row per product
+     * @param productName the product name of the row, if it is added
+     * @return the row number
+     */
+    int row(String manufacturer, String productCode, String contractName, String productName)
+    {
+        int manufacturerId = manufacturerIds.id(manufacturer);
+        int productCodeId = productCodeIds.id(productCode);
+        int product = productIds.putIfAbsent(((long) manufacturerId << 32) | productCodeId, productCount);
+        if (product < 0)
+            product = addProduct(manufacturerId, productCodeId);
+
+        int contractNameId = contractName == null ? -1 : contractNameIds.id(contractName);
+        int row = rowIds.putIfAbsent(((long) product << 32) | (contractNameId + 1), rowCount);
+        if (row < 0)
+            row = addRow(product, contractNameId, productName);
+        return row;
+    }
+
+    private int addProduct(int manufacturerId, int productCodeId)
+    {
+        if (productCount == productManufacturers.length)
+        {
+            productManufacturers = Arrays.copyOf(productManufacturers, productCount * 2);
+            productCodes = Arrays.copyOf(productCodes, productCount * 2);
+        }
+        productManufacturers[productCount] = manufacturerId;
+        productCodes[productCount] = productCodeId;
+        return productCount++;
+    }
+
+    private int addRow(int product, int contractNameId, String productName)
+    {
+        if (rowCount == rowProducts.length)
+        {
+            int capacity = rowCount * 2;
+            rowProducts = Arrays.copyOf(rowProducts, capacity);
+            rowContractNames = Arrays.copyOf(rowContractNames, capacity);
+            rowProductNames = Arrays.copyOf(rowProductNames, capacity);
+            rowFirstPrices = Arrays.copyOf(rowFirstPrices, capacity);
+            rowLastPrices = Arrays.copyOf(rowLastPrices, capacity);
+            rowPriceCounts = Arrays.copyOf(rowPriceCounts, capacity);
+        }
+        rowProducts[rowCount] = product;
+        rowContractNames[rowCount] = contractNameId;
+        rowProductNames[rowCount] = productName;
+        rowFirstPrices[rowCount] = -1;
+        rowLastPrices[rowCount] = -1;
+        liveRowCount++;
+        return rowCount++;
+    }
+
+    /**
+     * Removes a row's prices and stops counting it in {@link #size()}.
+     * Its number is not reused.
+     */
+    void remove(int row)
+    {
+        setPrices(row, null, 0, 0);
+        removedRows.set(row);
+        liveRowCount--;
+    }
+
+    boolean isRemoved(int row)
+    {
+        return removedRows.get(row);
+    }
+
+    /** Returns the number of rows, not counting removed rows.
+     */
+    int size()
+    {
+        return liveRowCount;
+    }
+
+    /** Returns the number of rows ever added; rows are numbered from 0 to this.
+     */
+    int rowCount()
+    {
+        return rowCount;
+    }
+
+    /** Returns the number of products; a row's product is numbered from 0 to this.
+     */
+    int productCount()
+    {
+        return productCount;
+    }
+
+    int product(int row)
+    {
+        return rowProducts[row];
+    }
+
+    String manufacturer(int row)
+    {
+        return manufacturerIds.name(productManufacturers[rowProducts[row]]);
+    }
+
+    String productCode(int row)
+    {
+        return productCodeIds.name(productCodes[rowProducts[row]]);
+    }
+
+    /** Returns the contract name of a row, or null for a row per product.
+     */
+    String contractName(int row)
+    {
+        int id = rowContractNames[row];
+        return id < 0 ? null : contractNameIds.name(id);
+    }
+
+    String productName(int row)
+    {
+        return rowProductNames[row];
+    }
+
+    /**
+     * Returns an estimate of the heap the table holds: its arrays, and
+     * the key strings it has interned.  Product names are not counted;
+     * they are shared with the products they came from.
+     */
+    long estimatedBytes()
+    {
+        long bytes = (long) rowProducts.length * (4 + 4 + 4 + 4 + 4 + 4)
+                + (long) productManufacturers.length * (4 + 4)
+                + (long) entryDistributors.length * (4 + 8 + 4)
+                + removedRows.size() / 8;
+        bytes += productIds.estimatedBytes() + rowIds.estimatedBytes() + rowDistributorEntries.estimatedBytes();
+        bytes += manufacturerIds.estimatedBytes() + productCodeIds.estimatedBytes()
+                + contractNameIds.estimatedBytes();
+        return bytes;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Prices                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Returns the first price entry of a row, or -1 if it has none.
+     */
+    int firstPrice(int row)
+    {
+        return rowFirstPrices[row];
+    }
+
+    /** Returns the price entry after an entry in its row, or -1.
+     */
+    int nextPrice(int entry)
+    {
+        return entryNext[entry];
+    }
+
+    int priceCount(int row)
+    {
+        return rowPriceCounts[row];
+    }
+
+    int distributor(int entry)
+    {
+        return entryDistributors[entry];
+    }
+
+    double price(int entry)
+    {
+        return entryPrices[entry];
+    }
+
+    /**
+     * Returns whether a row has a price from a distributor.  Rows with many
+     * prices are looked up by hash; this holds only until the row's prices
+     * are rearranged by {@link #setPrices}.
+     */
+    boolean hasPrice(int row, int distributorId)
+    {
+        if (rowPriceCounts[row] > MAX_SCANNED_PRICES)
+            return rowDistributorEntries.get(((long) row << 32) | distributorId) >= 0;
+        for (int entry = rowFirstPrices[row]; entry >= 0; entry = entryNext[entry])
+        {
+            if (entryDistributors[entry] == distributorId)
+                return true;
+        }
+        return false;
+    }
+
+    /** Adds a distributor's price to the end of a row.
+     */
+    void addPrice(int row, int distributorId, double price)
+    {
+        int entry = appendPrice(row, distributorId, price);
+        int count = rowPriceCounts[row];
+        if (count == MAX_SCANNED_PRICES + 1)
+        {
+            for (int e = rowFirstPrices[row]; e >= 0; e = entryNext[e])
+                rowDistributorEntries.putIfAbsent(((long) row << 32) | entryDistributors[e], e);
+        }
+        else if (count > MAX_SCANNED_PRICES)
+            rowDistributorEntries.putIfAbsent(((long) row << 32) | distributorId, entry);
+    }
+
+    private int appendPrice(int row, int distributorId, double price)
+    {
+        if (entryCount == entryDistributors.length)
+        {
+            int capacity = entryCount * 2;
+            entryDistributors = Arrays.copyOf(entryDistributors, capacity);
+            entryPrices = Arrays.copyOf(entryPrices, capacity);
+            entryNext = Arrays.copyOf(entryNext, capacity);
+        }
+        int entry = entryCount++;
+        entryDistributors[entry] = distributorId;
+        entryPrices[entry] = price;
+        entryNext[entry] = -1;
+        if (rowLastPrices[row] < 0)
+            rowFirstPrices[row] = entry;
+        else
+            entryNext[rowLastPrices[row]] = entry;
+        rowLastPrices[row] = entry;
+        rowPriceCounts[row]++;
+        return entry;
+    }
+
+    /**
+     * Offers a price to a row that keeps only its lowest prices, one per
+     * distributor: a distributor's lower price replaces its higher one,
+     * and a new distributor's price replaces the highest price of a full
+     * row if it is lower.  Equal prices are ordered by distributor name.
+     */
+    void offerPrice(int row, int distributorId, double price, int maxPrices, DistributorDictionary distributorIds)
+    {
+        int highest = -1;
+        for (int entry = rowFirstPrices[row]; entry >= 0; entry = entryNext[entry])
+        {
+            if (entryDistributors[entry] == distributorId)
+            {
+                if (price < entryPrices[entry])
+                    entryPrices[entry] = price;
+                return;
+            }
+            if (highest < 0 || comparePrices(entryPrices[entry], entryDistributors[entry], entryPrices[highest],
+                                             entryDistributors[highest], distributorIds) > 0)
+                highest = entry;
+        }
+        if (rowPriceCounts[row] < maxPrices)
+            appendPrice(row, distributorId, price);
+        else if (comparePrices(price, distributorId, entryPrices[highest], entryDistributors[highest],
+                               distributorIds) < 0)
+        {
+            entryDistributors[highest] = distributorId;
+            entryPrices[highest] = price;
+        }
+    }
+
+    /** Orders prices from lowest to highest, equal prices by distributor name.
+     */
+    private static int comparePrices(double price1, int distributorId1, double price2, int distributorId2,
+                                     DistributorDictionary distributorIds)
+    {
+        int i = Double.compare(price1, price2);
+        if (i == 0 && distributorId1 != distributorId2)
+            i = distributorIds.compare(distributorId1, distributorId2);
+        return i;
+    }
+
+    /**
+     * Replaces the prices of a row with some of its entries, in a new order.
+     * @param entries holds entries of the row from index from to index to - 1
+     */
+    void setPrices(int row, int[] entries, int from, int to)
+    {
+        rowPriceCounts[row] = to - from;
+        if (from == to)
+        {
+            rowFirstPrices[row] = -1;
+            rowLastPrices[row] = -1;
+            return;
+        }
+        rowFirstPrices[row] = entries[from];
+        for (int i = from + 1; i < to; i++)
+            entryNext[entries[i - 1]] = entries[i];
+        entryNext[entries[to - 1]] = -1;
+        rowLastPrices[row] = entries[to - 1];
+    }
+
+    /**
+     * Merges the rows of a table filled from later contracts into this one,
+     * keeping this table's product names and distributor prices, or the
+     * lowest prices.
+     * @param later the rows of the later contracts
+     * @param maxPrices the number of lowest prices kept per row, or 0 for all
+     */
+    void addAll(RowTable later, int maxPrices, DistributorDictionary distributorIds)
+    {
+        for (int laterRow = 0; laterRow < later.rowCount; laterRow++)
+        {
+            int row = row(later.manufacturer(laterRow), later.productCode(laterRow),
+                          later.contractName(laterRow), later.productName(laterRow));
+            for (int entry = later.rowFirstPrices[laterRow]; entry >= 0; entry = later.entryNext[entry])
+            {
+                int distributorId = later.entryDistributors[entry];
+                if (maxPrices > 0)
+                    offerPrice(row, distributorId, later.entryPrices[entry], maxPrices, distributorIds);
+                else if (!hasPrice(row, distributorId))
+                    addPrice(row, distributorId, later.entryPrices[entry]);
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Hash Tables                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * An open-addressing map of long keys to non-negative int values,
+     * probed linearly.  Values are stored plus one, so 0 marks a free slot.
+     */
+    private static final class LongIntMap
+    {
+        /** Multiplier spreading keys over the table by Fibonacci hashing
+         */
+        private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+        private long[] keys = new long[16];
+        private int[] values = new int[16];
+        private int shift = 64 - 4;
+        private int size;
+
+        /** Returns the value of a key, or -1 if it has none.
+         */
+        int get(long key)
+        {
+            int mask = keys.length - 1;
+            for (int slot = slot(key); values[slot] != 0; slot = (slot + 1) & mask)
+            {
+                if (keys[slot] == key)
+                    return values[slot] - 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a key with a value unless it is present.
+         * @return the value already present, or -1 if the key was added
+         */
+        int putIfAbsent(long key, int value)
+        {
+            int mask = keys.length - 1;
+            int slot = slot(key);
+            for (; values[slot] != 0; slot = (slot + 1) & mask)
+            {
+                if (keys[slot] == key)
+                    return values[slot] - 1;
+            }
+            keys[slot] = key;
+            values[slot] = value + 1;
+            if (++size * 2 > keys.length)
+                grow();
+            return -1;
+        }
+
+        private int slot(long key)
+        {
+            return (int) ((key * GOLDEN_RATIO) >>> shift);
+        }
+
+        long estimatedBytes()
+        {
+            return (long) keys.length * (8 + 4);
+        }
+
+        private void grow()
+        {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            shift--;
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldValues[i] == 0)
+                    continue;
+                int slot = slot(oldKeys[i]);
+                while (values[slot] != 0)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /** Assigns dense ids to strings in order of first appearance.
+     */
+    private static final class StringIds
+    {
+        private String[] keys = new String[16];
+        private int[] ids = new int[16];
+        private String[] names = new String[16];
+        private int size;
+        /** Estimated heap of the strings, as headers plus one byte per char
+         */
+        private long stringBytes;
+
+        /** Returns the id of a string, assigning the next id on first sight.
+         */
+        int id(String key)
+        {
+            int mask = keys.length - 1;
+            int slot = slot(key.hashCode(), mask);
+            for (; keys[slot] != null; slot = (slot + 1) & mask)
+            {
+                if (keys[slot] == key || keys[slot].equals(key))
+                    return ids[slot];
+            }
+            if (size == names.length)
+                names = Arrays.copyOf(names, size * 2);
+            names[size] = key;
+            stringBytes += STRING_OVERHEAD + key.length();
+            keys[slot] = key;
+            ids[slot] = size;
+            if (++size * 2 > keys.length)
+                grow();
+            return size - 1;
+        }
+
+        String name(int id)
+        {
+            return names[id];
+        }
+
+        long estimatedBytes()
+        {
+            return (long) keys.length * (4 + 4) + (long) names.length * 4 + stringBytes;
+        }
+
+        private static int slot(int hash, int mask)
+        {
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        private void grow()
+        {
+            String[] oldKeys = keys;
+            int[] oldIds = ids;
+            keys = new String[oldKeys.length * 2];
+            ids = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldKeys[i] == null)
+                    continue;
+                int slot = slot(oldKeys[i].hashCode(), mask);
+                while (keys[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+}
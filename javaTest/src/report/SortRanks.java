@@ -0,0 +1,88 @@
+package report;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Puts rows in order by dictionary-encoded sort keys.  Each distinct
+ *  string is given a rank in sorted order, so only the distinct values
+ *  are compared as strings; the rows themselves are then ordered by
+ *  stable counting sorts on the int ranks.
+ */
+final class SortRanks
+{
+    private SortRanks()
+    {
+    }
+
+    /**
+     * Ranks strings in natural order, null ranking first.  Equal strings
+     * have equal ranks, and the ranks of distinct strings are consecutive.
+     * @param values the strings to rank
+     * @param ranks receives the rank of each string
+     * @return the number of distinct ranks
+     */
+    static int rank(String[] values, int[] ranks)
+    {
+        Map<String, Integer> distinctIds = new HashMap<String, Integer>();
+        int[] ids = new int[values.length];
+        boolean hasNull = false;
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] == null)
+            {
+                ids[i] = -1;
+                hasNull = true;
+                continue;
+            }
+            Integer id = distinctIds.get(values[i]);
+            if (id == null)
+            {
+                id = distinctIds.size();
+                distinctIds.put(values[i], id);
+            }
+            ids[i] = id;
+        }
+
+        String[] distinct = distinctIds.keySet().toArray(new String[distinctIds.size()]);
+        Arrays.sort(distinct);
+        int offset = hasNull ? 1 : 0;
+        int[] idRanks = new int[distinct.length];
+        for (int rank = 0; rank < distinct.length; rank++)
+            idRanks[distinctIds.get(distinct[rank])] = rank + offset;
+        for (int i = 0; i < values.length; i++)
+            ranks[i] = ids[i] < 0 ? 0 : idRanks[ids[i]];
+        return distinct.length + offset;
+    }
+
+    /** Returns the indexes 0 to count - 1, in order.
+     */
+    static int[] sequence(int count)
+    {
+        int[] sequence = new int[count];
+        for (int i = 0; i < count; i++)
+            sequence[i] = i;
+        return sequence;
+    }
+
+    /**
+     * Stably reorders indexes by their ranks.
+     * @param order the indexes, in their current order
+     * @param ranks the rank of each index, below rankCount
+     * @param rankCount the number of ranks
+     * @return the indexes ordered by rank
+     */
+    static int[] sort(int[] order, int[] ranks, int rankCount)
+    {
+        int[] starts = new int[rankCount + 1];
+        for (int index : order)
+            starts[ranks[index] + 1]++;
+        for (int rank = 0; rank < rankCount; rank++)
+            starts[rank + 1] += starts[rank];
+        int[] sorted = new int[order.length];
+        for (int index : order)
+            sorted[starts[ranks[index]]++] = index;
+        return sorted;
+    }
+}
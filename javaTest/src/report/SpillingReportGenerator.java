@@ -0,0 +1,365 @@
+package report;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import support.Contract;
+import support.Report;
+import support.ReportSink;
+
+/**
+ *  Generates a report whose staged rows need not fit in memory, holding
+ *  about a memory budget of rows at a time and spilling the rest to
+ *  files in a work directory.
+ *  <p>
+ *  First, contracts are aggregated in order into a {@link RowTable} until
+ *  its estimated size passes the budget; the table is then written as a
+ *  {@link RowRunFile} sorted by manufacturer, product code and contract
+ *  name, and a new table started.  Distributor ids are shared by all
+ *  tables.  Next, the runs are merged, and the fragments of each product
+ *  gathered from every run.  Products are batched up to half the budget;
+ *  a batch's fragments are staged again in the order they were first
+ *  aggregated, which reproduces the rows a single pass would stage, and
+ *  its groups are ranked and written in report order as a
+ *  {@link PartitionFile}.  Last, these files are merged as partitions
+ *  are (see {@link PartitionedReportGenerator}) into a report with the
+ *  same rows as ReportGenerator produces.
+ *  <p>
+ *  No more than a fixed number of files are merged at once: while there
+ *  are more runs than that, groups of them are merged into intermediate
+ *  runs.  The buffers of the files open while merging come out of half
+ *  the budget, and the batches out of the other half.
+ *  <p>
+ *  The rows of any one product must fit in memory.  The files are
+ *  deleted when the report is done.
+ */
+public class SpillingReportGenerator
+{
+    /** Smallest and largest buffer of a file read or written
+     */
+    private static final int MIN_BUFFER_SIZE = 1024;
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    /** Largest number of runs merged at once
+     */
+    private static final int MAX_FAN_IN = 64;
+
+    private final Path workDirectory;
+    private final long memoryBudget;
+    private final ReportGenerator generator = new ReportGenerator();
+    /** The buffer size of each file, and the number of runs merged at once
+     */
+    private final int bufferSize;
+    private final int fanIn;
+
+    /** A row of one run, with the run it came from.
+     */
+    private static class Fragment
+    {
+        int run;
+        int row;
+        String manufacturer;
+        String productCode;
+        String contractName;
+        String productName;
+        int[] distributorIds;
+        double[] prices;
+
+        long estimatedBytes()
+        {
+            return 64 + 4 * 48 + manufacturer.length() + productCode.length() + productName.length()
+                    + (contractName != null ? contractName.length() : 0) + 12L * prices.length;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param workDirectory the directory for spilled runs
+     * @param memoryBudget the estimated heap, in bytes, of the rows held at a time
+     */
+    public SpillingReportGenerator(Path workDirectory, long memoryBudget)
+    {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memoryBudget <= 0: " + memoryBudget);
+        this.workDirectory = workDirectory;
+        this.memoryBudget = memoryBudget;
+        // A merge holds fanIn inputs and one output open, in half the budget.
+        bufferSize = (int) Math.max(MIN_BUFFER_SIZE,
+                                    Math.min(MAX_BUFFER_SIZE, memoryBudget / 2 / (MAX_FAN_IN + 1)));
+        fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, memoryBudget / 2 / bufferSize - 1));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                         Report Generation                         //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Generates a Report given a list of contracts.  The rows of the
+     * Report are held in memory; see
+     * {@link #generateReport(List, boolean, int, String, String, ReportSink)}
+     * to stream them instead.
+     * @param contracts the contracts to search for distributor prices
+     * @param compact whether to show multiple prices on each report row
+     * @param maxPrices the number of lowest prices to show per product, or 0 for all
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @return a Report object
+     */
+    public Report generateReport(List<Contract> contracts, boolean compact, int maxPrices, String customer,
+                                 String dates)
+        throws IOException
+    {
+        PartitionedReportGenerator.ReportCollector collector = new PartitionedReportGenerator.ReportCollector();
+        generateReport(contracts, compact, maxPrices, customer, dates, collector);
+        return collector.report;
+    }
+
+    /**
+     * Generates a report given a list of contracts, writing its rows to a
+     * sink one product group at a time.
+     * @param contracts the contracts to search for distributor prices
+     * @param compact whether to show multiple prices on each report row
+     * @param maxPrices the number of lowest prices to show per product, or 0 for all
+     * @param customer the customer name for the report
+     * @param dates the date range for the report
+     * @param sink the destination of the report; it is not closed
+     */
+    public void generateReport(List<Contract> contracts, boolean compact, int maxPrices, String customer,
+                               String dates, ReportSink sink)
+        throws IOException
+    {
+        ReportGenerator.InputData whole = generator.createInputData(compact, maxPrices, customer, dates);
+        Files.createDirectories(workDirectory);
+        List<Path> files = new ArrayList<Path>();
+        try
+        {
+            List<Path> rowRuns = mergeRuns(spillRows(contracts, whole, files), false, files);
+            List<Path> groupRuns = mergeRuns(rankProducts(rowRuns, whole, files), true, files);
+            PartitionedReportGenerator.merge(groupRuns.toArray(new Path[groupRuns.size()]), bufferSize, compact,
+                                             maxPrices, customer, dates, sink);
+        }
+        finally
+        {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Aggregates the contracts in order, spilling a sorted run whenever
+     * the staged rows pass the budget.
+     * @param files receives every file created
+     * @return the runs, in contract order
+     */
+    private List<Path> spillRows(List<Contract> contracts, ReportGenerator.InputData whole, List<Path> files)
+        throws IOException
+    {
+        List<Path> runs = new ArrayList<Path>();
+        ReportGenerator.InputData part = generator.createPartInputData(whole);
+        for (int i = 0; i < contracts.size(); i++)
+        {
+            generator.prepareInputData(contracts.subList(i, i + 1), part);
+            if (part.getRows().estimatedBytes() > memoryBudget)
+            {
+                runs.add(spill(part.getRows(), runs.size(), files));
+                part = generator.createPartInputData(whole);
+            }
+        }
+        if (part.getRows().size() > 0)
+            runs.add(spill(part.getRows(), runs.size(), files));
+        return runs;
+    }
+
+    private Path spill(RowTable rows, int run, List<Path> files)
+        throws IOException
+    {
+        Path file = createFile("rows.", ".run", files);
+        RowRunFile.write(rows, run, file, bufferSize);
+        return file;
+    }
+
+    private Path createFile(String prefix, String suffix, List<Path> files)
+        throws IOException
+    {
+        Path file = Files.createTempFile(workDirectory, prefix, suffix);
+        files.add(file);
+        return file;
+    }
+
+    /**
+     * Merges runs, fanIn at a time, into intermediate runs until there
+     * are no more than fanIn.  Merged runs are deleted.
+     * @param groups whether the runs are group runs rather than row runs
+     * @param files receives every file created
+     * @return the remaining runs
+     */
+    private List<Path> mergeRuns(List<Path> runs, boolean groups, List<Path> files)
+        throws IOException
+    {
+        while (runs.size() > fanIn)
+        {
+            List<Path> merged = new ArrayList<Path>((runs.size() + fanIn - 1) / fanIn);
+            for (int from = 0; from < runs.size(); from += fanIn)
+            {
+                List<Path> inputs = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                if (inputs.size() == 1)
+                {
+                    merged.add(inputs.get(0));
+                    continue;
+                }
+                Path file;
+                if (groups)
+                {
+                    file = createFile("groups.", ".run", files);
+                    PartitionFile.Writer out = new PartitionFile.Writer(file, bufferSize);
+                    try
+                    {
+                        PartitionedReportGenerator.merge(inputs.toArray(new Path[inputs.size()]), bufferSize, out);
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                }
+                else
+                {
+                    file = createFile("rows.", ".run", files);
+                    RowRunFile.merge(inputs, file, bufferSize);
+                }
+                for (Path input : inputs)
+                    Files.delete(input);
+                merged.add(file);
+            }
+            runs = merged;
+        }
+        return runs;
+    }
+
+    /**
+     * Merges the row runs product by product, and ranks batches of
+     * products into group runs.
+     * @param files receives every file created
+     * @return the group runs
+     */
+    private List<Path> rankProducts(List<Path> rowRuns, ReportGenerator.InputData whole, List<Path> files)
+        throws IOException
+    {
+        List<Path> groupRuns = new ArrayList<Path>();
+        List<RowRunFile.Reader> readers = new ArrayList<RowRunFile.Reader>(rowRuns.size());
+        try
+        {
+            PriorityQueue<RowRunFile.Reader> heads = new PriorityQueue<RowRunFile.Reader>(
+                    Math.max(1, rowRuns.size()), RowRunFile.PRODUCT_ORDER);
+            for (Path run : rowRuns)
+            {
+                RowRunFile.Reader reader = new RowRunFile.Reader(run, bufferSize);
+                readers.add(reader);
+                if (reader.next())
+                    heads.add(reader);
+            }
+
+            List<Fragment> batch = new ArrayList<Fragment>();
+            long batchBytes = 0;
+            while (!heads.isEmpty())
+            {
+                // Take every fragment of the next product, so that a batch holds whole products.
+                String manufacturer = heads.peek().manufacturer;
+                String productCode = heads.peek().productCode;
+                while (!heads.isEmpty() && heads.peek().manufacturer.equals(manufacturer)
+                        && heads.peek().productCode.equals(productCode))
+                {
+                    RowRunFile.Reader reader = heads.poll();
+                    Fragment fragment = fragment(reader);
+                    batch.add(fragment);
+                    batchBytes += fragment.estimatedBytes();
+                    if (reader.next())
+                        heads.add(reader);
+                }
+                if (batchBytes > memoryBudget / 2)
+                {
+                    groupRuns.add(rankBatch(batch, whole, files));
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            }
+            if (!batch.isEmpty())
+                groupRuns.add(rankBatch(batch, whole, files));
+        }
+        finally
+        {
+            for (RowRunFile.Reader reader : readers)
+                reader.close();
+        }
+        return groupRuns;
+    }
+
+    private static Fragment fragment(RowRunFile.Reader reader)
+    {
+        Fragment fragment = new Fragment();
+        fragment.run = reader.run;
+        fragment.row = reader.row;
+        fragment.manufacturer = reader.manufacturer;
+        fragment.productCode = reader.productCode;
+        fragment.contractName = reader.contractName;
+        fragment.productName = reader.productName;
+        fragment.distributorIds = reader.distributorIds;
+        fragment.prices = reader.prices;
+        return fragment;
+    }
+
+    /**
+     * Stages a batch of fragments, ranks its product groups and writes
+     * them in report order.  Fragments are staged by run, then row
+     * number, which is the order their rows and prices were first
+     * aggregated in.
+     */
+    private Path rankBatch(List<Fragment> batch, ReportGenerator.InputData whole, List<Path> files)
+        throws IOException
+    {
+        Collections.sort(batch, new Comparator<Fragment>()
+        {
+            public int compare(Fragment f1, Fragment f2)
+            {
+                if (f1.run != f2.run)
+                    return f1.run < f2.run ? -1 : 1;
+                return f1.row < f2.row ? -1 : (f1.row == f2.row ? 0 : 1);
+            }
+        });
+        ReportGenerator.InputData part = generator.createPartInputData(whole);
+        for (Fragment fragment : batch)
+        {
+            for (int i = 0; i < fragment.prices.length; i++)
+            {
+                generator.addLineItem(part, fragment.distributorIds[i], fragment.contractName,
+                                      fragment.manufacturer, fragment.productCode, fragment.productName,
+                                      fragment.prices[i]);
+            }
+        }
+
+        Path file = createFile("groups.", ".run", files);
+        PartitionFile.Writer out = new PartitionFile.Writer(file, bufferSize);
+        try
+        {
+            generator.writeGroups(part, out);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
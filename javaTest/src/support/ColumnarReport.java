@@ -0,0 +1,294 @@
+package support;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads reports written by {@link ColumnarReportSink}.  Prices are
+ * decoded as doubles straight from their column chunks, without text
+ * parsing.  Rows are presented as {@link Row} beans, so a reloaded
+ * report writes the same output as the original.
+ */
+public final class ColumnarReport
+{
+    private ColumnarReport()
+    {
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Row Beans                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * One decoded row.  Text columns are read with the indexed property
+     * "text[i]" and price columns with "formattedPrices[i]".
+     */
+    public static class Row implements PricedRow
+    {
+        private final String[] texts;
+        /** The ordinal and price of each price column, in column order
+         */
+        private final int[] ordinals;
+        private final double[] prices;
+        /** The price column of each distributor index, or -1
+         */
+        private final int[] priceColumns;
+
+        Row(String[] texts, int[] ordinals, double[] prices, int[] priceColumns)
+        {
+            this.texts = texts;
+            this.ordinals = ordinals;
+            this.prices = prices;
+            this.priceColumns = priceColumns;
+        }
+
+        public String getText(int textColumn)
+        {
+            return texts[textColumn];
+        }
+
+        public int getOrdinal(int index)
+        {
+            int column = priceColumn(index);
+            return column >= 0 ? ordinals[column] : 0;
+        }
+
+        public double getPrice(int index)
+        {
+            int column = priceColumn(index);
+            return column >= 0 && ordinals[column] != 0 ? prices[column] : Double.NaN;
+        }
+
+        private int priceColumn(int index)
+        {
+            return index < priceColumns.length ? priceColumns[index] : -1;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Reading                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads a report file.
+     * @param file the file written by a {@link ColumnarReportSink}
+     * @return the report
+     */
+    public static Report read(Path file)
+        throws IOException
+    {
+        try (InputStream in = Files.newInputStream(file))
+        {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads a report from a stream.
+     * @param stream the stream, read to the end of the report; it is not closed
+     * @return a Report with the original titles and columns, whose rows are
+     *      {@link Row} beans
+     */
+    public static Report read(InputStream stream)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+        if (in.readInt() != ColumnarReportSink.MAGIC)
+            throw new IOException("Not a columnar report");
+        int version = in.readInt();
+        if (version != ColumnarReportSink.VERSION)
+            throw new IOException("Unsupported columnar report version " + version);
+
+        Report report = new Report();
+        report.setTitle(readString(in));
+        report.setSubtitle(readString(in));
+        report.setDates(readString(in));
+        int columnCount = in.readInt();
+        int[] priceIndexes = new int[columnCount];
+        int textColumnCount = 0;
+        int priceColumnCount = 0;
+        int maxPriceIndex = -1;
+        for (int i = 0; i < columnCount; i++)
+        {
+            String title = readString(in);
+            readString(in);
+            priceIndexes[i] = in.readInt();
+            if (priceIndexes[i] >= 0)
+            {
+                report.addColumn(title, PricedRow.FORMATTED_PRICES + "[" + priceIndexes[i] + "]");
+                priceColumnCount++;
+                maxPriceIndex = Math.max(maxPriceIndex, priceIndexes[i]);
+            }
+            else
+                report.addColumn(title, "text[" + textColumnCount++ + "]");
+        }
+        int[] priceColumns = new int[maxPriceIndex + 1];
+        Arrays.fill(priceColumns, -1);
+        for (int i = 0, column = 0; i < columnCount; i++)
+        {
+            if (priceIndexes[i] >= 0)
+                priceColumns[priceIndexes[i]] = column++;
+        }
+
+        Inflater inflater = new Inflater();
+        try
+        {
+            int groupRows;
+            while ((groupRows = in.readInt()) > 0)
+            {
+                String[][] texts = new String[groupRows][textColumnCount];
+                int[][] ordinals = new int[groupRows][priceColumnCount];
+                double[][] prices = new double[groupRows][priceColumnCount];
+                int textColumn = 0;
+                int priceColumn = 0;
+                for (int i = 0; i < columnCount; i++)
+                {
+                    Chunk chunk = readChunk(in, inflater);
+                    if (priceIndexes[i] >= 0)
+                        decodePrices(chunk, groupRows, priceColumn++, ordinals, prices);
+                    else
+                        decodeTexts(chunk, groupRows, textColumn++, texts);
+                }
+                for (int row = 0; row < groupRows; row++)
+                    report.addRow(new Row(texts[row], ordinals[row], prices[row], priceColumns));
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Corrupt columnar report: " + e.getMessage(), e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return report;
+    }
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Corrupt columnar report: string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Chunk readChunk(DataInputStream in, Inflater inflater)
+        throws IOException, DataFormatException
+    {
+        int rawLength = in.readInt();
+        int compressedLength = in.readInt();
+        byte[] compressed = new byte[compressedLength];
+        in.readFully(compressed);
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        int length = 0;
+        while (length < rawLength)
+        {
+            int count = inflater.inflate(raw, length, rawLength - length);
+            if (count == 0 && (inflater.finished() || inflater.needsInput()))
+                throw new EOFException("Truncated column chunk");
+            length += count;
+        }
+        return new Chunk(raw);
+    }
+
+    private static void decodeTexts(Chunk chunk, int groupRows, int textColumn, String[][] texts)
+        throws IOException
+    {
+        String[] dictionary = new String[chunk.readVarint()];
+        for (int id = 0; id < dictionary.length; id++)
+        {
+            int length = chunk.readVarint();
+            dictionary[id] = chunk.readString(length);
+        }
+        for (int row = 0; row < groupRows; row++)
+        {
+            int id = chunk.readVarint();
+            texts[row][textColumn] = id == 0 ? null : dictionary[id - 1];
+        }
+    }
+
+    private static void decodePrices(Chunk chunk, int groupRows, int priceColumn, int[][] ordinals,
+                                     double[][] prices)
+        throws IOException
+    {
+        for (int row = 0; row < groupRows; row++)
+            ordinals[row][priceColumn] = chunk.readVarint();
+        for (int row = 0; row < groupRows; row++)
+        {
+            if (ordinals[row][priceColumn] != 0)
+                prices[row][priceColumn] = Double.longBitsToDouble(chunk.readLong());
+        }
+    }
+
+    /** The decoded bytes of a column chunk and a read position.
+     */
+    private static class Chunk
+    {
+        private final byte[] bytes;
+        private int position;
+
+        Chunk(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        int readVarint()
+            throws IOException
+        {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                if (position == bytes.length)
+                    throw new EOFException("Truncated column chunk");
+                byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    return value;
+            }
+            throw new IOException("Malformed varint in column chunk");
+        }
+
+        long readLong()
+            throws IOException
+        {
+            if (position + 8 > bytes.length)
+                throw new EOFException("Truncated column chunk");
+            long value = 0;
+            for (int i = 0; i < 8; i++)
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            return value;
+        }
+
+        String readString(int length)
+            throws IOException
+        {
+            if (length > bytes.length - position)
+                throw new EOFException("Truncated column chunk");
+            String text = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return text;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package support;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a report in a compressed columnar binary format that
+ * {@link ColumnarReport} reads back.
+ * <p>
+ * Rows are buffered into groups of up to {@link #ROW_GROUP_SIZE} rows
+ * and about {@link #ROW_GROUP_BYTES} of buffered values, so that wide
+ * reports get shorter groups, and each group is written column by
+ * column, each column chunk deflated separately.  A text column chunk holds a dictionary of the group's
+ * distinct values followed by one id per row.  A price column
+ * ("formattedPrices[i]" of a {@link PricedRow}) chunk holds one ordinal
+ * per row, 0 for no price, followed by the prices of the rows that have
+ * one as 8-byte doubles, so prices are loaded as numbers.
+ * <p>
+ * Layout, big-endian: magic, version, title, subtitle and dates, the
+ * column count and for each column its title, property and distributor
+ * index (-1 for a text column); then each row group as its row count
+ * followed by every column chunk as raw length, compressed length and
+ * deflated bytes; and a row count of 0 at the end.  Strings in the
+ * header are a presence flag, a byte length and UTF-8; counts, lengths
+ * and ids inside chunks are unsigned varints, and chunk strings are
+ * UTF-8.
+ */
+public class ColumnarReportSink implements ReportSink
+{
+    static final int MAGIC = 0x50434346;
+    static final int VERSION = 2;
+    static final int ROW_GROUP_SIZE = 16 * 1024;
+    static final int ROW_GROUP_BYTES = 8 * 1024 * 1024;
+    /** Rows buffered before the buffers first grow.
+     */
+    private static final int INITIAL_GROUP_CAPACITY = 256;
+
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private final boolean closeStream;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final ChunkBuffer chunk = new ChunkBuffer();
+    private byte[] compressed = new byte[64 * 1024];
+
+    private Report report;
+    /** For each column, its distributor index, or -1 for a text column.
+     */
+    private int[] priceIndexes;
+    /** The buffered group: text values of text columns, ordinals and prices of price columns
+     */
+    private String[][] texts;
+    private int[][] ordinals;
+    private double[][] prices;
+    private int groupRows;
+    /** Rows the buffers hold, and rows that end a group
+     */
+    private int groupCapacity;
+    private int maxGroupRows;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param out the stream to receive the report
+     * @param closeStream whether {@link #close()} closes the stream
+     */
+    public ColumnarReportSink(OutputStream out, boolean closeStream)
+    {
+        counter = new CountingOutputStream(out);
+        this.out = new DataOutputStream(new BufferedOutputStream(counter, 64 * 1024));
+        this.closeStream = closeStream;
+    }
+
+    /**
+     * Opens a sink on a file.
+     * @param filename the file name
+     * @return the sink
+     */
+    public static ColumnarReportSink open(String filename)
+        throws IOException
+    {
+        return new ColumnarReportSink(new FileOutputStream(filename), true);
+    }
+
+    /** Returns the distributor index of a "formattedPrices[i]" property, or -1.
+     */
+    static int priceIndex(String property)
+    {
+        return ReportSnapshotSink.priceIndex(property);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                             ReportSink                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public void begin(Report report)
+        throws IOException
+    {
+        this.report = report;
+        List<String> titles = report.getColumnTitles();
+        List<String> properties = report.getColumnProperties();
+        int columnCount = titles.size();
+        priceIndexes = new int[columnCount];
+        texts = new String[columnCount][];
+        ordinals = new int[columnCount][];
+        prices = new double[columnCount][];
+        long rowBytes = 0;
+        for (int i = 0; i < columnCount; i++)
+        {
+            priceIndexes[i] = priceIndex(properties.get(i));
+            rowBytes += priceIndexes[i] >= 0 ? 12 : 8;
+        }
+        maxGroupRows = (int) Math.max(1, Math.min(ROW_GROUP_SIZE, ROW_GROUP_BYTES / Math.max(1, rowBytes)));
+        groupCapacity = Math.min(maxGroupRows, INITIAL_GROUP_CAPACITY);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(report.getTitle());
+        writeString(report.getSubtitle());
+        writeString(report.getDates());
+        out.writeInt(columnCount);
+        for (int i = 0; i < columnCount; i++)
+        {
+            writeString(titles.get(i));
+            writeString(properties.get(i));
+            out.writeInt(priceIndexes[i]);
+            if (priceIndexes[i] >= 0)
+            {
+                ordinals[i] = new int[groupCapacity];
+                prices[i] = new double[groupCapacity];
+            }
+            else
+                texts[i] = new String[groupCapacity];
+        }
+    }
+
+    public void row(Object row)
+        throws IOException
+    {
+        List<PropertyAccessor> accessors = report.getColumnAccessors(row.getClass());
+        if (groupRows == groupCapacity)
+            growGroup();
+        for (int i = 0; i < priceIndexes.length; i++)
+        {
+            if (priceIndexes[i] >= 0)
+            {
+                if (!(row instanceof PricedRow))
+                    throw new IllegalArgumentException("Price columns need PricedRow rows, not " + row.getClass());
+                PricedRow pricedRow = (PricedRow) row;
+                int ordinal = pricedRow.getOrdinal(priceIndexes[i]);
+                ordinals[i][groupRows] = ordinal;
+                prices[i][groupRows] = ordinal != 0 ? pricedRow.getPrice(priceIndexes[i]) : 0;
+            }
+            else
+            {
+                Object value = accessors.get(i).get(row);
+                texts[i][groupRows] = value == null ? null : value.toString();
+            }
+        }
+        if (++groupRows == maxGroupRows)
+            writeGroup();
+    }
+
+    public void end()
+        throws IOException
+    {
+        if (groupRows > 0)
+            writeGroup();
+        out.writeInt(0);
+        out.flush();
+    }
+
+    /**
+     * Returns the number of bytes written so far; buffered output is
+     * counted once flushed by {@link #end()}.
+     */
+    public long getBytesWritten()
+    {
+        return counter.getCount();
+    }
+
+    public void close()
+        throws IOException
+    {
+        deflater.end();
+        if (closeStream)
+            out.close();
+        else
+            out.flush();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Encoding                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private void writeString(String text)
+        throws IOException
+    {
+        out.writeBoolean(text != null);
+        if (text != null)
+        {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /** Doubles the rows the group buffers hold, up to a full group.
+     */
+    private void growGroup()
+    {
+        groupCapacity = Math.min(maxGroupRows, groupCapacity * 2);
+        for (int i = 0; i < priceIndexes.length; i++)
+        {
+            if (priceIndexes[i] >= 0)
+            {
+                ordinals[i] = Arrays.copyOf(ordinals[i], groupCapacity);
+                prices[i] = Arrays.copyOf(prices[i], groupCapacity);
+            }
+            else
+                texts[i] = Arrays.copyOf(texts[i], groupCapacity);
+        }
+    }
+
+    /** Writes the buffered rows as a row group and clears the buffer.
+     */
+    private void writeGroup()
+        throws IOException
+    {
+        out.writeInt(groupRows);
+        for (int i = 0; i < priceIndexes.length; i++)
+        {
+            chunk.reset();
+            if (priceIndexes[i] >= 0)
+                encodePrices(ordinals[i], prices[i]);
+            else
+                encodeTexts(texts[i]);
+            writeChunk();
+        }
+        for (String[] values : texts)
+        {
+            if (values != null)
+                Arrays.fill(values, 0, groupRows, null);
+        }
+        groupRows = 0;
+    }
+
+    private void encodeTexts(String[] values)
+    {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        int[] rowIds = new int[groupRows];
+        String[] dictionary = new String[groupRows];
+        for (int row = 0; row < groupRows; row++)
+        {
+            String value = values[row];
+            if (value == null)
+                continue;
+            Integer id = ids.get(value);
+            if (id == null)
+            {
+                id = ids.size();
+                ids.put(value, id);
+                dictionary[id] = value;
+            }
+            rowIds[row] = id + 1;
+        }
+        chunk.writeVarint(ids.size());
+        for (int id = 0; id < ids.size(); id++)
+        {
+            byte[] bytes = dictionary[id].getBytes(StandardCharsets.UTF_8);
+            chunk.writeVarint(bytes.length);
+            chunk.write(bytes, 0, bytes.length);
+        }
+        for (int row = 0; row < groupRows; row++)
+            chunk.writeVarint(rowIds[row]);
+    }
+
+    private void encodePrices(int[] columnOrdinals, double[] columnPrices)
+    {
+        for (int row = 0; row < groupRows; row++)
+            chunk.writeVarint(columnOrdinals[row]);
+        for (int row = 0; row < groupRows; row++)
+        {
+            if (columnOrdinals[row] != 0)
+                chunk.writeLong(Double.doubleToRawLongBits(columnPrices[row]));
+        }
+    }
+
+    private void writeChunk()
+        throws IOException
+    {
+        deflater.reset();
+        deflater.setInput(chunk.bytes, 0, chunk.length);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished())
+        {
+            if (length == compressed.length)
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        out.writeInt(chunk.length);
+        out.writeInt(length);
+        out.write(compressed, 0, length);
+    }
+
+    /** A growable byte array that column chunks are encoded into.
+     */
+    private static class ChunkBuffer
+    {
+        byte[] bytes = new byte[64 * 1024];
+        int length;
+
+        void reset()
+        {
+            length = 0;
+        }
+
+        private void ensure(int count)
+        {
+            if (length + count > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+        }
+
+        void write(byte[] source, int offset, int count)
+        {
+            ensure(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        void writeVarint(int value)
+        {
+            ensure(5);
+            while ((value & ~0x7F) != 0)
+            {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeLong(long value)
+        {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                bytes[length++] = (byte) (value >>> shift);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package support;
+
+/**
+ * Passes report measurements on to several listeners, in order.
+ */
+public class CompositeReportListener implements ReportListener
+{
+    private final ReportListener[] listeners;
+
+    public CompositeReportListener(ReportListener... listeners)
+    {
+        this.listeners = listeners.clone();
+    }
+
+    public void stageFinished(ReportMetrics metrics, ReportStage stage, long nanos, long allocatedBytes)
+    {
+        for (ReportListener listener : listeners)
+            listener.stageFinished(metrics, stage, nanos, allocatedBytes);
+    }
+}
@@ -27,6 +27,14 @@ public class Contract
         lineItems.add(lineItem);
     }
     
+    public boolean removeLineItem(ContractLineItem lineItem)
+    {
+        if (!lineItems.remove(lineItem))
+            return false;
+        lineItem.setContractOwner(null);
+        return true;
+    }
+    
     public String getDescription()
     {
         return description;
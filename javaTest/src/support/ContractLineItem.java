@@ -31,4 +31,9 @@ public class ContractLineItem
     {
         return price;
     }
+
+    public void setPrice(double price)
+    {
+        this.price = price;
+    }
 }
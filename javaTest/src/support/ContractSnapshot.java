@@ -0,0 +1,260 @@
+package support;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary snapshot of contracts, read through memory mapping.
+ * <p>
+ * Besides the string dictionary, the file holds fixed-width columns:
+ * products (manufacturer, code and description string ids), contracts
+ * (description and distributor ids, line item count, begin and end
+ * times, and the index of the contract's first line item), and line
+ * items (product index and price).  Opening a snapshot only maps the
+ * file; values are read, and strings decoded, when they are asked for.
+ */
+public class ContractSnapshot implements Closeable
+{
+    private static final int KIND = 1;
+
+    private static final int PRODUCTS = SnapshotFile.FIRST_SECTION;
+    private static final int CONTRACTS = SnapshotFile.FIRST_SECTION + 1;
+    private static final int LINE_ITEM_PRODUCTS = SnapshotFile.FIRST_SECTION + 2;
+    private static final int LINE_ITEM_PRICES = SnapshotFile.FIRST_SECTION + 3;
+    private static final int SECTION_COUNT = SnapshotFile.FIRST_SECTION + 4;
+
+    private static final int PRODUCT_SIZE = 12;
+    private static final int CONTRACT_SIZE = 40;
+
+    private final SnapshotFile.Reader reader;
+    private final int productCount;
+    private final int contractCount;
+    private final long lineItemCount;
+    private final MappedSection products;
+    private final MappedSection contracts;
+    private final MappedSection lineItemProducts;
+    private final MappedSection lineItemPrices;
+    private final Product[] productCache;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Writing                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes contracts to a snapshot file.  Products shared by
+     * several line items are stored once.
+     * @param contracts the contracts
+     * @param file the file to write
+     */
+    public static void write(List<Contract> contracts, Path file)
+        throws IOException
+    {
+        SnapshotFile.Writer writer = new SnapshotFile.Writer(file, KIND, SECTION_COUNT);
+        try
+        {
+            DataOutputStream productOut = writer.section(PRODUCTS);
+            DataOutputStream contractOut = writer.section(CONTRACTS);
+            DataOutputStream lineProductOut = writer.section(LINE_ITEM_PRODUCTS);
+            DataOutputStream linePriceOut = writer.section(LINE_ITEM_PRICES);
+            Map<Product, Integer> productIndexes = new IdentityHashMap<Product, Integer>();
+            long lineItemCount = 0;
+            for (Contract contract : contracts)
+            {
+                List<ContractLineItem> lineItems = contract.getLineItems();
+                contractOut.writeInt(writer.string(contract.getDescription()));
+                contractOut.writeInt(writer.string(contract.getDistributor()));
+                contractOut.writeInt(lineItems.size());
+                contractOut.writeInt(0);
+                contractOut.writeLong(contract.getBeginDate().getTime());
+                contractOut.writeLong(contract.getEndDate().getTime());
+                contractOut.writeLong(lineItemCount);
+                for (ContractLineItem lineItem : lineItems)
+                {
+                    Product product = lineItem.getProduct();
+                    Integer productIndex = productIndexes.get(product);
+                    if (productIndex == null)
+                    {
+                        productIndex = productIndexes.size();
+                        productIndexes.put(product, productIndex);
+                        productOut.writeInt(writer.string(product.getManufacturer()));
+                        productOut.writeInt(writer.string(product.productCode()));
+                        productOut.writeInt(writer.string(product.getDescription()));
+                    }
+                    lineProductOut.writeInt(productIndex);
+                    linePriceOut.writeDouble(lineItem.getPrice());
+                }
+                lineItemCount += lineItems.size();
+            }
+            writer.finish(productIndexes.size(), contracts.size(), lineItemCount);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Reading                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private ContractSnapshot(SnapshotFile.Reader reader)
+    {
+        this.reader = reader;
+        productCount = (int) reader.count(0);
+        contractCount = (int) reader.count(1);
+        lineItemCount = reader.count(2);
+        products = reader.section(PRODUCTS);
+        contracts = reader.section(CONTRACTS);
+        lineItemProducts = reader.section(LINE_ITEM_PRODUCTS);
+        lineItemPrices = reader.section(LINE_ITEM_PRICES);
+        productCache = new Product[productCount];
+    }
+
+    /**
+     * Maps a snapshot file.
+     * @param file the file written by {@link #write}
+     * @return the snapshot, to be closed when no longer read
+     */
+    public static ContractSnapshot open(Path file)
+        throws IOException
+    {
+        return new ContractSnapshot(new SnapshotFile.Reader(file, KIND));
+    }
+
+    public int getContractCount()
+    {
+        return contractCount;
+    }
+
+    public int getProductCount()
+    {
+        return productCount;
+    }
+
+    public long getLineItemCount()
+    {
+        return lineItemCount;
+    }
+
+    public String getDescription(int contract)
+    {
+        return reader.string(contracts.getInt((long) contract * CONTRACT_SIZE));
+    }
+
+    public String getDistributor(int contract)
+    {
+        return reader.string(contracts.getInt((long) contract * CONTRACT_SIZE + 4));
+    }
+
+    /** Returns the number of line items of a contract.
+     */
+    public int getLineItemCount(int contract)
+    {
+        return contracts.getInt((long) contract * CONTRACT_SIZE + 8);
+    }
+
+    public Date getBeginDate(int contract)
+    {
+        return new Date(contracts.getLong((long) contract * CONTRACT_SIZE + 16));
+    }
+
+    public Date getEndDate(int contract)
+    {
+        return new Date(contracts.getLong((long) contract * CONTRACT_SIZE + 24));
+    }
+
+    /** Returns the index of a contract's first line item; the others follow it.
+     */
+    public long getFirstLineItem(int contract)
+    {
+        return contracts.getLong((long) contract * CONTRACT_SIZE + 32);
+    }
+
+    /** Returns the index of a line item's product.
+     */
+    public int getLineItemProduct(long lineItem)
+    {
+        return lineItemProducts.getInt(lineItem * 4);
+    }
+
+    public double getLineItemPrice(long lineItem)
+    {
+        return lineItemPrices.getDouble(lineItem * 8);
+    }
+
+    public String getProductManufacturer(int product)
+    {
+        return reader.string(products.getInt((long) product * PRODUCT_SIZE));
+    }
+
+    public String getProductCode(int product)
+    {
+        return reader.string(products.getInt((long) product * PRODUCT_SIZE + 4));
+    }
+
+    public String getProductDescription(int product)
+    {
+        return reader.string(products.getInt((long) product * PRODUCT_SIZE + 8));
+    }
+
+    /** Returns a product, created on first use and shared afterwards.
+     */
+    public Product getProduct(int product)
+    {
+        Product result = productCache[product];
+        if (result == null)
+        {
+            long position = (long) product * PRODUCT_SIZE;
+            result = new Product(reader.string(products.getInt(position)),
+                                 reader.string(products.getInt(position + 4)),
+                                 reader.string(products.getInt(position + 8)));
+            productCache[product] = result;
+        }
+        return result;
+    }
+
+    /** Creates a Contract with its line items.
+     */
+    public Contract getContract(int contract)
+    {
+        Contract result = new Contract(getDescription(contract), getBeginDate(contract),
+                                       getEndDate(contract), getDistributor(contract));
+        long first = getFirstLineItem(contract);
+        long end = first + getLineItemCount(contract);
+        for (long lineItem = first; lineItem < end; lineItem++)
+        {
+            result.addLineItem(new ContractLineItem(getProduct(getLineItemProduct(lineItem)),
+                                                    getLineItemPrice(lineItem)));
+        }
+        return result;
+    }
+
+    /** Creates all contracts, in their original order.
+     */
+    public List<Contract> toContracts()
+    {
+        List<Contract> result = new ArrayList<Contract>(contractCount);
+        for (int contract = 0; contract < contractCount; contract++)
+            result.add(getContract(contract));
+        return result;
+    }
+
+    public void close()
+        throws IOException
+    {
+        reader.close();
+    }
+}
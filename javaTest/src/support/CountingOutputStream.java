@@ -0,0 +1,37 @@
+package support;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes passed to a stream, for the bytes written by a sink.
+ */
+class CountingOutputStream extends FilterOutputStream
+{
+    private long count;
+
+    CountingOutputStream(OutputStream out)
+    {
+        super(out);
+    }
+
+    public void write(int b)
+        throws IOException
+    {
+        out.write(b);
+        count++;
+    }
+
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    long getCount()
+    {
+        return count;
+    }
+}
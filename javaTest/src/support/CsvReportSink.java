@@ -0,0 +1,256 @@
+package support;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Writes a report as CSV.
+ * <p>
+ * Cells are quoted and escaped in a single pass straight into a reusable
+ * character buffer, which is handed to the underlying writer only when full,
+ * so writing a cell makes no temporary strings.  Prices of a
+ * {@link PricedRow} are formatted directly into the buffer.
+ */
+public class CsvReportSink implements ReportSink
+{
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Writer writer;
+    private final boolean closeWriter;
+    /** Counts the encoded bytes, if the sink was given a stream
+     */
+    private final CountingOutputStream counter;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private Report report;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param writer the writer to receive the CSV text
+     * @param closeWriter whether {@link #close()} closes the writer
+     */
+    public CsvReportSink(Writer writer, boolean closeWriter)
+    {
+        this(writer, closeWriter, null);
+    }
+
+    private CsvReportSink(Writer writer, boolean closeWriter, CountingOutputStream counter)
+    {
+        this.writer = writer;
+        this.closeWriter = closeWriter;
+        this.counter = counter;
+    }
+
+    /**
+     * @param out the stream to receive the encoded CSV text
+     * @param charset the character encoding
+     * @param closeStream whether {@link #close()} closes the stream
+     */
+    public CsvReportSink(OutputStream out, Charset charset, boolean closeStream)
+    {
+        this(new CountingOutputStream(out), charset, closeStream);
+    }
+
+    private CsvReportSink(CountingOutputStream counter, Charset charset, boolean closeStream)
+    {
+        this(new OutputStreamWriter(counter, charset), closeStream, counter);
+    }
+
+    /**
+     * Opens a sink on a file, or on standard output if filename is "-".
+     * @param filename the file name
+     * @param charset the character encoding
+     * @return the sink
+     */
+    public static CsvReportSink open(String filename, Charset charset)
+        throws IOException
+    {
+        if ("-".equals(filename))
+            return new CsvReportSink(System.out, charset, false);
+        return new CsvReportSink(new FileOutputStream(filename), charset, true);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                             ReportSink                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public void begin(Report report)
+        throws IOException
+    {
+        this.report = report;
+        if (report.getTitle() != null)
+            headerLine(report.getTitle());
+        if (report.getSubtitle() != null)
+            headerLine(report.getSubtitle());
+        if (report.getDates() != null)
+            headerLine(report.getDates());
+        append('\n');
+
+        boolean first = true;
+        for (String title : report.getColumnTitles())
+        {
+            if (first)
+                first = false;
+            else
+                append(',');
+            cell(title);
+        }
+        append('\n');
+    }
+
+    /**
+     * Starts output of rows only, without the header, for encoding the
+     * rows of a report in separate pieces.
+     * @param report the report supplying the column definitions
+     */
+    void beginRows(Report report)
+    {
+        this.report = report;
+    }
+
+    public void row(Object row)
+        throws IOException
+    {
+        List<PropertyAccessor> accessors = report.getColumnAccessors(row.getClass());
+        int size = accessors.size();
+        for (int i = 0; i < size; i++)
+        {
+            if (i > 0)
+                append(',');
+            PropertyAccessor accessor = accessors.get(i);
+            if (accessor instanceof PropertyAccessor.PriceCell)
+                priceCell((PricedRow) row, ((PropertyAccessor.PriceCell) accessor).getIndex());
+            else
+                cell(accessor.get(row));
+        }
+        append('\n');
+    }
+
+    public void end()
+        throws IOException
+    {
+        flushBuffer();
+        writer.flush();
+    }
+
+    /**
+     * Returns the number of encoded bytes written so far, including the
+     * last row only after {@link #end()}, or -1 if the sink writes to a
+     * Writer and does not see the bytes.
+     */
+    public long getBytesWritten()
+    {
+        return counter != null ? counter.getCount() : -1;
+    }
+
+    public void close()
+        throws IOException
+    {
+        flushBuffer();
+        if (closeWriter)
+            writer.close();
+        else
+            writer.flush();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Encoding                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private void headerLine(String text)
+        throws IOException
+    {
+        cell(text);
+        append('\n');
+    }
+
+    /**
+     * Appends a quoted cell, doubling any embedded quotes.
+     * A null value is written as an empty quoted cell.
+     */
+    private void cell(Object value)
+        throws IOException
+    {
+        CharSequence text;
+        if (value == null)
+            text = "";
+        else if (value instanceof CharSequence)
+            text = (CharSequence) value;
+        else
+            text = value.toString();
+
+        append('"');
+        int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = text.charAt(i);
+            if (position >= BUFFER_SIZE - 1)
+                flushBuffer();
+            if (c == '"')
+                buffer[position++] = '"';
+            buffer[position++] = c;
+        }
+        append('"');
+    }
+
+    /**
+     * Appends a quoted "(ordinal) price" cell, formatting the price
+     * directly into the buffer.  It contains no quotes to escape.
+     */
+    private void priceCell(PricedRow row, int index)
+        throws IOException
+    {
+        int ordinal = row.getOrdinal(index);
+        if (ordinal == 0)
+        {
+            cell(null);
+            return;
+        }
+        double price = row.getPrice(index);
+        if (!PriceFormatter.isBounded(price))
+        {
+            cell(PriceFormatter.formatOrdinalPrice(ordinal, price));
+            return;
+        }
+        if (position > BUFFER_SIZE - PriceFormatter.MAX_ORDINAL_PRICE_LENGTH - 2)
+            flushBuffer();
+        buffer[position++] = '"';
+        position = PriceFormatter.formatOrdinalPrice(ordinal, price, buffer, position);
+        buffer[position++] = '"';
+    }
+
+    private void append(char c)
+        throws IOException
+    {
+        if (position == BUFFER_SIZE)
+            flushBuffer();
+        buffer[position++] = c;
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if (position > 0)
+        {
+            writer.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package support;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes a report as newline-delimited JSON, one object per row keyed by
+ * column title.  The price columns ("formattedPrices[i]") are keyed by
+ * distributor within a nested "prices" object, so that a distributor
+ * named like a text column cannot collide with it, e.g.
+ * {"Manufacturer":"Acme",...,"prices":{"Manufacturer":null,...}}.
+ * <p>
+ * Text cells are JSON strings, and null cells are null.  Price cells of a
+ * {@link PricedRow} are objects holding the ordinal and the price as a
+ * number, e.g. {"ordinal":1,"price":24.00}, so that prices are read back
+ * without parsing "(1) 24.00" text.  The report title, subtitle and
+ * dates are not written.  Text is escaped straight into a reusable
+ * character buffer, as {@link CsvReportSink} does.
+ */
+public class JsonLinesReportSink implements ReportSink
+{
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Writer writer;
+    private final boolean closeWriter;
+    /** Counts the encoded bytes, if the sink was given a stream
+     */
+    private final CountingOutputStream counter;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private Report report;
+    /** The key of the nested object of price columns
+     */
+    private static final String PRICES_KEY = "\"prices\":";
+
+    /** The escaped column titles, each followed by a colon
+     */
+    private String[] keys;
+    /** Whether each column is a price column
+     */
+    private boolean[] priceColumns;
+    private boolean hasPriceColumns;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param writer the writer to receive the JSON text
+     * @param closeWriter whether {@link #close()} closes the writer
+     */
+    public JsonLinesReportSink(Writer writer, boolean closeWriter)
+    {
+        this(writer, closeWriter, null);
+    }
+
+    private JsonLinesReportSink(Writer writer, boolean closeWriter, CountingOutputStream counter)
+    {
+        this.writer = writer;
+        this.closeWriter = closeWriter;
+        this.counter = counter;
+    }
+
+    /**
+     * @param out the stream to receive the UTF-8 encoded JSON text
+     * @param closeStream whether {@link #close()} closes the stream
+     */
+    public JsonLinesReportSink(OutputStream out, boolean closeStream)
+    {
+        this(new CountingOutputStream(out), closeStream);
+    }
+
+    private JsonLinesReportSink(CountingOutputStream counter, boolean closeStream)
+    {
+        this(new OutputStreamWriter(counter, StandardCharsets.UTF_8), closeStream, counter);
+    }
+
+    /**
+     * Opens a sink on a file, or on standard output if filename is "-".
+     * @param filename the file name
+     * @return the sink
+     */
+    public static JsonLinesReportSink open(String filename)
+        throws IOException
+    {
+        if ("-".equals(filename))
+            return new JsonLinesReportSink(System.out, false);
+        return new JsonLinesReportSink(new FileOutputStream(filename), true);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                             ReportSink                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public void begin(Report report)
+        throws IOException
+    {
+        this.report = report;
+        List<String> titles = report.getColumnTitles();
+        List<String> properties = report.getColumnProperties();
+        keys = new String[titles.size()];
+        priceColumns = new boolean[titles.size()];
+        hasPriceColumns = false;
+        for (int i = 0; i < keys.length; i++)
+        {
+            StringBuilder key = new StringBuilder();
+            escape(titles.get(i), key);
+            keys[i] = key.append(':').toString();
+            priceColumns[i] = ReportSnapshotSink.priceIndex(properties.get(i)) >= 0;
+            hasPriceColumns |= priceColumns[i];
+        }
+    }
+
+    public void row(Object row)
+        throws IOException
+    {
+        List<PropertyAccessor> accessors = report.getColumnAccessors(row.getClass());
+        append('{');
+        boolean first = true;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (!priceColumns[i])
+            {
+                if (!first)
+                    append(',');
+                first = false;
+                append(keys[i]);
+                value(accessors.get(i).get(row));
+            }
+        }
+        if (hasPriceColumns)
+        {
+            if (!first)
+                append(',');
+            append(PRICES_KEY);
+            append('{');
+            first = true;
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (priceColumns[i])
+                {
+                    if (!first)
+                        append(',');
+                    first = false;
+                    append(keys[i]);
+                    PropertyAccessor accessor = accessors.get(i);
+                    if (accessor instanceof PropertyAccessor.PriceCell)
+                        priceValue((PricedRow) row, ((PropertyAccessor.PriceCell) accessor).getIndex());
+                    else
+                        value(accessor.get(row));
+                }
+            }
+            append('}');
+        }
+        append('}');
+        append('\n');
+    }
+
+    public void end()
+        throws IOException
+    {
+        flushBuffer();
+        writer.flush();
+    }
+
+    /**
+     * Returns the number of encoded bytes written so far, including the
+     * last row only after {@link #end()}, or -1 if the sink writes to a
+     * Writer and does not see the bytes.
+     */
+    public long getBytesWritten()
+    {
+        return counter != null ? counter.getCount() : -1;
+    }
+
+    public void close()
+        throws IOException
+    {
+        flushBuffer();
+        if (closeWriter)
+            writer.close();
+        else
+            writer.flush();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Encoding                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private void value(Object value)
+        throws IOException
+    {
+        if (value == null)
+        {
+            append("null");
+            return;
+        }
+        CharSequence text = value instanceof CharSequence ? (CharSequence) value : value.toString();
+        append('"');
+        int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            if (position > BUFFER_SIZE - 6)
+                flushBuffer();
+            position = escape(text.charAt(i), buffer, position);
+        }
+        append('"');
+    }
+
+    /**
+     * Writes a price cell as {"ordinal":n,"price":p}, or null if the row
+     * has no ranked price.  Prices that are not finite are written as
+     * null, as JSON has no number for them.
+     */
+    private void priceValue(PricedRow row, int index)
+        throws IOException
+    {
+        int ordinal = row.getOrdinal(index);
+        if (ordinal == 0)
+        {
+            append("null");
+            return;
+        }
+        double price = row.getPrice(index);
+        append("{\"ordinal\":");
+        append(Integer.toString(ordinal));
+        append(",\"price\":");
+        if (PriceFormatter.isBounded(price))
+        {
+            if (position > BUFFER_SIZE - PriceFormatter.MAX_PRICE_LENGTH)
+                flushBuffer();
+            position = PriceFormatter.formatPrice(price, buffer, position);
+        }
+        else if (Double.isNaN(price) || Double.isInfinite(price))
+            append("null");
+        else
+            append(PriceFormatter.formatPrice(price));
+        append('}');
+    }
+
+    /** Appends a JSON string literal to a builder.
+     */
+    private static void escape(String text, StringBuilder out)
+    {
+        char[] escaped = new char[6];
+        out.append('"');
+        if (text != null)
+        {
+            for (int i = 0; i < text.length(); i++)
+                out.append(escaped, 0, escape(text.charAt(i), escaped, 0));
+        }
+        out.append('"');
+    }
+
+    /**
+     * Writes a character as it appears inside a JSON string, escaping
+     * quotes, backslashes and control characters.
+     * @return the offset after the last character written; at most 6 are written
+     */
+    private static int escape(char c, char[] out, int offset)
+    {
+        if (c >= 0x20 && c != '"' && c != '\\')
+        {
+            out[offset++] = c;
+            return offset;
+        }
+        out[offset++] = '\\';
+        switch (c)
+        {
+        case '"':
+        case '\\':
+            out[offset++] = c;
+            break;
+        case '\n':
+            out[offset++] = 'n';
+            break;
+        case '\r':
+            out[offset++] = 'r';
+            break;
+        case '\t':
+            out[offset++] = 't';
+            break;
+        default:
+            out[offset++] = 'u';
+            out[offset++] = '0';
+            out[offset++] = '0';
+            out[offset++] = HEX_DIGITS[c >> 4];
+            out[offset++] = HEX_DIGITS[c & 0xF];
+        }
+        return offset;
+    }
+
+    private void append(char c)
+        throws IOException
+    {
+        if (position == BUFFER_SIZE)
+            flushBuffer();
+        buffer[position++] = c;
+    }
+
+    private void append(String text)
+        throws IOException
+    {
+        int length = text.length();
+        if (position > BUFFER_SIZE - length)
+        {
+            flushBuffer();
+            if (length > BUFFER_SIZE)
+            {
+                writer.write(text);
+                return;
+            }
+        }
+        text.getChars(0, length, buffer, position);
+        position += length;
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if (position > 0)
+        {
+            writer.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
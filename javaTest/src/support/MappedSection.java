@@ -0,0 +1,74 @@
+package support;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only, memory-mapped region of a snapshot file.
+ * Regions larger than one mapping allows are mapped in chunks; the
+ * chunk size is a multiple of 8, so values of up to 8 bytes at aligned
+ * positions never straddle two chunks.
+ */
+class MappedSection
+{
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = (int) (CHUNK_SIZE - 1);
+
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    MappedSection(FileChannel channel, long offset, long length)
+        throws IOException
+    {
+        this.length = length;
+        int chunkCount = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++)
+        {
+            long start = (long) i << CHUNK_SHIFT;
+            long size = Math.min(CHUNK_SIZE, length - start);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, size);
+        }
+    }
+
+    long length()
+    {
+        return length;
+    }
+
+    int getInt(long position)
+    {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getInt((int) position & CHUNK_MASK);
+    }
+
+    long getLong(long position)
+    {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) position & CHUNK_MASK);
+    }
+
+    double getDouble(long position)
+    {
+        return chunks[(int) (position >>> CHUNK_SHIFT)].getDouble((int) position & CHUNK_MASK);
+    }
+
+    /** Decodes UTF-8 text, which may straddle chunks.
+     */
+    String getString(long position, int byteLength)
+    {
+        byte[] bytes = new byte[byteLength];
+        int done = 0;
+        while (done < byteLength)
+        {
+            long at = position + done;
+            MappedByteBuffer chunk = chunks[(int) (at >>> CHUNK_SHIFT)];
+            int index = (int) at & CHUNK_MASK;
+            int count = Math.min(byteLength - done, chunk.limit() - index);
+            chunk.get(index, bytes, done, count);
+            done += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
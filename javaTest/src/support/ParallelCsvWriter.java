@@ -0,0 +1,234 @@
+package support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a report as CSV, encoding chunks of rows on a fork-join pool
+ * and writing the encoded chunks in order to a single channel.
+ * <p>
+ * With compression, each chunk is compressed on its worker into a
+ * complete gzip member.  A sequence of members is itself a valid gzip
+ * file, which gunzip and GZIPInputStream read as one stream, so
+ * compression runs in parallel as well.  At most twice the pool's
+ * parallelism of chunks are held encoded at a time.
+ * <p>
+ * The output is the same as {@link CsvReportSink}'s.  The charset must
+ * encode each chunk independently, as UTF-8 and single-byte charsets
+ * do; charsets that write a byte order mark are rejected.
+ */
+public class ParallelCsvWriter
+{
+    /** Rows encoded by one task.
+     */
+    public static final int DEFAULT_CHUNK_ROWS = 4096;
+
+    private final ForkJoinPool pool;
+    private final Charset charset;
+    private final boolean gzip;
+    private final int chunkRows;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param pool the pool to encode chunks on
+     * @param charset the character encoding
+     * @param gzip whether to write gzip compressed output
+     */
+    public ParallelCsvWriter(ForkJoinPool pool, Charset charset, boolean gzip)
+    {
+        this(pool, charset, gzip, DEFAULT_CHUNK_ROWS);
+    }
+
+    /**
+     * @param pool the pool to encode chunks on
+     * @param charset the character encoding
+     * @param gzip whether to write gzip compressed output
+     * @param chunkRows the number of rows encoded by each task
+     */
+    public ParallelCsvWriter(ForkJoinPool pool, Charset charset, boolean gzip, int chunkRows)
+    {
+        if (chunkRows <= 0)
+            throw new IllegalArgumentException("chunkRows must be positive: " + chunkRows);
+        if (charset.encode("aa").remaining() != 2 * charset.encode("a").remaining())
+            throw new IllegalArgumentException(charset + " cannot be encoded in independent chunks");
+        this.pool = pool;
+        this.charset = charset;
+        this.gzip = gzip;
+        this.chunkRows = chunkRows;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Output                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes a report to a file, replacing it.
+     * @param report the report
+     * @param file the file
+     * @return the number of bytes written
+     */
+    public long write(Report report, Path file)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            return write(report, channel);
+        }
+    }
+
+    /**
+     * Writes a report to a channel.  The report's metrics, if any, record
+     * the time as WRITING and the bytes written.
+     * @param report the report
+     * @param channel the destination; it is not closed
+     * @return the number of bytes written
+     */
+    public long write(Report report, WritableByteChannel channel)
+        throws IOException
+    {
+        ReportMetrics metrics = report.getMetrics();
+        ReportMetrics.StageTimer timer = metrics != null ? metrics.start(ReportStage.WRITING, true) : null;
+        List<Object> rows = report.getRows();
+        Deque<ForkJoinTask<ByteBuffer>> pending = new ArrayDeque<ForkJoinTask<ByteBuffer>>();
+        int window = 2 * pool.getParallelism();
+        long bytesWritten = 0;
+        try
+        {
+            pending.addLast(pool.submit(new EncodeTask(report, 0, 0, timer)));
+            for (int from = 0; from < rows.size(); from += chunkRows)
+            {
+                if (pending.size() >= window)
+                    bytesWritten += writeFully(channel, pending.removeFirst().join());
+                pending.addLast(pool.submit(new EncodeTask(report, from, Math.min(rows.size(), from + chunkRows),
+                                                           timer)));
+            }
+            while (!pending.isEmpty())
+                bytesWritten += writeFully(channel, pending.removeFirst().join());
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            for (ForkJoinTask<ByteBuffer> task : pending)
+                task.cancel(false);
+        }
+        if (timer != null)
+        {
+            metrics.addBytesWritten(bytesWritten);
+            timer.stop();
+        }
+        return bytesWritten;
+    }
+
+    private static long writeFully(WritableByteChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        long count = buffer.remaining();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        return count;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Encoding                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Encodes the header, when the range is empty and starts at 0, or a
+     * range of rows, and compresses it if asked to.
+     */
+    private class EncodeTask extends RecursiveTask<ByteBuffer>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Report report;
+        private final int from;
+        private final int to;
+        /** Measures the writing's allocation on the threads encoding, or null
+         */
+        private final ReportMetrics.StageTimer timer;
+
+        EncodeTask(Report report, int from, int to, ReportMetrics.StageTimer timer)
+        {
+            this.report = report;
+            this.from = from;
+            this.to = to;
+            this.timer = timer;
+        }
+
+        protected ByteBuffer compute()
+        {
+            if (timer != null)
+                timer.addCurrentThread();
+            try
+            {
+                ChunkOutputStream chunk = new ChunkOutputStream();
+                OutputStream out = gzip ? new GZIPOutputStream(chunk, 64 * 1024) : chunk;
+                CsvReportSink sink = new CsvReportSink(new OutputStreamWriter(out, charset), true);
+                if (from == to)
+                {
+                    sink.begin(report);
+                }
+                else
+                {
+                    sink.beginRows(report);
+                    List<Object> rows = report.getRows();
+                    for (int i = from; i < to; i++)
+                        sink.row(rows.get(i));
+                }
+                sink.close();
+                return chunk.toBuffer();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Collects an encoded chunk, handing its bytes on without a copy.
+     */
+    private static class ChunkOutputStream extends ByteArrayOutputStream
+    {
+        ChunkOutputStream()
+        {
+            super(64 * 1024);
+        }
+
+        ByteBuffer toBuffer()
+        {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
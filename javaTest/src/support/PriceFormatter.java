@@ -0,0 +1,181 @@
+package support;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Formats prices with exactly two decimals, as DecimalFormat("0.00") does
+ * (half-even rounding of the exact binary value, "-0.00" for negative
+ * values that round to zero), writing the characters straight into a
+ * caller-provided buffer.  The decimal separator is always '.'.
+ * <p>
+ * All methods are static and thread-safe.  Values of magnitude 1e13 and
+ * above, and NaN and infinities, fall back to DecimalFormat; see
+ * {@link #isBounded(double)}.
+ */
+public final class PriceFormatter
+{
+    /** Largest number of characters written for a price under 1e13.
+     */
+    public static final int MAX_PRICE_LENGTH = 18;
+
+    /** Largest number of characters written for an ordinal and a price under 1e13.
+     */
+    public static final int MAX_ORDINAL_PRICE_LENGTH = 13 + MAX_PRICE_LENGTH;
+
+    /** Magnitude below which value * 100 is exactly comparable in a long.
+     */
+    private static final double FAST_LIMIT = 1e13;
+
+    private static final ThreadLocal<DecimalFormat> fallbackFormat = new ThreadLocal<DecimalFormat>()
+        {
+            protected DecimalFormat initialValue()
+            {
+                DecimalFormat format = new DecimalFormat("0.00", DecimalFormatSymbols.getInstance(Locale.ROOT));
+                format.setRoundingMode(RoundingMode.HALF_EVEN);
+                return format;
+            }
+        };
+
+    private PriceFormatter()
+    {
+    }
+
+    /**
+     * Whether a price is formatted in at most {@link #MAX_PRICE_LENGTH} characters.
+     */
+    public static boolean isBounded(double price)
+    {
+        return isFast(price);
+    }
+
+    /**
+     * Writes a price, e.g. "24.00".
+     * @param price the price
+     * @param buffer the destination
+     * @param offset where to start writing
+     * @return the offset after the last character written
+     */
+    public static int formatPrice(double price, char[] buffer, int offset)
+    {
+        if (!isFast(price))
+        {
+            String text = fallbackFormat.get().format(price);
+            text.getChars(0, text.length(), buffer, offset);
+            return offset + text.length();
+        }
+        if (isNegative(price))
+            buffer[offset++] = '-';
+        long cents = roundToCents(Math.abs(price));
+        offset = formatLong(cents / 100, buffer, offset);
+        int fraction = (int) (cents % 100);
+        buffer[offset++] = '.';
+        buffer[offset++] = (char) ('0' + fraction / 10);
+        buffer[offset++] = (char) ('0' + fraction % 10);
+        return offset;
+    }
+
+    /**
+     * Writes an ordinal and price, e.g. "(1) 24.00".
+     * @param ordinal the price order
+     * @param price the price
+     * @param buffer the destination, with room for {@link #MAX_ORDINAL_PRICE_LENGTH}
+     *      characters for prices under 1e13
+     * @param offset where to start writing
+     * @return the offset after the last character written
+     */
+    public static int formatOrdinalPrice(int ordinal, double price, char[] buffer, int offset)
+    {
+        buffer[offset++] = '(';
+        offset = formatLong(ordinal, buffer, offset);
+        buffer[offset++] = ')';
+        buffer[offset++] = ' ';
+        return formatPrice(price, buffer, offset);
+    }
+
+    /**
+     * Returns an ordinal and price as a string, e.g. "(1) 24.00".
+     */
+    public static String formatOrdinalPrice(int ordinal, double price)
+    {
+        if (!isFast(price))
+            return "(" + ordinal + ") " + fallbackFormat.get().format(price);
+        char[] buffer = new char[MAX_ORDINAL_PRICE_LENGTH];
+        return new String(buffer, 0, formatOrdinalPrice(ordinal, price, buffer, 0));
+    }
+
+    /**
+     * Returns a price as a string, e.g. "24.00".
+     */
+    public static String formatPrice(double price)
+    {
+        if (!isFast(price))
+            return fallbackFormat.get().format(price);
+        char[] buffer = new char[MAX_PRICE_LENGTH];
+        return new String(buffer, 0, formatPrice(price, buffer, 0));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Rounding                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private static boolean isFast(double price)
+    {
+        return Math.abs(price) < FAST_LIMIT;
+    }
+
+    private static boolean isNegative(double price)
+    {
+        return Double.doubleToRawLongBits(price) < 0;
+    }
+
+    /**
+     * Rounds a non-negative value below FAST_LIMIT to a whole number of
+     * hundredths, half-even, deciding ties on the exact binary value.
+     * Math.fma computes value * 100 - n with a single rounding, which
+     * preserves the sign of the exact difference.
+     */
+    private static long roundToCents(double value)
+    {
+        long cents = (long) (value * 100);
+        while (cents > 0 && Math.fma(value, 100, -cents) < 0)
+            cents--;
+        while (Math.fma(value, 100, -(cents + 1)) >= 0)
+            cents++;
+        double remainder = Math.fma(value, 100, -(cents + 0.5));
+        if (remainder > 0 || (remainder == 0 && (cents & 1) != 0))
+            cents++;
+        return cents;
+    }
+
+    private static int digits(long value)
+    {
+        int digits = 1;
+        while (value >= 10)
+        {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /** Writes a non-negative long.
+     */
+    private static int formatLong(long value, char[] buffer, int offset)
+    {
+        int end = offset + digits(value);
+        int position = end;
+        do
+        {
+            buffer[--position] = (char) ('0' + (int) (value % 10));
+            value /= 10;
+        }
+        while (value != 0);
+        return end;
+    }
+}
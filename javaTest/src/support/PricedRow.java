@@ -0,0 +1,30 @@
+package support;
+
+/**
+ * A row bean whose ranked prices can be read as numbers.
+ * <p>
+ * For such rows the report column property "formattedPrices[i]" is
+ * read through {@link #getOrdinal(int)} and {@link #getPrice(int)}, so
+ * that output can format the price straight into its own buffer
+ * instead of asking the row for a string.
+ */
+public interface PricedRow
+{
+    /** The indexed property holding "(ordinal) price" text.
+     */
+    String FORMATTED_PRICES = "formattedPrices";
+
+    /**
+     * Returns the order of a distributor's price.
+     * @param index the distributor index
+     * @return the ordinal, 1 being the lowest price, or 0 if there is no ranked price
+     */
+    int getOrdinal(int index);
+
+    /**
+     * Returns a distributor's price.
+     * @param index the distributor index
+     * @return the price, or NaN if there is none
+     */
+    double getPrice(int index);
+}
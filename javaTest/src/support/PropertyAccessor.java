@@ -0,0 +1,298 @@
+package support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * A property getter resolved once for a bean class, so that reading
+ * the property for many beans needs no further reflection lookups.
+ * <p>
+ * Property names follow the same syntax as {@link Report#addColumn}:
+ * either a plain name ("manufacturerName") or an indexed name
+ * ("formattedPrices[12]").  An indexed name is resolved to the
+ * JavaBeans indexed getter {@code getFormattedPrices(int)} if the
+ * class has one, otherwise to the array getter {@code getFormattedPrices()}.
+ * On a {@link PricedRow}, "formattedPrices[i]" resolves to a {@link PriceCell}.
+ */
+public abstract class PropertyAccessor
+{
+    /** Value reported for a property that cannot be read.
+     */
+    public static final String ERROR_VALUE = "Error!";
+
+    private static final MethodType OBJECT_GETTER =
+                MethodType.methodType(Object.class, Object.class);
+    private static final MethodType INDEXED_GETTER =
+                MethodType.methodType(Object.class, Object.class, int.class);
+
+    private final String property;
+
+    protected PropertyAccessor(String property)
+    {
+        this.property = property;
+    }
+
+    /**
+     * Reads the property from a bean of the class this accessor was compiled for.
+     * @param bean the bean to read
+     * @return the property value, or {@link #ERROR_VALUE} if it cannot be read
+     */
+    public abstract Object get(Object bean);
+
+    /** Whether the property was found on the bean class.
+     */
+    public boolean isResolved()
+    {
+        return true;
+    }
+
+    public String getProperty()
+    {
+        return property;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Compilation                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Resolves a property of a bean class into an accessor.
+     * A property that does not exist yields an accessor that always
+     * returns {@link #ERROR_VALUE}, so callers never have to catch.
+     * @param beanClass the class of the beans to be read
+     * @param property the property name, optionally with an index suffix
+     * @return the accessor
+     */
+    public static PropertyAccessor compile(Class<?> beanClass, String property)
+    {
+        String name = property;
+        int index = -1;
+        int bracket = property.indexOf('[');
+        if (bracket >= 0)
+        {
+            int close = property.indexOf(']', bracket);
+            index = parseIndex(property, bracket + 1, close);
+            if (index < 0)
+                return new Unresolved(property);
+            name = property.substring(0, bracket);
+        }
+        if (name.isEmpty())
+            return new Unresolved(property);
+        if (index >= 0 && name.equals(PricedRow.FORMATTED_PRICES)
+                && PricedRow.class.isAssignableFrom(beanClass))
+            return new PriceCell(property, index);
+        String getterName = "get" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        if (index >= 0)
+        {
+            Method indexedGetter = findGetter(beanClass, getterName, int.class);
+            if (indexedGetter != null)
+            {
+                MethodHandle handle = unreflect(lookup, indexedGetter, INDEXED_GETTER);
+                if (handle != null)
+                    return new IndexedGetter(property, handle, index);
+            }
+        }
+        Method getter = findGetter(beanClass, getterName);
+        if (getter == null)
+            return new Unresolved(property);
+        if (index >= 0 && !getter.getReturnType().isArray())
+            return new Unresolved(property);
+        MethodHandle handle = unreflect(lookup, getter, OBJECT_GETTER);
+        if (handle == null)
+            return new Unresolved(property);
+        if (index >= 0)
+            return new ArrayElementGetter(property, handle, index);
+        return new SimpleGetter(property, handle);
+    }
+
+    /** Parses the digits between from and to, or returns -1 if there are none.
+     */
+    private static int parseIndex(String property, int from, int to)
+    {
+        if (to <= from)
+            return -1;
+        int index = 0;
+        for (int i = from; i < to; i++)
+        {
+            char c = property.charAt(i);
+            if (c < '0' || c > '9' || index > (Integer.MAX_VALUE - 9) / 10)
+                return -1;
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
+    private static Method findGetter(Class<?> beanClass, String name, Class<?>... parameterTypes)
+    {
+        for (Method method : beanClass.getMethods())
+        {
+            if (method.getName().equals(name)
+                    && !Modifier.isStatic(method.getModifiers())
+                    && method.getReturnType() != void.class
+                    && Arrays.equals(method.getParameterTypes(), parameterTypes))
+                return method;
+        }
+        return null;
+    }
+
+    private static MethodHandle unreflect(MethodHandles.Lookup lookup, Method method, MethodType type)
+    {
+        try
+        {
+            return lookup.unreflect(method).asType(type);
+        }
+        catch (IllegalAccessException e)
+        {
+            // e.g. a public method declared by a non-public class
+            return null;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                          Implementations                          //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private static class SimpleGetter extends PropertyAccessor
+    {
+        private final MethodHandle handle;
+
+        SimpleGetter(String property, MethodHandle handle)
+        {
+            super(property);
+            this.handle = handle;
+        }
+
+        public Object get(Object bean)
+        {
+            try
+            {
+                return handle.invokeExact(bean);
+            }
+            catch (Throwable t)
+            {
+                return ERROR_VALUE;
+            }
+        }
+    }
+
+    private static class IndexedGetter extends PropertyAccessor
+    {
+        private final MethodHandle handle;
+        private final int index;
+
+        IndexedGetter(String property, MethodHandle handle, int index)
+        {
+            super(property);
+            this.handle = handle;
+            this.index = index;
+        }
+
+        public Object get(Object bean)
+        {
+            try
+            {
+                return handle.invokeExact(bean, index);
+            }
+            catch (Throwable t)
+            {
+                return ERROR_VALUE;
+            }
+        }
+    }
+
+    private static class ArrayElementGetter extends PropertyAccessor
+    {
+        private final MethodHandle handle;
+        private final int index;
+
+        ArrayElementGetter(String property, MethodHandle handle, int index)
+        {
+            super(property);
+            this.handle = handle;
+            this.index = index;
+        }
+
+        public Object get(Object bean)
+        {
+            Object array;
+            try
+            {
+                array = handle.invokeExact(bean);
+            }
+            catch (Throwable t)
+            {
+                return ERROR_VALUE;
+            }
+            if (array instanceof Object[])
+            {
+                Object[] elements = (Object[]) array;
+                return index < elements.length ? elements[index] : ERROR_VALUE;
+            }
+            if (array == null || index >= Array.getLength(array))
+                return ERROR_VALUE;
+            return Array.get(array, index);
+        }
+    }
+
+    /**
+     * Reads the "(ordinal) price" text of a {@link PricedRow}, and lets
+     * output code read the ordinal and price without building the text.
+     */
+    public static final class PriceCell extends PropertyAccessor
+    {
+        private final int index;
+
+        PriceCell(String property, int index)
+        {
+            super(property);
+            this.index = index;
+        }
+
+        public Object get(Object bean)
+        {
+            PricedRow row = (PricedRow) bean;
+            int ordinal = row.getOrdinal(index);
+            if (ordinal == 0)
+                return null;
+            return PriceFormatter.formatOrdinalPrice(ordinal, row.getPrice(index));
+        }
+
+        /** Returns the distributor index.
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+    }
+
+    private static class Unresolved extends PropertyAccessor
+    {
+        Unresolved(String property)
+        {
+            super(property);
+        }
+
+        public Object get(Object bean)
+        {
+            return ERROR_VALUE;
+        }
+
+        public boolean isResolved()
+        {
+            return false;
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package support;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * An representation of report data.
@@ -21,6 +22,14 @@ public class Report
     private List<String> columnProperties = new ArrayList<String>();
     private List<Object> rows = new ArrayList<Object>();
     
+    /** Column accessors resolved for the class of the rows last written.
+     */
+    private ColumnAccessors accessors;
+    
+    /** Measurements of the report, or null if it is not measured.
+     */
+    private ReportMetrics metrics;
+    
     public Report()
     {
     }
@@ -28,75 +37,160 @@ public class Report
     
     ///////////////////////////////////////////////////////////////////////
     //                                                                   //
-    //                            CSV Creation                           //
+    //                               Output                              //
     //                                                                   //
     ///////////////////////////////////////////////////////////////////////
 
+    /**
+     * Writes the report as CSV in the platform default encoding.
+     * @param filename the file name, or "-" for standard output
+     */
     public void writeCsv(String filename)
-        throws FileNotFoundException
+        throws IOException
     {
-        PrintStream printStream;
-        if ("-".equals(filename))
-            printStream = System.out;
-        else
-            printStream = new PrintStream(new File(filename));
-        
-        if (title != null)
-            printStream.println("\"" + title + "\"");
-        if (subtitle != null)
-            printStream.println("\"" + subtitle + "\"");
-        if (dates != null)
-            printStream.println("\"" + dates + "\"");
-        printStream.println();
-        
-        printRow(printStream, columnTitles);
-        for (Object row : rows)
-            printRow(printStream, row, columnProperties);
+        writeCsv(filename, Charset.defaultCharset());
+    }
+    
+    /**
+     * Writes the report as CSV.
+     * @param filename the file name, or "-" for standard output
+     * @param charset the character encoding
+     */
+    public void writeCsv(String filename, Charset charset)
+        throws IOException
+    {
+        writeAndClose(CsvReportSink.open(filename, charset));
+    }
+    
+    /**
+     * Writes the report as CSV, encoding and optionally gzip compressing
+     * chunks of rows in parallel; see {@link ParallelCsvWriter}.
+     * @param filename the file name
+     * @param charset the character encoding
+     * @param pool the pool to encode on
+     * @param gzip whether to compress the file
+     */
+    public void writeCsv(String filename, Charset charset, ForkJoinPool pool, boolean gzip)
+        throws IOException
+    {
+        new ParallelCsvWriter(pool, charset, gzip).write(this, Paths.get(filename));
+    }
+    
+    /**
+     * Writes the report as an Excel workbook.
+     * @param filename the file name, or "-" for standard output
+     */
+    public void writeXlsx(String filename)
+        throws IOException
+    {
+        writeAndClose(XlsxReportSink.open(filename));
+    }
+    
+    /**
+     * Writes the rows of the report as newline-delimited JSON.
+     * @param filename the file name, or "-" for standard output
+     */
+    public void writeJsonLines(String filename)
+        throws IOException
+    {
+        writeAndClose(JsonLinesReportSink.open(filename));
     }
     
-    void printRow(PrintStream printStream, List<?> cells)
+    /**
+     * Writes the report in the compressed columnar format read by
+     * {@link ColumnarReport}.
+     * @param filename the file name
+     */
+    public void writeColumnar(String filename)
+        throws IOException
     {
-        boolean first = true;
-        for (Object cell : cells)
+        writeAndClose(ColumnarReportSink.open(filename));
+    }
+    
+    private void writeAndClose(ReportSink sink)
+        throws IOException
+    {
+        ReportMetrics.StageTimer timer = metrics != null ? metrics.start(ReportStage.WRITING, false) : null;
+        try
         {
-            if (first)
-                first = false;
-            else
-                printStream.print(",");
-            printCell(printStream, cell.toString());
+            writeRows(sink);
+        }
+        finally
+        {
+            sink.close();
+        }
+        if (timer != null)
+        {
+            metrics.addBytesWritten(sink.getBytesWritten());
+            timer.stop();
         }
-        printStream.print("\n");
     }
     
-    void printRow(PrintStream printStream, Object bean, List<String> properties)
+    /**
+     * Writes the header and all rows of this report to a sink.
+     * The sink is left open.
+     * @param sink the destination
+     */
+    public void write(ReportSink sink)
+        throws IOException
     {
-        boolean first = true;
-        for (String property : properties)
+        if (metrics == null)
         {
-            if (first)
-                first = false;
-            else
-                printStream.print(",");
-            Object value;
-            try
-            {
-                value = getBeanProperty(bean, property);
-            }
-            catch (Exception e)
-            {
-                value = "Error!";
-            }
-            printCell(printStream, value);
+            writeRows(sink);
+            return;
         }
-        printStream.print("\n");
-        
+        ReportMetrics.StageTimer timer = metrics.start(ReportStage.WRITING, false);
+        long bytesBefore = sink.getBytesWritten();
+        writeRows(sink);
+        if (bytesBefore >= 0)
+            metrics.addBytesWritten(sink.getBytesWritten() - bytesBefore);
+        timer.stop();
     }
-
-    static void printCell(PrintStream printStream, Object value)
+    
+    private void writeRows(ReportSink sink)
+        throws IOException
     {
-        String string = value == null ? "" : value.toString();
-        string = string.replace("\"", "\"\"");
-        printStream.print("\"" + string + "\"");
+        sink.begin(this);
+        for (Object row : rows)
+            sink.row(row);
+        sink.end();
+    }
+    
+    /**
+     * Returns the column property accessors for rows of the given class.
+     * The accessors are resolved once and reused until a row of another
+     * class is written or a column is added.
+     * @param beanClass the row class
+     * @return one accessor per column, in column order
+     */
+    public List<PropertyAccessor> getColumnAccessors(Class<?> beanClass)
+    {
+        ColumnAccessors current = accessors;
+        if (current == null || current.beanClass != beanClass)
+        {
+            List<PropertyAccessor> resolved = new ArrayList<PropertyAccessor>(columnProperties.size());
+            for (String property : columnProperties)
+                resolved.add(PropertyAccessor.compile(beanClass, property));
+            current = new ColumnAccessors(beanClass, resolved);
+            accessors = current;
+        }
+        return current.accessors;
+    }
+    
+    /** Accessors and the row class they were resolved for.  Both fields
+     * are final, so a finished report can be written by several threads
+     * at once: each sees a complete pair, or resolves its own.
+     */
+    private static class ColumnAccessors
+    {
+        final Class<?> beanClass;
+        final List<PropertyAccessor> accessors;
+
+        ColumnAccessors(Class<?> beanClass, List<PropertyAccessor> accessors)
+        {
+            this.beanClass = beanClass;
+            this.accessors = accessors;
+        }
     }
     
     public static Object getBeanProperty(Object bean, String property)
@@ -107,7 +201,10 @@ public class Report
         if (property.contains("["))
         {
             int i = property.indexOf('[');
-            index = Integer.parseInt(property.substring(i + 1, i + 2));
+            int close = property.indexOf(']', i);
+            if (close < 0)
+                throw new IllegalArgumentException("Unclosed index in property: " + property);
+            index = Integer.parseInt(property.substring(i + 1, close));
             property = property.substring(0, i);
         }
         String methodName = property.substring(0, 1).toUpperCase()
@@ -161,6 +258,7 @@ public class Report
     {
         columnTitles.add(title);
         columnProperties.add(property);
+        accessors = null;
     }
 
     public List<String> getColumnProperties()
@@ -173,6 +271,18 @@ public class Report
         return columnTitles;
     }
 
+    /** Returns the measurements of the report, or null if it is not measured.
+     */
+    public ReportMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public void setMetrics(ReportMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
     public List<Object> getRows()
     {
         return rows;
@@ -0,0 +1,21 @@
+package support;
+
+/**
+ * Commits a {@link ReportStageEvent} to JDK Flight Recorder for each
+ * finished report stage, when the event is enabled in a recording.
+ */
+public class ReportEventListener implements ReportListener
+{
+    public void stageFinished(ReportMetrics metrics, ReportStage stage, long nanos, long allocatedBytes)
+    {
+        ReportStageEvent event = new ReportStageEvent();
+        if (!event.isEnabled())
+            return;
+        event.report = metrics.getTitle();
+        event.stage = stage.name();
+        event.stageTime = nanos;
+        event.allocated = allocatedBytes;
+        event.rows = metrics.getRows();
+        event.commit();
+    }
+}
@@ -0,0 +1,20 @@
+package support;
+
+/**
+ * Receives the measurements of report generation as each stage finishes.
+ * Listeners may be called from the threads of a fork-join pool, and for
+ * several reports at once, so implementations must be thread-safe.
+ */
+public interface ReportListener
+{
+    /**
+     * Called when a stage of a report finishes.  A stage may finish more
+     * than once for the same report, e.g. when rows are imported from
+     * several files or a report is written twice.
+     * @param metrics the measurements of the report so far
+     * @param stage the stage that finished
+     * @param nanos the wall time of this run of the stage
+     * @param allocatedBytes the bytes allocated during this run of the stage, or -1 if not measured
+     */
+    void stageFinished(ReportMetrics metrics, ReportStage stage, long nanos, long allocatedBytes);
+}
@@ -0,0 +1,340 @@
+package support;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measurements of one report: the time and allocation of each
+ * {@link ReportStage} and counts of what was processed.  Each finished
+ * stage is passed on to a {@link ReportListener}.
+ * <p>
+ * Stage times are summed over the runs of a stage.  RANKING is timed
+ * product by product and summed over the threads ranking, and is also
+ * included in ROW_BUILD.  Allocation is measured with
+ * com.sun.management.ThreadMXBean, on the measuring thread only or, for
+ * stages run on a fork-join pool, over the measuring thread and the pool
+ * threads that ran the stage's tasks; it is an estimate, includes
+ * whatever else those threads did meanwhile, and is -1 where the JVM
+ * cannot measure it.
+ */
+public class ReportMetrics
+{
+    private static final ReportStage[] STAGES = ReportStage.values();
+
+    private final ReportListener listener;
+    private final String title;
+
+    private final AtomicLongArray stageNanos = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray stageAllocatedBytes = new AtomicLongArray(STAGES.length);
+    /** The totals of each stage already passed to the listener
+     */
+    private final AtomicLongArray reportedNanos = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray reportedAllocatedBytes = new AtomicLongArray(STAGES.length);
+
+    private final AtomicLong contracts = new AtomicLong();
+    private final AtomicLong lineItems = new AtomicLong();
+    private volatile long uniqueKeys;
+    private volatile long distributors;
+    private volatile long rows;
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param listener the listener to notify as stages finish, or null
+     * @param title the report title, identifying the report to the listener
+     */
+    public ReportMetrics(ReportListener listener, String title)
+    {
+        this.listener = listener;
+        this.title = title;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Timing                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Measures one run of a stage, from its creation to {@link #stop()}.
+     */
+    public final class StageTimer
+    {
+        private final ReportStage stage;
+        private final long startNanos;
+        private final long startBytes;
+        /** For a stage run on other threads too: the threads that ran it,
+         * and the bytes allocated by each live thread at the start
+         */
+        private final Set<Long> threadIds;
+        private final Map<Long, Long> threadStartBytes;
+
+        StageTimer(ReportStage stage, boolean allThreads)
+        {
+            this.stage = stage;
+            if (allThreads && isAllocationMeasured())
+            {
+                threadIds = ConcurrentHashMap.newKeySet();
+                threadIds.add(Thread.currentThread().getId());
+                threadStartBytes = allThreadsAllocatedBytes();
+                startBytes = 0;
+            }
+            else
+            {
+                threadIds = null;
+                threadStartBytes = null;
+                startBytes = allocatedBytes();
+            }
+            startNanos = System.nanoTime();
+        }
+
+        /**
+         * Records that the current thread runs part of the stage, so that
+         * its allocation is measured.  Tasks of a stage measured over
+         * other threads call this as they start.
+         */
+        public void addCurrentThread()
+        {
+            if (threadIds != null)
+                threadIds.add(Thread.currentThread().getId());
+        }
+
+        /** Records the stage's time and allocation, and notifies the listener.
+         */
+        public void stop()
+        {
+            long nanos = System.nanoTime() - startNanos;
+            long bytes;
+            if (threadIds != null)
+                bytes = threadsAllocatedBytes(threadIds, threadStartBytes);
+            else
+                bytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+            add(stage, nanos, bytes);
+            finish(stage);
+        }
+    }
+
+    /**
+     * Starts measuring a run of a stage.
+     * @param stage the stage
+     * @param allThreads whether the stage runs on other threads too, so that
+     *        allocation is also measured on the threads that call
+     *        {@link StageTimer#addCurrentThread()}
+     * @return the timer, to be stopped when the stage finishes
+     */
+    public StageTimer start(ReportStage stage, boolean allThreads)
+    {
+        return new StageTimer(stage, allThreads);
+    }
+
+    /**
+     * Adds time to a stage without notifying the listener, for stages
+     * measured in many small parts.
+     * @param allocatedBytes the bytes allocated, or -1 if not measured
+     */
+    public void add(ReportStage stage, long nanos, long allocatedBytes)
+    {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+        if (allocatedBytes > 0)
+            stageAllocatedBytes.addAndGet(stage.ordinal(), allocatedBytes);
+    }
+
+    /**
+     * Notifies the listener of the time and allocation added to a stage
+     * since it last finished.
+     */
+    public void finish(ReportStage stage)
+    {
+        int i = stage.ordinal();
+        long nanos = stageNanos.get(i);
+        long bytes = stageAllocatedBytes.get(i);
+        long nanosDelta = nanos - reportedNanos.getAndSet(i, nanos);
+        long bytesDelta = bytes - reportedAllocatedBytes.getAndSet(i, bytes);
+        if (listener != null)
+            listener.stageFinished(this, stage, nanosDelta, isAllocationMeasured() ? bytesDelta : -1);
+    }
+
+    /** Returns whether the JVM measures allocation.
+     */
+    public static boolean isAllocationMeasured()
+    {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean;
+    }
+
+    /** Returns the bytes allocated so far by the current thread, or -1.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Returns the bytes allocated so far by each live thread, by thread id.
+     */
+    private static Map<Long, Long> allThreadsAllocatedBytes()
+    {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threadBean.getAllThreadIds();
+        long[] allocated = threadBean.getThreadAllocatedBytes(ids);
+        Map<Long, Long> bytes = new HashMap<Long, Long>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++)
+        {
+            if (allocated[i] >= 0)
+                bytes.put(ids[i], allocated[i]);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes allocated by some threads since a snapshot; a
+     * thread started since counts all its allocation, one ended since
+     * counts none.  The threads have stopped adding themselves.
+     */
+    private static long threadsAllocatedBytes(Set<Long> threadIds, Map<Long, Long> startBytes)
+    {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = new long[threadIds.size()];
+        int n = 0;
+        for (Long id : threadIds)
+            ids[n++] = id;
+        long[] allocated = threadBean.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++)
+        {
+            Long start = startBytes.get(ids[i]);
+            if (allocated[i] > 0)
+                total += allocated[i] - (start != null ? start : 0);
+        }
+        return total;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                         Getters / Setters                         //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public String getTitle()
+    {
+        return title;
+    }
+
+    /** Returns the total time of a stage, in nanoseconds.
+     */
+    public long getNanos(ReportStage stage)
+    {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    /** Returns the estimated bytes allocated by a stage, or -1 if not measured.
+     */
+    public long getAllocatedBytes(ReportStage stage)
+    {
+        return isAllocationMeasured() ? stageAllocatedBytes.get(stage.ordinal()) : -1;
+    }
+
+    /** Returns the total time of all stages, in nanoseconds, counting RANKING as part of ROW_BUILD.
+     */
+    public long getTotalNanos()
+    {
+        long total = 0;
+        for (ReportStage stage : STAGES)
+        {
+            if (stage != ReportStage.RANKING)
+                total += getNanos(stage);
+        }
+        return total;
+    }
+
+    public long getContracts()
+    {
+        return contracts.get();
+    }
+
+    public void addContracts(long count)
+    {
+        contracts.addAndGet(count);
+    }
+
+    public long getLineItems()
+    {
+        return lineItems.get();
+    }
+
+    public void addLineItems(long count)
+    {
+        lineItems.addAndGet(count);
+    }
+
+    /** Returns the number of distinct staged rows.
+     */
+    public long getUniqueKeys()
+    {
+        return uniqueKeys;
+    }
+
+    public void setUniqueKeys(long uniqueKeys)
+    {
+        this.uniqueKeys = uniqueKeys;
+    }
+
+    public long getDistributors()
+    {
+        return distributors;
+    }
+
+    public void setDistributors(long distributors)
+    {
+        this.distributors = distributors;
+    }
+
+    public long getRows()
+    {
+        return rows;
+    }
+
+    public void setRows(long rows)
+    {
+        this.rows = rows;
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    public void addBytesWritten(long count)
+    {
+        bytesWritten.addAndGet(count);
+    }
+
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder();
+        text.append(title);
+        for (ReportStage stage : STAGES)
+            text.append(", ").append(stage).append(' ').append(getNanos(stage) / 1000000.0).append(" ms");
+        text.append(", contracts ").append(getContracts());
+        text.append(", line items ").append(getLineItems());
+        text.append(", unique keys ").append(uniqueKeys);
+        text.append(", distributors ").append(distributors);
+        text.append(", rows ").append(rows);
+        text.append(", bytes written ").append(getBytesWritten());
+        return text.toString();
+    }
+}
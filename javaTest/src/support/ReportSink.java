@@ -0,0 +1,45 @@
+package support;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination that report output is written to, one row at a time.
+ * <p>
+ * {@link #begin(Report)} is called once with the report whose title,
+ * dates and columns describe the output, followed by {@link #row(Object)}
+ * for each row bean and a final {@link #end()}.  The rows need not be
+ * held by the report passed to begin, which allows rows to be written
+ * as they are produced.
+ */
+public interface ReportSink extends Closeable
+{
+    /**
+     * Starts the output.
+     * @param report the report supplying header and column definitions
+     */
+    void begin(Report report)
+        throws IOException;
+
+    /**
+     * Writes one row.
+     * @param row a row bean holding the report's column properties
+     */
+    void row(Object row)
+        throws IOException;
+
+    /**
+     * Completes the output and flushes anything buffered.
+     */
+    void end()
+        throws IOException;
+
+    /**
+     * Returns the number of bytes written so far, or -1 if the sink does
+     * not see the bytes it produces.
+     */
+    default long getBytesWritten()
+    {
+        return -1;
+    }
+}
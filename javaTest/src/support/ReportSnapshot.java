@@ -0,0 +1,184 @@
+package support;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A report snapshot written by {@link ReportSnapshotSink}, read through
+ * memory mapping.  Rows are read from the mapped file when asked for;
+ * {@link #toReport()} and {@link #write(ReportSink)} present them as
+ * {@link Row} beans, so a reloaded report writes the same output as the
+ * original.
+ */
+public class ReportSnapshot implements Closeable
+{
+    private final SnapshotFile.Reader reader;
+    private final int columnCount;
+    private final int textColumnCount;
+    private final long rowCount;
+    private final int rowSize;
+    private final MappedSection columns;
+    private final MappedSection rows;
+    private final MappedSection priceColumns;
+    private final MappedSection prices;
+    private final MappedSection ordinals;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Row Beans                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * A view of one snapshot row.  Text columns are read with the indexed
+     * property "text[i]" and price columns with "formattedPrices[i]".
+     */
+    public static class Row implements PricedRow
+    {
+        private final ReportSnapshot snapshot;
+        private final long row;
+
+        Row(ReportSnapshot snapshot, long row)
+        {
+            this.snapshot = snapshot;
+            this.row = row;
+        }
+
+        public String getText(int textColumn)
+        {
+            return snapshot.getText(row, textColumn);
+        }
+
+        public int getOrdinal(int index)
+        {
+            long entry = snapshot.findPrice(row, index);
+            return entry >= 0 ? snapshot.ordinals.getInt(entry * 4) : 0;
+        }
+
+        public double getPrice(int index)
+        {
+            long entry = snapshot.findPrice(row, index);
+            return entry >= 0 ? snapshot.prices.getDouble(entry * 8) : Double.NaN;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Reading                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private ReportSnapshot(SnapshotFile.Reader reader)
+    {
+        this.reader = reader;
+        columnCount = (int) reader.count(0);
+        textColumnCount = (int) reader.count(1);
+        rowCount = reader.count(2);
+        rowSize = ReportSnapshotSink.rowSize(textColumnCount);
+        columns = reader.section(ReportSnapshotSink.COLUMNS);
+        rows = reader.section(ReportSnapshotSink.ROWS);
+        priceColumns = reader.section(ReportSnapshotSink.PRICE_COLUMNS);
+        prices = reader.section(ReportSnapshotSink.PRICES);
+        ordinals = reader.section(ReportSnapshotSink.ORDINALS);
+    }
+
+    /**
+     * Maps a snapshot file.
+     * @param file the file written by a {@link ReportSnapshotSink}
+     * @return the snapshot, to be closed when no longer read
+     */
+    public static ReportSnapshot open(Path file)
+        throws IOException
+    {
+        return new ReportSnapshot(new SnapshotFile.Reader(file, ReportSnapshotSink.KIND));
+    }
+
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * Returns the text of a row's text column.
+     * @param row the row number
+     * @param textColumn the number of the column among the text columns
+     */
+    public String getText(long row, int textColumn)
+    {
+        return reader.string(rows.getInt(row * rowSize + 12 + 4L * textColumn));
+    }
+
+    /** Returns the entry of a row's price for a distributor index, or -1.
+     */
+    private long findPrice(long row, int index)
+    {
+        long low = rows.getLong(row * rowSize);
+        long high = low + rows.getInt(row * rowSize + 8) - 1;
+        while (low <= high)
+        {
+            long middle = (low + high) >>> 1;
+            int column = priceColumns.getInt(middle * 4);
+            if (column < index)
+                low = middle + 1;
+            else if (column > index)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a Report with the snapshot's titles and columns, whose
+     * rows are {@link Row} views of the snapshot.
+     */
+    public Report toReport()
+    {
+        Report report = createHeader();
+        for (long row = 0; row < rowCount; row++)
+            report.addRow(new Row(this, row));
+        return report;
+    }
+
+    /**
+     * Writes the snapshot to a sink without collecting its rows.
+     * @param sink the destination; it is not closed
+     */
+    public void write(ReportSink sink)
+        throws IOException
+    {
+        sink.begin(createHeader());
+        for (long row = 0; row < rowCount; row++)
+            sink.row(new Row(this, row));
+        sink.end();
+    }
+
+    private Report createHeader()
+    {
+        Report report = new Report();
+        report.setTitle(reader.string((int) reader.count(4)));
+        report.setSubtitle(reader.string((int) reader.count(5)));
+        report.setDates(reader.string((int) reader.count(6)));
+        for (int i = 0; i < columnCount; i++)
+        {
+            long position = (long) i * ReportSnapshotSink.COLUMN_SIZE;
+            String title = reader.string(columns.getInt(position));
+            int priceIndex = columns.getInt(position + 8);
+            int textColumn = columns.getInt(position + 12);
+            if (priceIndex >= 0)
+                report.addColumn(title, PricedRow.FORMATTED_PRICES + "[" + priceIndex + "]");
+            else
+                report.addColumn(title, "text[" + textColumn + "]");
+        }
+        return report;
+    }
+
+    public void close()
+        throws IOException
+    {
+        reader.close();
+    }
+}
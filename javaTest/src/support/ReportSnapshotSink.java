@@ -0,0 +1,169 @@
+package support;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a finished report as a binary snapshot that {@link ReportSnapshot}
+ * reads back through memory mapping.
+ * <p>
+ * Text columns are stored as string ids in a fixed-width row record.
+ * Price columns ("formattedPrices[i]" of a {@link PricedRow}) are stored
+ * sparsely as numbers: each row record points at its run of distributor
+ * index, price and ordinal entries in three fixed-width columns.
+ */
+public class ReportSnapshotSink implements ReportSink
+{
+    static final int KIND = 2;
+
+    static final int COLUMNS = SnapshotFile.FIRST_SECTION;
+    static final int ROWS = SnapshotFile.FIRST_SECTION + 1;
+    static final int PRICE_COLUMNS = SnapshotFile.FIRST_SECTION + 2;
+    static final int PRICES = SnapshotFile.FIRST_SECTION + 3;
+    static final int ORDINALS = SnapshotFile.FIRST_SECTION + 4;
+    static final int SECTION_COUNT = SnapshotFile.FIRST_SECTION + 5;
+
+    static final int COLUMN_SIZE = 16;
+
+    private final SnapshotFile.Writer writer;
+    private Report report;
+    private int textColumnCount;
+    /** For each column, its text column number, or -1 for a price column.
+     */
+    private int[] textColumns;
+    /** The distributor indexes of the price columns, ascending.
+     */
+    private int[] priceIndexes;
+    private int rowSize;
+    private long rowCount;
+    private long priceCount;
+
+    /**
+     * @param file the snapshot file to write
+     */
+    public ReportSnapshotSink(Path file)
+        throws IOException
+    {
+        writer = new SnapshotFile.Writer(file, KIND, SECTION_COUNT);
+    }
+
+    /** Returns the size of a row record with a number of text columns.
+     */
+    static int rowSize(int textColumnCount)
+    {
+        return SnapshotFile.align(12 + 4 * textColumnCount);
+    }
+
+    /** Returns the distributor index of a "formattedPrices[i]" property, or -1.
+     */
+    static int priceIndex(String property)
+    {
+        String prefix = PricedRow.FORMATTED_PRICES + "[";
+        if (!property.startsWith(prefix) || !property.endsWith("]"))
+            return -1;
+        try
+        {
+            return Integer.parseInt(property.substring(prefix.length(), property.length() - 1));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                             ReportSink                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public void begin(Report report)
+        throws IOException
+    {
+        this.report = report;
+        List<String> titles = report.getColumnTitles();
+        List<String> properties = report.getColumnProperties();
+        textColumns = new int[properties.size()];
+        priceIndexes = new int[properties.size()];
+        int priceColumnCount = 0;
+        DataOutputStream columnOut = writer.section(COLUMNS);
+        for (int i = 0; i < properties.size(); i++)
+        {
+            int priceIndex = priceIndex(properties.get(i));
+            if (priceIndex >= 0)
+            {
+                textColumns[i] = -1;
+                priceIndexes[priceColumnCount++] = priceIndex;
+            }
+            else
+                textColumns[i] = textColumnCount++;
+            columnOut.writeInt(writer.string(titles.get(i)));
+            columnOut.writeInt(writer.string(properties.get(i)));
+            columnOut.writeInt(priceIndex);
+            columnOut.writeInt(textColumns[i]);
+        }
+        priceIndexes = Arrays.copyOf(priceIndexes, priceColumnCount);
+        Arrays.sort(priceIndexes);
+        rowSize = rowSize(textColumnCount);
+    }
+
+    public void row(Object row)
+        throws IOException
+    {
+        long firstPrice = priceCount;
+        if (priceIndexes.length > 0)
+        {
+            if (!(row instanceof PricedRow))
+                throw new IllegalArgumentException("Price columns need PricedRow rows, not " + row.getClass());
+            PricedRow pricedRow = (PricedRow) row;
+            DataOutputStream columnOut = writer.section(PRICE_COLUMNS);
+            DataOutputStream priceOut = writer.section(PRICES);
+            DataOutputStream ordinalOut = writer.section(ORDINALS);
+            for (int index : priceIndexes)
+            {
+                int ordinal = pricedRow.getOrdinal(index);
+                if (ordinal == 0)
+                    continue;
+                columnOut.writeInt(index);
+                priceOut.writeDouble(pricedRow.getPrice(index));
+                ordinalOut.writeInt(ordinal);
+                priceCount++;
+            }
+        }
+
+        DataOutputStream rowOut = writer.section(ROWS);
+        rowOut.writeLong(firstPrice);
+        rowOut.writeInt((int) (priceCount - firstPrice));
+        List<PropertyAccessor> accessors = report.getColumnAccessors(row.getClass());
+        for (int i = 0; i < textColumns.length; i++)
+        {
+            if (textColumns[i] < 0)
+                continue;
+            Object value = accessors.get(i).get(row);
+            rowOut.writeInt(writer.string(value == null ? null : value.toString()));
+        }
+        for (int i = 12 + 4 * textColumnCount; i < rowSize; i++)
+            rowOut.writeByte(0);
+        rowCount++;
+    }
+
+    public void end()
+        throws IOException
+    {
+        writer.finish(report.getColumnTitles().size(), textColumnCount, rowCount, priceCount,
+                      writer.string(report.getTitle()), writer.string(report.getSubtitle()),
+                      writer.string(report.getDates()));
+    }
+
+    /** Discards the temporary files if the snapshot was not finished.
+     */
+    public void close()
+        throws IOException
+    {
+        writer.close();
+    }
+}
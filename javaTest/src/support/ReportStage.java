@@ -0,0 +1,20 @@
+package support;
+
+/**
+ * The stages of generating and writing a report, as measured by {@link ReportMetrics}.
+ */
+public enum ReportStage
+{
+    /** Aggregating contract line items into staged rows */
+    INGESTION,
+    /** Collecting and ordering the distributor columns */
+    DISTRIBUTORS,
+    /** Ordering the products and rows */
+    SORTING,
+    /** Creating report rows, including their ranking */
+    ROW_BUILD,
+    /** Ranking prices within products, part of row building */
+    RANKING,
+    /** Writing the report to a sink or file */
+    WRITING
+}
@@ -0,0 +1,39 @@
+package support;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JDK Flight Recorder event for a finished report stage, committed
+ * by {@link ReportEventListener}.
+ */
+@Name("support.ReportStage")
+@Label("Report Stage")
+@Category("Reports")
+@Description("A stage of report generation or writing finished")
+@StackTrace(false)
+public class ReportStageEvent extends Event
+{
+    @Label("Report")
+    String report;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Stage Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long stageTime;
+
+    @Label("Allocated")
+    @DataAmount(DataAmount.BYTES)
+    long allocated;
+
+    @Label("Rows")
+    long rows;
+}
@@ -0,0 +1,175 @@
+package support;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A listener that keeps running totals of report measurements and
+ * exposes them as a JMX MXBean, so that slow reports and hot stages
+ * can be watched without a profiler.
+ */
+public class ReportStatistics implements ReportListener, ReportStatisticsMXBean
+{
+    private static final ReportStage[] STAGES = ReportStage.values();
+
+    private long reportsBuilt;
+    private final long[] totalNanos = new long[STAGES.length];
+    private final long[] totalAllocatedBytes = new long[STAGES.length];
+    private long totalRows;
+    private ReportMetrics lastReport;
+    private String slowestReportTitle;
+    private long slowestReportNanos;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Registration                           //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates statistics and registers them with the platform MBean
+     * server as "support:type=ReportStatistics,name=<name>".
+     * @param name the name distinguishing these statistics
+     * @return the registered statistics
+     */
+    public static ReportStatistics register(String name)
+        throws JMException
+    {
+        ReportStatistics statistics = new ReportStatistics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(statistics, objectName(name));
+        return statistics;
+    }
+
+    /**
+     * Removes statistics registered by {@link #register(String)}.
+     * @param name the name they were registered with
+     */
+    public static void unregister(String name)
+        throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+    }
+
+    private static ObjectName objectName(String name)
+        throws JMException
+    {
+        return new ObjectName("support:type=ReportStatistics,name=" + ObjectName.quote(name));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                           ReportListener                          //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public synchronized void stageFinished(ReportMetrics metrics, ReportStage stage, long nanos,
+                                           long allocatedBytes)
+    {
+        totalNanos[stage.ordinal()] += nanos;
+        if (allocatedBytes > 0)
+            totalAllocatedBytes[stage.ordinal()] += allocatedBytes;
+        if (stage == ReportStage.ROW_BUILD)
+        {
+            reportsBuilt++;
+            totalRows += metrics.getRows();
+        }
+        lastReport = metrics;
+        long reportNanos = metrics.getTotalNanos();
+        if (reportNanos > slowestReportNanos)
+        {
+            slowestReportNanos = reportNanos;
+            slowestReportTitle = metrics.getTitle();
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               MXBean                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public synchronized long getReportsBuilt()
+    {
+        return reportsBuilt;
+    }
+
+    public synchronized Map<String, Long> getTotalStageMillis()
+    {
+        Map<String, Long> millis = new LinkedHashMap<String, Long>();
+        for (ReportStage stage : STAGES)
+            millis.put(stage.name(), totalNanos[stage.ordinal()] / 1000000);
+        return millis;
+    }
+
+    public synchronized Map<String, Long> getTotalStageAllocatedBytes()
+    {
+        Map<String, Long> bytes = new LinkedHashMap<String, Long>();
+        for (ReportStage stage : STAGES)
+            bytes.put(stage.name(), totalAllocatedBytes[stage.ordinal()]);
+        return bytes;
+    }
+
+    public synchronized long getTotalRows()
+    {
+        return totalRows;
+    }
+
+    public synchronized long getLastReportRows()
+    {
+        return lastReport != null ? lastReport.getRows() : 0;
+    }
+
+    public synchronized long getLastReportBytesWritten()
+    {
+        return lastReport != null ? lastReport.getBytesWritten() : 0;
+    }
+
+    public synchronized String getLastReportTitle()
+    {
+        return lastReport != null ? lastReport.getTitle() : null;
+    }
+
+    public synchronized Map<String, Long> getLastReportStageMillis()
+    {
+        Map<String, Long> millis = new LinkedHashMap<String, Long>();
+        if (lastReport != null)
+        {
+            for (ReportStage stage : STAGES)
+                millis.put(stage.name(), lastReport.getNanos(stage) / 1000000);
+        }
+        return millis;
+    }
+
+    public synchronized String getSlowestReportTitle()
+    {
+        return slowestReportTitle;
+    }
+
+    public synchronized long getSlowestReportMillis()
+    {
+        return slowestReportNanos / 1000000;
+    }
+
+    public synchronized void reset()
+    {
+        reportsBuilt = 0;
+        for (int i = 0; i < STAGES.length; i++)
+        {
+            totalNanos[i] = 0;
+            totalAllocatedBytes[i] = 0;
+        }
+        totalRows = 0;
+        lastReport = null;
+        slowestReportTitle = null;
+        slowestReportNanos = 0;
+    }
+}
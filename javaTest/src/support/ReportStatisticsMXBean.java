@@ -0,0 +1,43 @@
+package support;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ReportStatistics}.  Times are in
+ * milliseconds and stage maps are keyed by {@link ReportStage} name.
+ */
+public interface ReportStatisticsMXBean
+{
+    /** Returns the number of reports whose rows were built. */
+    long getReportsBuilt();
+
+    /** Returns the total time of each stage over all reports. */
+    Map<String, Long> getTotalStageMillis();
+
+    /** Returns the total allocation of each stage over all reports, in bytes. */
+    Map<String, Long> getTotalStageAllocatedBytes();
+
+    /** Returns the number of rows built over all reports. */
+    long getTotalRows();
+
+    /** Returns the title of the report that last finished a stage. */
+    String getLastReportTitle();
+
+    /** Returns the number of rows of the report that last finished a stage. */
+    long getLastReportRows();
+
+    /** Returns the bytes written for the report that last finished a stage. */
+    long getLastReportBytesWritten();
+
+    /** Returns the stage times of the report that last finished a stage. */
+    Map<String, Long> getLastReportStageMillis();
+
+    /** Returns the title of the report with the longest total time. */
+    String getSlowestReportTitle();
+
+    /** Returns the longest total time of a report. */
+    long getSlowestReportMillis();
+
+    /** Clears the statistics. */
+    void reset();
+}
@@ -0,0 +1,273 @@
+package support;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout shared by binary snapshot files.
+ * <p>
+ * A file starts with a header: magic number, file kind, version, a
+ * table of counts and a table of section offsets and lengths.  Sections
+ * follow, each starting on an 8-byte boundary.  Sections 0 and 1 hold a
+ * string dictionary: the start of each string as a long, plus the end
+ * of the last, and the UTF-8 bytes.  Strings are referred to by their
+ * int id, -1 standing for null.  Values are big-endian.
+ */
+class SnapshotFile
+{
+    static final int MAGIC = 0x50435346;
+    static final int VERSION = 1;
+
+    static final int STRING_OFFSETS = 0;
+    static final int STRING_DATA = 1;
+    static final int FIRST_SECTION = 2;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Writer                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes a snapshot.  Each section is streamed to a temporary file
+     * next to the target and the pieces are joined by {@link #finish}.
+     */
+    static class Writer implements Closeable
+    {
+        private final Path target;
+        private final int kind;
+        private final Path[] sectionFiles;
+        private final DataOutputStream[] sections;
+        private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+        private long stringDataLength;
+
+        Writer(Path target, int kind, int sectionCount)
+            throws IOException
+        {
+            this.target = target;
+            this.kind = kind;
+            sectionFiles = new Path[sectionCount];
+            sections = new DataOutputStream[sectionCount];
+            Path directory = target.toAbsolutePath().getParent();
+            try
+            {
+                for (int i = 0; i < sectionCount; i++)
+                {
+                    sectionFiles[i] = Files.createTempFile(directory, target.getFileName() + ".", ".section" + i);
+                    sections[i] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(sectionFiles[i].toFile()), 64 * 1024));
+                }
+            }
+            catch (IOException e)
+            {
+                close();
+                throw e;
+            }
+        }
+
+        DataOutputStream section(int section)
+        {
+            return sections[section];
+        }
+
+        /** Returns the id of a string, adding it to the dictionary on first use.
+         */
+        int string(String string)
+            throws IOException
+        {
+            if (string == null)
+                return -1;
+            Integer id = stringIds.get(string);
+            if (id == null)
+            {
+                id = stringIds.size();
+                stringIds.put(string, id);
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                sections[STRING_OFFSETS].writeLong(stringDataLength);
+                sections[STRING_DATA].write(bytes);
+                stringDataLength += bytes.length;
+            }
+            return id;
+        }
+
+        /**
+         * Writes the header and joins the sections into the target file.
+         * @param counts the counts to record in the header, after the string count
+         */
+        void finish(long... counts)
+            throws IOException
+        {
+            sections[STRING_OFFSETS].writeLong(stringDataLength);
+            long[] lengths = new long[sections.length];
+            for (int i = 0; i < sections.length; i++)
+            {
+                sections[i].close();
+                lengths[i] = Files.size(sectionFiles[i]);
+            }
+
+            int headerLength = align(20 + 8 * (counts.length + 1) + 16 * sections.length);
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.putInt(MAGIC).putInt(kind).putInt(VERSION);
+            header.putInt(counts.length + 1).putInt(sections.length);
+            header.putLong(stringIds.size());
+            for (long count : counts)
+                header.putLong(count);
+            long offset = headerLength;
+            for (int i = 0; i < sections.length; i++)
+            {
+                header.putLong(offset).putLong(lengths[i]);
+                offset += align(lengths[i]);
+            }
+            header.rewind();
+
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                writeFully(out, header);
+                for (int i = 0; i < sections.length; i++)
+                {
+                    try (FileChannel in = FileChannel.open(sectionFiles[i], StandardOpenOption.READ))
+                    {
+                        long done = 0;
+                        while (done < lengths[i])
+                            done += in.transferTo(done, lengths[i] - done, out);
+                    }
+                    int padding = (int) (align(lengths[i]) - lengths[i]);
+                    writeFully(out, ByteBuffer.allocate(padding));
+                }
+            }
+            close();
+        }
+
+        /** Discards the temporary section files.
+         */
+        public void close()
+            throws IOException
+        {
+            for (int i = 0; i < sections.length; i++)
+            {
+                if (sections[i] != null)
+                    sections[i].close();
+                if (sectionFiles[i] != null)
+                    Files.deleteIfExists(sectionFiles[i]);
+            }
+        }
+
+        private static void writeFully(FileChannel out, ByteBuffer buffer)
+            throws IOException
+        {
+            while (buffer.hasRemaining())
+                out.write(buffer);
+        }
+    }
+
+    static int align(int length)
+    {
+        return (length + 7) & ~7;
+    }
+
+    static long align(long length)
+    {
+        return (length + 7) & ~7L;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                               Reader                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Maps a snapshot for reading.  Strings are decoded on first use and cached.
+     */
+    static class Reader implements Closeable
+    {
+        private final FileChannel channel;
+        private final long[] counts;
+        private final MappedSection[] sections;
+        private final String[] strings;
+
+        Reader(Path file, int kind)
+            throws IOException
+        {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            try
+            {
+                ByteBuffer prefix = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(20, channel.size()));
+                if (prefix.limit() < 20 || prefix.getInt(0) != MAGIC || prefix.getInt(4) != kind)
+                    throw new IOException(file + " is not a snapshot of the expected kind");
+                if (prefix.getInt(8) != VERSION)
+                    throw new IOException(file + " has unsupported snapshot version " + prefix.getInt(8));
+                int countCount = prefix.getInt(12);
+                int sectionCount = prefix.getInt(16);
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 20,
+                                                8L * countCount + 16L * sectionCount);
+                counts = new long[countCount];
+                for (int i = 0; i < countCount; i++)
+                    counts[i] = header.getLong();
+                sections = new MappedSection[sectionCount];
+                for (int i = 0; i < sectionCount; i++)
+                {
+                    long offset = header.getLong();
+                    long length = header.getLong();
+                    sections[i] = new MappedSection(channel, offset, length);
+                }
+                strings = new String[(int) counts[0]];
+            }
+            catch (IOException e)
+            {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /** Returns a count recorded by the writer, 0 being the first after the string count.
+         */
+        long count(int index)
+        {
+            return counts[index + 1];
+        }
+
+        MappedSection section(int section)
+        {
+            return sections[section];
+        }
+
+        String string(int id)
+        {
+            if (id < 0)
+                return null;
+            String string = strings[id];
+            if (string == null)
+            {
+                MappedSection offsets = sections[STRING_OFFSETS];
+                long start = offsets.getLong(8L * id);
+                long end = offsets.getLong(8L * id + 8);
+                string = sections[STRING_DATA].getString(start, (int) (end - start));
+                strings[id] = string;
+            }
+            return string;
+        }
+
+        /** Closes the file.  Mapped sections stay readable until they are garbage collected.
+         */
+        public void close()
+            throws IOException
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package support;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a report as an Excel workbook (.xlsx).
+ * <p>
+ * The workbook package is written as a zip stream, and the sheet XML is
+ * streamed row by row into its compressed entry, so memory use does not
+ * grow with the report.  Cells are inline strings, which need no shared
+ * string table; the sheet lays out the title lines, column titles and
+ * rows as the CSV output does.  A sheet holds at most
+ * {@link #MAX_SHEET_ROWS} rows, Excel's limit; the rows of a longer
+ * report continue on further sheets, each starting with the column
+ * titles.  The other package parts are written last, once the sheets
+ * are known.
+ */
+public class XlsxReportSink implements ReportSink
+{
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final String XML_DECLARATION =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String SHEET_NAME = "Report";
+    /** Rows a worksheet can hold.
+     */
+    static final int MAX_SHEET_ROWS = 1048576;
+
+    private final CountingOutputStream counter;
+    private final ZipOutputStream zip;
+    private final Writer writer;
+    private final boolean closeStream;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private Report report;
+    /** Rows a sheet may hold, the sheets begun, and the rows of the current sheet
+     */
+    private final int maxSheetRows;
+    private int sheetCount;
+    private int sheetRows;
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                            Constructor                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param out the stream to receive the workbook
+     * @param closeStream whether {@link #close()} closes the stream
+     */
+    public XlsxReportSink(OutputStream out, boolean closeStream)
+    {
+        this(out, closeStream, MAX_SHEET_ROWS);
+    }
+
+    /**
+     * @param out the stream to receive the workbook
+     * @param closeStream whether {@link #close()} closes the stream
+     * @param maxSheetRows the rows a sheet may hold
+     */
+    XlsxReportSink(OutputStream out, boolean closeStream, int maxSheetRows)
+    {
+        this.maxSheetRows = maxSheetRows;
+        counter = new CountingOutputStream(out);
+        zip = new ZipOutputStream(counter, StandardCharsets.UTF_8);
+        writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        this.closeStream = closeStream;
+    }
+
+    /**
+     * Opens a sink on a file, or on standard output if filename is "-".
+     * @param filename the file name
+     * @return the sink
+     */
+    public static XlsxReportSink open(String filename)
+        throws IOException
+    {
+        if ("-".equals(filename))
+            return new XlsxReportSink(System.out, false);
+        return new XlsxReportSink(new FileOutputStream(filename), true);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                             ReportSink                            //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    public void begin(Report report)
+        throws IOException
+    {
+        this.report = report;
+        beginSheet();
+        if (report.getTitle() != null)
+            headerLine(report.getTitle());
+        if (report.getSubtitle() != null)
+            headerLine(report.getSubtitle());
+        if (report.getDates() != null)
+            headerLine(report.getDates());
+        append("<row/>");
+        sheetRows++;
+        columnTitles();
+    }
+
+    public void row(Object row)
+        throws IOException
+    {
+        List<PropertyAccessor> accessors = report.getColumnAccessors(row.getClass());
+        int size = accessors.size();
+        if (sheetRows == maxSheetRows)
+        {
+            endSheet();
+            beginSheet();
+            columnTitles();
+        }
+        sheetRows++;
+        append("<row>");
+        for (int i = 0; i < size; i++)
+        {
+            PropertyAccessor accessor = accessors.get(i);
+            if (accessor instanceof PropertyAccessor.PriceCell)
+                priceCell((PricedRow) row, ((PropertyAccessor.PriceCell) accessor).getIndex());
+            else
+                cell(accessor.get(row));
+        }
+        append("</row>");
+    }
+
+    /** Completes the sheet and the workbook package.
+     */
+    public void end()
+        throws IOException
+    {
+        endSheet();
+        writePackageParts();
+        zip.finish();
+    }
+
+    /**
+     * Returns the number of bytes of the workbook written so far; the
+     * compressed sheet is counted as the zip stream emits it.
+     */
+    public long getBytesWritten()
+    {
+        return counter.getCount();
+    }
+
+    /** Closes the stream if asked to; a workbook not ended is left incomplete.
+     */
+    public void close()
+        throws IOException
+    {
+        if (closeStream)
+            zip.close();
+        else
+            zip.flush();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Package                              //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    /** Starts the entry of the next sheet.
+     */
+    private void beginSheet()
+        throws IOException
+    {
+        sheetCount++;
+        sheetRows = 0;
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheetCount + ".xml"));
+        append(XML_DECLARATION);
+        append("<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>");
+    }
+
+    /** Completes the entry of the current sheet.
+     */
+    private void endSheet()
+        throws IOException
+    {
+        append("</sheetData></worksheet>");
+        flushBuffer();
+        writer.flush();
+        zip.closeEntry();
+    }
+
+    /** Writes the parts of the workbook package other than the sheets.
+     */
+    private void writePackageParts()
+        throws IOException
+    {
+        StringBuilder contentTypes = new StringBuilder();
+        StringBuilder sheets = new StringBuilder();
+        StringBuilder sheetRelationships = new StringBuilder();
+        for (int sheet = 1; sheet <= sheetCount; sheet++)
+        {
+            contentTypes.append("<Override PartName=\"/xl/worksheets/sheet").append(sheet).append(".xml\" ")
+                        .append("ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+            sheets.append("<sheet name=\"").append(SHEET_NAME);
+            if (sheet > 1)
+                sheets.append(" (").append(sheet).append(')');
+            sheets.append("\" sheetId=\"").append(sheet).append("\" r:id=\"rId").append(sheet).append("\"/>");
+            sheetRelationships.append("<Relationship Id=\"rId").append(sheet).append("\" ")
+                              .append("Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" ")
+                              .append("Target=\"worksheets/sheet").append(sheet).append(".xml\"/>");
+        }
+        part("[Content_Types].xml",
+             "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+             + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+             + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+             + "<Override PartName=\"/xl/workbook.xml\" "
+             + "ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>"
+             + contentTypes
+             + "</Types>");
+        part("_rels/.rels",
+             "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+             + "<Relationship Id=\"rId1\" "
+             + "Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" "
+             + "Target=\"xl/workbook.xml\"/>"
+             + "</Relationships>");
+        part("xl/workbook.xml",
+             "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" "
+             + "xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+             + "<sheets>" + sheets + "</sheets>"
+             + "</workbook>");
+        part("xl/_rels/workbook.xml.rels",
+             "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+             + sheetRelationships
+             + "</Relationships>");
+    }
+
+    private void part(String name, String xml)
+        throws IOException
+    {
+        zip.putNextEntry(new ZipEntry(name));
+        writer.write(XML_DECLARATION);
+        writer.write(xml);
+        writer.flush();
+        zip.closeEntry();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////
+    //                                                                   //
+    //                              Encoding                             //
+    //                                                                   //
+    ///////////////////////////////////////////////////////////////////////
+
+    private void headerLine(String text)
+        throws IOException
+    {
+        append("<row>");
+        cell(text);
+        append("</row>");
+        sheetRows++;
+    }
+
+    private void columnTitles()
+        throws IOException
+    {
+        append("<row>");
+        for (String title : report.getColumnTitles())
+            cell(title);
+        append("</row>");
+        sheetRows++;
+    }
+
+    /**
+     * Appends an inline string cell, escaping XML markup and dropping
+     * characters XML cannot hold.  A null value is an empty cell.
+     */
+    private void cell(Object value)
+        throws IOException
+    {
+        if (value == null)
+        {
+            append("<c/>");
+            return;
+        }
+        CharSequence text = value instanceof CharSequence ? (CharSequence) value : value.toString();
+        append("<c t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+        int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = text.charAt(i);
+            if (position > BUFFER_SIZE - 6)
+                flushBuffer();
+            switch (c)
+            {
+            case '<':
+                position = put("&lt;", position);
+                break;
+            case '>':
+                position = put("&gt;", position);
+                break;
+            case '&':
+                position = put("&amp;", position);
+                break;
+            case '\t':
+            case '\n':
+            case '\r':
+                buffer[position++] = c;
+                break;
+            default:
+                if (c >= 0x20 && c != 0xFFFE && c != 0xFFFF)
+                    buffer[position++] = c;
+            }
+        }
+        append("</t></is></c>");
+    }
+
+    /**
+     * Appends a "(ordinal) price" cell, formatting the price directly
+     * into the buffer.  It contains no markup to escape.
+     */
+    private void priceCell(PricedRow row, int index)
+        throws IOException
+    {
+        int ordinal = row.getOrdinal(index);
+        if (ordinal == 0)
+        {
+            cell(null);
+            return;
+        }
+        double price = row.getPrice(index);
+        if (!PriceFormatter.isBounded(price))
+        {
+            cell(PriceFormatter.formatOrdinalPrice(ordinal, price));
+            return;
+        }
+        append("<c t=\"inlineStr\"><is><t>");
+        if (position > BUFFER_SIZE - PriceFormatter.MAX_ORDINAL_PRICE_LENGTH)
+            flushBuffer();
+        position = PriceFormatter.formatOrdinalPrice(ordinal, price, buffer, position);
+        append("</t></is></c>");
+    }
+
+    private int put(String text, int offset)
+    {
+        text.getChars(0, text.length(), buffer, offset);
+        return offset + text.length();
+    }
+
+    private void append(String text)
+        throws IOException
+    {
+        if (position > BUFFER_SIZE - text.length())
+            flushBuffer();
+        position = put(text, position);
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        if (position > 0)
+        {
+            writer.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}